@@ -19,6 +19,13 @@ public class AsyncTaskExecutor {
 
 	private static final Logger log = Logger.getLogger(AsyncTaskExecutor.class.getName());
 
+	/**
+	 *
+	 */
+	public static final String UPLOAD_QUEUE_NAME = "upload";
+	public static final String UPLOAD_TOKEN = "uploadToken";
+	public static final int UPLOAD_RETRY_LIMIT = 3;
+
 	/**
 	 * @methodtype command
 	 *
@@ -30,4 +37,29 @@ public class AsyncTaskExecutor {
 		RetryOptions retryOptions = withTaskRetryLimit(3);
 		queue.add(TaskOptions.Builder.withUrl("/persistPhoto").param(Photo.ID, photoId).retryOptions(retryOptions));
 	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Starts a task in the default queue that flushes the photos with pending changes, see
+	 * {@link FlushDirtyPhotosAgent}.
+	 */
+	public static void flushDirtyPhotosAsync() {
+		log.info("Calling async push task to flush dirty photos");
+		Queue queue = QueueFactory.getDefaultQueue();
+		queue.add(TaskOptions.Builder.withUrl("/agents/" + FlushDirtyPhotosAgent.NAME).method(TaskOptions.Method.GET));
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Starts a task in the upload queue to process the accepted upload with the specified token. The concurrency of
+	 * the queue bounds the number of uploads that are scaled and stored at the same time.
+	 */
+	public static void processUploadAsync(String token) {
+		log.info("Calling async push task to process upload " + token);
+		Queue queue = QueueFactory.getQueue(UPLOAD_QUEUE_NAME);
+		RetryOptions retryOptions = withTaskRetryLimit(UPLOAD_RETRY_LIMIT);
+		queue.add(TaskOptions.Builder.withUrl("/processUpload").param(UPLOAD_TOKEN, token).retryOptions(retryOptions));
+	}
 }
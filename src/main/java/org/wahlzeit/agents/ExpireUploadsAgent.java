@@ -0,0 +1,31 @@
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.UploadManager;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.logging.Logger;
+
+public class ExpireUploadsAgent extends Agent {
+
+	public static final String NAME = "expireUploads";
+
+	private static final Logger log = Logger.getLogger(ExpireUploadsAgent.class.getName());
+
+	public ExpireUploadsAgent() {
+		initialize(NAME);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Deletes the status and spooled images of uploads that are older than their time to live, including uploads whose
+	 * processing never finished.
+	 */
+	protected void doRun() {
+		int noExpiredUploads = UploadManager.getInstance().expireUploads(
+				System.currentTimeMillis() - UploadManager.UPLOAD_TIME_TO_LIVE);
+		log.config(LogBuilder.createSystemMessage().addAction("expired uploads")
+				.addParameter("number of uploads", noExpiredUploads).toString());
+	}
+
+}
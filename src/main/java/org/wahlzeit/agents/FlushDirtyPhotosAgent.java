@@ -0,0 +1,30 @@
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.logging.Logger;
+
+public class FlushDirtyPhotosAgent extends Agent {
+
+	public static final String NAME = "flushDirtyPhotos";
+
+	private static final Logger log = Logger.getLogger(FlushDirtyPhotosAgent.class.getName());
+
+	public FlushDirtyPhotosAgent() {
+		initialize(NAME);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Persists the photos that have been changed since the last flush, so that changes are written within bounded time
+	 * even if no further changes trigger a flush.
+	 */
+	protected void doRun() {
+		int noFlushedPhotos = PhotoManager.getInstance().flushDirtyPhotos();
+		log.config(LogBuilder.createSystemMessage().addAction("flushed dirty photos")
+				.addParameter("number of photos", noFlushedPhotos).toString());
+	}
+
+}
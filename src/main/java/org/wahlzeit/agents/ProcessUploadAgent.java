@@ -0,0 +1,67 @@
+package org.wahlzeit.agents;
+
+import org.wahlzeit.model.UploadManager;
+import org.wahlzeit.model.UploadStatus;
+import org.wahlzeit.services.LogBuilder;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Servlet that processes an accepted upload in the background, called by the upload queue.
+ * Like the <code>PersistPhotoAgent</code>, it has nothing to do with <code>UserSession</code> or UI.
+ */
+public class ProcessUploadAgent extends HttpServlet {
+
+	private static final Logger log = Logger.getLogger(ProcessUploadAgent.class.getName());
+
+	/**
+	 * Header of task requests with the number of previous attempts
+	 */
+	protected static final String TASK_RETRY_COUNT_HEADER = "X-AppEngine-TaskRetryCount";
+
+	/**
+	 * @methodtype command
+	 *
+	 * Answers with an error status if processing failed, so the task is retried. After the last attempt, the upload
+	 * is marked as failed.
+	 */
+	protected void doPost(HttpServletRequest request, HttpServletResponse response)
+			throws ServletException, IOException {
+
+		String token = request.getParameter(AsyncTaskExecutor.UPLOAD_TOKEN);
+		log.config(LogBuilder.createSystemMessage().addParameter("Try to process upload", token).toString());
+		try {
+			UploadStatus uploadStatus = UploadManager.getInstance().processUpload(token);
+			if (uploadStatus == null) {
+				// nothing to retry
+				log.warning(LogBuilder.createSystemMessage().addParameter("Unknown upload", token).toString());
+			}
+			response.setStatus(HttpServletResponse.SC_OK);
+		} catch (Exception ex) {
+			log.warning(LogBuilder.createSystemMessage().addException("Problem when processing upload", ex).toString());
+			if (getRetryCount(request) >= AsyncTaskExecutor.UPLOAD_RETRY_LIMIT) {
+				UploadManager.getInstance().failUpload(token);
+				response.setStatus(HttpServletResponse.SC_OK);
+			} else {
+				response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected int getRetryCount(HttpServletRequest request) {
+		try {
+			String retryCount = request.getHeader(TASK_RETRY_COUNT_HEADER);
+			return retryCount != null ? Integer.parseInt(retryCount) : 0;
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+}
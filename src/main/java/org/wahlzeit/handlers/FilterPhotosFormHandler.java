@@ -22,6 +22,7 @@ package org.wahlzeit.handlers;
 
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.PhotoFilter;
+import org.wahlzeit.model.PhotoWeighting;
 import org.wahlzeit.model.Tags;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
@@ -54,6 +55,7 @@ public class FilterPhotosFormHandler extends AbstractWebFormHandler {
 
 		part.maskAndAddString(PhotoFilter.USER_NAME, filter.getUserName());
 		part.maskAndAddString(PhotoFilter.TAGS, filter.getTags().asString());
+		part.addSelect(PhotoFilter.WEIGHTING, filter.getWeighting());
 	}
 
 	/**
@@ -72,9 +74,19 @@ public class FilterPhotosFormHandler extends AbstractWebFormHandler {
 			filter.setTags(new Tags(tags));
 		}
 
+		String weighting = us.getAsString(args, PhotoFilter.WEIGHTING);
+		if (!StringUtil.isNullOrEmptyString(weighting)) {
+			try {
+				filter.setWeighting(PhotoWeighting.getFromString(weighting));
+			} catch (IllegalArgumentException ex) {
+				log.warning(LogBuilder.createSystemMessage().addException("ignore unknown weighting", ex).toString());
+			}
+		}
+
 		log.info(LogBuilder.createUserMessage().
 				addAction("Filter Photos").
-				addParameter("Tags", filter.getTags().asString()).toString());
+				addParameter("Tags", filter.getTags().asString()).
+				addParameter("Weighting", filter.getWeighting().asString()).toString());
 
 
 		return PartUtil.SHOW_PHOTO_PAGE_NAME;
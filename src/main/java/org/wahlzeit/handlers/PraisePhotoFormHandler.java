@@ -82,6 +82,7 @@ public class PraisePhotoFormHandler extends AbstractWebFormHandler {
 			if (!us.hasPraisedPhoto(photo)) {
 				int value = Integer.parseInt(praise);
 				photo.addToPraise(value);
+				PhotoManager.getInstance().markPhotoDirty(photo);
 				client.addPraisedPhotoId(photo.getId());
 				us.addProcessedPhoto(photo);
 				wasPraised = true;
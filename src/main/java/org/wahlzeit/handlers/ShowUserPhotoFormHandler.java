@@ -109,8 +109,7 @@ public class ShowUserPhotoFormHandler extends AbstractWebFormHandler {
 					addAction("Select user photo").
 					addParameter("Photo", id).toString());
 		} else if (us.isFormType(args, "delete")) {
-			photo.setStatus(photo.getStatus().asDeleted(true));
-			PhotoManager.getInstance().savePhoto(photo);
+			PhotoManager.getInstance().deletePhoto(photo);
 			if (user.getUserPhoto() == photo) {
 				user.setUserPhoto(null);
 				userManager.saveClient(user);
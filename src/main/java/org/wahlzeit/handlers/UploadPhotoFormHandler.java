@@ -20,19 +20,19 @@
 
 package org.wahlzeit.handlers;
 
-import com.google.appengine.api.images.Image;
 import org.wahlzeit.agents.AsyncTaskExecutor;
 import org.wahlzeit.model.AccessRights;
 import org.wahlzeit.model.ModelConfig;
 import org.wahlzeit.model.Photo;
-import org.wahlzeit.model.PhotoManager;
-import org.wahlzeit.model.Tags;
+import org.wahlzeit.model.UploadManager;
+import org.wahlzeit.model.UploadStatus;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.utils.StringUtil;
 import org.wahlzeit.webparts.WebPart;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.logging.Logger;
 
@@ -58,12 +58,15 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 		part.addStringFromArgs(args, UserSession.MESSAGE);
 
 		part.maskAndAddStringFromArgs(args, Photo.TAGS);
+		part.addStringFromArgsWithDefault(args, AsyncTaskExecutor.UPLOAD_TOKEN, "");
 	}
 
 	/**
-	 *
+	 * Only accepts the upload, the photo is created in the background, see {@link UploadManager}. The upload page
+	 * polls the status of the upload with its token.
 	 */
 	protected String doHandlePost(UserSession us, Map args) {
+		Object imageData = args.get("fileData");
 		String tags = us.getAndSaveAsString(args, Photo.TAGS);
 
 		ModelConfig config = us.getClient().getLanguageConfiguration();
@@ -72,28 +75,28 @@ public class UploadPhotoFormHandler extends AbstractWebFormHandler {
 			return PartUtil.UPLOAD_PHOTO_PAGE_NAME;
 		}
 
+		if (!(imageData instanceof ByteBuffer)) {
+			log.warning(LogBuilder.createSystemMessage().addMessage("no upload in post").toString());
+			us.setMessage(config.getPhotoUploadFailed());
+			return PartUtil.UPLOAD_PHOTO_PAGE_NAME;
+		}
+
 		try {
-			PhotoManager pm = PhotoManager.getInstance();
 			String fileName = us.getAsString(args, "fileName");
 			User user = (User) us.getClient();
-			Image uploadedImage = user.getUploadedImage();
-			Photo photo = pm.createPhoto(fileName, uploadedImage);
-
-			user.addPhoto(photo);
-
-			photo.setTags(new Tags(tags));
+			UploadStatus uploadStatus = UploadManager.getInstance().acceptUpload(user, fileName, (ByteBuffer) imageData,
+					tags);
 
 			log.config(LogBuilder.createUserMessage().
-					addAction("Upload Photo").
-					addParameter("Photo", photo.getId().asString()).
-					addParameter("tags", photo.getTags().asString()).toString());
-
-			us.setTwoLineMessage(config.getPhotoUploadSucceeded(), config.getKeepGoing());
-			log.config(LogBuilder.createSystemMessage().
-					addAction("Calling async task to save Photo").
-					addParameter("ID", photo.getId().asString()).toString());
-
-			AsyncTaskExecutor.savePhotoAsync(photo.getId().asString());
+					addAction("Accept Upload").
+					addParameter("token", uploadStatus.getToken()).
+					addParameter("tags", tags).toString());
+
+			us.setTwoLineMessage(config.getPhotoUploadAccepted(), config.getKeepGoing());
+			us.setSavedArg(AsyncTaskExecutor.UPLOAD_TOKEN, uploadStatus.getToken());
+		} catch (UploadManager.UploadSpoolFullException ex) {
+			log.warning(LogBuilder.createSystemMessage().addException("rejected upload", ex).toString());
+			us.setMessage(config.getPhotoUploadBusy());
 		} catch (Exception ex) {
 			log.warning(LogBuilder.createSystemMessage().addException("uploading photo failed", ex).toString());
 			us.setMessage(config.getPhotoUploadFailed());
@@ -25,16 +25,22 @@ import org.wahlzeit.model.AirplanePhotoManager;
 import org.wahlzeit.model.GlobalsManager;
 import org.wahlzeit.model.PhotoCaseManager;
 import org.wahlzeit.model.PhotoFactory;
+import org.wahlzeit.model.PhotoImporter;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserManager;
 import org.wahlzeit.model.persistence.DatastoreAdapter;
+import org.wahlzeit.model.persistence.FileSystemAdapter;
+import org.wahlzeit.model.persistence.ImageCache;
 import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.model.persistence.TieredImageStorage;
 import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.SysConfig;
 
 import java.io.File;
-import java.io.FileFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.logging.Logger;
 
 /**
@@ -53,7 +59,9 @@ public abstract class ModelMain extends AbstractMain {
 
 		log.config(LogBuilder.createSystemMessage().addAction("load image storage").toString());
 		//GcsAdapter.Builder gcsAdapterBuilder = new GcsAdapter.Builder();
-		ImageStorage.setInstance(new DatastoreAdapter());
+		// the image cache is only accessed through the tiered storage
+		ImageCache imageCache = new ImageCache(ImageCache.DEFAULT_MAX_BYTES);
+		ImageStorage.setInstance(createTieredImageStorage(imageCache, new DatastoreAdapter()));
 
 		log.config(LogBuilder.createSystemMessage().addAction("load globals").toString());
 		GlobalsManager.getInstance().loadGlobals();
@@ -65,16 +73,46 @@ public abstract class ModelMain extends AbstractMain {
 		PhotoFactory.initialize();
 
 		log.config(LogBuilder.createSystemMessage().addAction("load Photos").toString());
+		// only load photo metadata, images are loaded on first access
+		PhotoManager.getInstance().setLoadImagesOnStartUp(false);
+		PhotoManager.getInstance().setCreateSizesOnDemand(true);
 		PhotoManager.getInstance().init();
 	}
 
 
+	/**
+	 * @methodtype factory
+	 *
+	 * Chains memory, local disk and the remote storage. The disk tier is left out where the file system is read-only,
+	 * e.g. on App Engine.
+	 */
+	protected ImageStorage createTieredImageStorage(ImageCache imageCache, ImageStorage remoteStorage) {
+		List<ImageStorage> storageTiers = new ArrayList<ImageStorage>();
+		File photosDir = new File(SysConfig.getPhotosDir().asString());
+		if ((photosDir.isDirectory() || photosDir.mkdirs()) && photosDir.canWrite()) {
+			storageTiers.add(new FileSystemAdapter(photosDir));
+		}
+		storageTiers.add(remoteStorage);
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("create tiered image storage").
+				addParameter("storage tiers", storageTiers.size()).toString());
+		return new TieredImageStorage(imageCache, storageTiers);
+	}
+
 	/**
 	 *
 	 */
 	protected void shutDown() throws Exception {
+		// write pending changes first, saveAll() might fail on other objects
+		PhotoManager.getInstance().flushDirtyPhotos();
 		saveAll();
 
+		ImageStorage imageStorage = ImageStorage.getInstance();
+		if (imageStorage instanceof TieredImageStorage) {
+			log.info(((TieredImageStorage) imageStorage).asString());
+		}
+
 		super.shutDown();
 	}
 
@@ -92,23 +130,10 @@ public abstract class ModelMain extends AbstractMain {
 	 *
 	 */
 	protected void createUser(String userId, String nickName, String emailAddress, String photoDir) throws Exception {
-		UserManager userManager = UserManager.getInstance();
-		new User(userId, nickName, emailAddress);
-
-		PhotoManager photoManager = PhotoManager.getInstance();
-		File photoDirFile = new File(photoDir);
-		FileFilter photoFileFilter = new FileFilter() {
-			public boolean accept(File file) {
-				//TODO: check and change
-				return file.getName().endsWith(".jpg");
-			}
-		};
-
-		File[] photoFiles = photoDirFile.listFiles(photoFileFilter);
-		for (int i = 0; i < photoFiles.length; i++) {
-			//TODO: change to datastore/cloud storage
-			//Photo newPhoto = photoManager.createPhoto(photoFiles[i]);
-			//user.addPhoto(newPhoto);
-		}
+		User user = new User(userId, nickName, emailAddress);
+
+		PhotoImporter photoImporter = new PhotoImporter(PhotoImporter.DEFAULT_NO_THREADS,
+				PhotoImporter.DEFAULT_BATCH_SIZE, null);
+		photoImporter.importPhotos(new File(photoDir), user);
 	}
 }
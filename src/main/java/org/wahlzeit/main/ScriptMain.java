@@ -30,12 +30,21 @@ public abstract class ScriptMain extends ModelMain {
 
 	private static final Logger log = Logger.getLogger(ScriptMain.class.getName());
 
+	/**
+	 *
+	 */
+	public void run(String argv[]) {
+		handleArgv(argv);
+		run();
+	}
+
 	/**
 	 *
 	 */
 	public void run() {
 		try {
 			startUp("web");
+			execute();
 		} catch (Exception ex) {
 			log.log(Level.SEVERE, "Exception: ", ex);
 		}
@@ -48,6 +57,13 @@ public abstract class ScriptMain extends ModelMain {
 	}
 
 
+	/**
+	 * @methodproperty hook
+	 */
+	protected void execute() throws Exception {
+		// do nothing
+	}
+
 	/**
 	 *
 	 */
@@ -62,6 +78,6 @@ public abstract class ScriptMain extends ModelMain {
 	 */
 	protected int handleArg(String arg, int i, String argv[]) {
 		// do nothing
-		return 0;
+		return i;
 	}
 }
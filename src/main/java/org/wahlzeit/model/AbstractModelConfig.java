@@ -576,6 +576,27 @@ public abstract class AbstractModelConfig extends AbstractConfig implements Mode
 		return doGetValue("PhotoUploadSucceeded");
 	}
 
+	/**
+	 *
+	 */
+	public String getPhotoUploadAccepted() {
+		return doGetValue("PhotoUploadAccepted");
+	}
+
+	/**
+	 *
+	 */
+	public String getPhotoUploadTooLarge() {
+		return doGetValue("PhotoUploadTooLarge");
+	}
+
+	/**
+	 *
+	 */
+	public String getPhotoUploadBusy() {
+		return doGetValue("PhotoUploadBusy");
+	}
+
 	/**
 	 *
 	 */
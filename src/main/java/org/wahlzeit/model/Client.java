@@ -21,10 +21,12 @@
 package org.wahlzeit.model;
 
 import com.google.appengine.api.datastore.Key;
+import com.googlecode.objectify.annotation.AlsoLoad;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Parent;
+import com.googlecode.objectify.annotation.Serialize;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.ObjectManager;
@@ -74,7 +76,8 @@ public abstract class Client implements Serializable, Persistent {
 
 	protected List<PhotoId> praisedPhotoIds = new ArrayList<PhotoId>();
 
-	protected List<PhotoId> skippedPhotoIds = new ArrayList<PhotoId>();
+	@Serialize
+	protected PhotoIdSet skippedPhotoIdSet = new PhotoIdSet();
 
 
 	/**
@@ -313,30 +316,39 @@ public abstract class Client implements Serializable, Persistent {
 	/**
 	 * @methodtype get
 	 */
-	public List<PhotoId> getSkippedPhotoIds() {
-		return skippedPhotoIds;
+	public PhotoIdSet getSkippedPhotoIds() {
+		return skippedPhotoIdSet;
 	}
 
 	/**
-	 * @methodtype get
+	 * @methodtype set
+	 */
+	public void setSkippedPhotoIds(PhotoIdSet skippedPhotoIds) {
+		this.skippedPhotoIdSet = skippedPhotoIds;
+	}
+
+	/**
+	 * @methodtype set
+	 *
+	 * Takes over skipped photo ids that were stored as a list by earlier versions.
 	 */
-	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
-		this.skippedPhotoIds = skippedPhotoIds;
+	protected void loadLegacySkippedPhotoIds(@AlsoLoad("skippedPhotoIds") List<PhotoId> skippedPhotoIds) {
+		if (skippedPhotoIds != null) {
+			skippedPhotoIdSet.addAll(skippedPhotoIds);
+		}
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void removeSkippedPhotoId(PhotoId skippedPhotoIdToRemove) {
-		skippedPhotoIds.remove(skippedPhotoIdToRemove);
+		skippedPhotoIdSet.remove(skippedPhotoIdToRemove);
 	}
 
 	/**
 	 * @methodtype set
 	 */
 	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
-		}
+		skippedPhotoIdSet.add(skippedPhotoId);
 	}
 }
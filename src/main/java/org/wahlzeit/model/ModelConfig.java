@@ -184,6 +184,12 @@ public interface ModelConfig extends Configuration, Serializable {
 
 	String getPhotoUploadSucceeded();
 
+	String getPhotoUploadAccepted();
+
+	String getPhotoUploadTooLarge();
+
+	String getPhotoUploadBusy();
+
 	// LOGOUT_PAGE
 	String getLogoutSucceeded();
 
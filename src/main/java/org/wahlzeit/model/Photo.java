@@ -20,19 +20,23 @@
 
 package org.wahlzeit.model;
 
-import com.google.api.client.util.ArrayMap;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.images.Image;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 import com.googlecode.objectify.annotation.Ignore;
+import com.googlecode.objectify.annotation.Index;
 import com.googlecode.objectify.annotation.Parent;
 import org.wahlzeit.services.DataObject;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
 import org.wahlzeit.services.ObjectManager;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A photo represents a user-provided (uploaded) photo.
@@ -53,6 +57,7 @@ public class Photo extends DataObject {
 	public static final String KEYWORDS = "keywords";
 
 	public static final String TAGS = "tags";
+	public static final String FILTER_CONDITIONS = "filterConditions";
 	public static final String OWNER_ID = "ownerId";
 
 	public static final String STATUS = "status";
@@ -79,9 +84,10 @@ public class Photo extends DataObject {
 	/**
 	 * Each photo can be viewed in different sizes (XS, S, M, L, XL)
 	 * Images are pre-computed in these sizes to optimize bandwidth when requested.
+	 * Images may be loaded lazily by concurrent requests, hence the concurrent map.
 	 */
 	@Ignore
-	transient protected Map<PhotoSize, Image> images = new ArrayMap<PhotoSize, Image>();
+	transient protected Map<PhotoSize, Image> images = new ConcurrentHashMap<PhotoSize, Image>();
 	
 	/**
 	 *
@@ -101,6 +107,12 @@ public class Photo extends DataObject {
 	 *
 	 */
 	protected Tags tags = Tags.EMPTY_TAGS;
+
+	/**
+	 * The "un:" and "tg:" conditions the photo matches, derived from owner and tags when the photo is written
+	 */
+	@Index
+	protected List<String> filterConditions = new ArrayList<String>();
 	
 	/**
 	 *
@@ -123,6 +135,17 @@ public class Photo extends DataObject {
 	 * The default type is jpg
 	 */
 	protected String ending = "jpg";
+
+	/**
+	 * Id of the photo whose stored images are shown for this photo, because both were uploaded with the same content;
+	 * null if the photo has images of its own
+	 */
+	protected String imageSourceId = null;
+
+	/**
+	 * SHA-256 hash of the uploaded bytes the images were scaled from; null for photos uploaded before it was recorded
+	 */
+	protected String contentHash = null;
 	
 	/**
 	 *
@@ -164,6 +187,22 @@ public class Photo extends DataObject {
 		this.images.put(photoSize, image);
 	}
 
+	/**
+	 * @methodtype set
+	 */
+	public void removeImage(PhotoSize photoSize) {
+		this.images.remove(photoSize);
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if the photo holds images that may still have to be stored.
+	 */
+	public boolean hasImages() {
+		return !images.isEmpty();
+	}
+
 	/**
 	 * @methodtype get
 	 */
@@ -178,6 +217,45 @@ public class Photo extends DataObject {
 		return id;
 	}
 
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the id under which the images of this photo are stored and cached.
+	 */
+	public String getImageIdAsString() {
+		return imageSourceId != null ? imageSourceId : getIdAsString();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getImageSourceId() {
+		return imageSourceId;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setImageSourceId(String newImageSourceId) {
+		imageSourceId = newImageSourceId;
+		incWriteCount();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setContentHash(String newContentHash) {
+		contentHash = newContentHash;
+		incWriteCount();
+	}
+
 	/**
 	 * @methodtype get
 	 */
@@ -337,6 +415,13 @@ public class Photo extends DataObject {
 		return (double) praiseSum / noVotes;
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public int getNoVotes() {
+		return noVotes;
+	}
+
 	/**
 	 *
 	 */
@@ -344,6 +429,7 @@ public class Photo extends DataObject {
 		praiseSum += value;
 		noVotes += 1;
 		incWriteCount();
+		PhotoManager.getInstance().updatePhotoWeights(this);
 	}
 
 	/**
@@ -366,6 +452,7 @@ public class Photo extends DataObject {
 	public void setStatus(PhotoStatus newStatus) {
 		status = newStatus;
 		incWriteCount();
+		PhotoManager.getInstance().updateVisiblePhotoIds(this);
 	}
 
 	/**
@@ -390,6 +477,20 @@ public class Photo extends DataObject {
 		incWriteCount();
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public List<String> getFilterConditions() {
+		return filterConditions;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setFilterConditions(Collection<String> newFilterConditions) {
+		filterConditions = new ArrayList<String>(newFilterConditions);
+	}
+
 	/**
 	 * @methodtype get
 	 */
@@ -0,0 +1,133 @@
+package org.wahlzeit.model;
+
+import java.io.Serializable;
+
+/**
+ * A cursor that walks through the photo ints 1..maxId in a pseudo-random order that is determined by a seed. The order
+ * is a permutation computed by a small Feistel network over a power-of-two domain, so the cursor only needs the seed
+ * and its position: every int is returned at most once, without keeping a list of candidates. Values outside of the
+ * range of the current pass are skipped; as the domain is less than four times the range, this costs O(1) steps on
+ * average. The range of a pass is fixed when the pass starts; ints added while it runs are walked by a following pass
+ * over the new range, so photos added later are returned as well.
+ */
+public class PhotoCursor implements Serializable {
+
+	/**
+	 *
+	 */
+	protected static final int NO_ROUNDS = 4;
+
+	/**
+	 *
+	 */
+	protected final long seed;
+
+	/**
+	 * The current pass walks the ints offset + 1..offset + passSize
+	 */
+	protected int offset = 0;
+	protected int passSize = 0;
+
+	/**
+	 * The domain of the current pass has 2^(2 * halfBits) elements
+	 */
+	protected int halfBits = 0;
+
+	/**
+	 * Index of the next element of the permutation of the current pass
+	 */
+	protected long position = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoCursor(long seed) {
+		this.seed = seed;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Returns the next photo int in 1..maxId or -1 if all of them have been returned.
+	 */
+	public int next(int maxId) {
+		while (true) {
+			long domainSize = 1L << (2 * halfBits);
+			while (position < domainSize) {
+				long value = permute(position++);
+				if (value < passSize) {
+					return offset + (int) value + 1;
+				}
+			}
+
+			if (maxId <= offset + passSize) {
+				return -1;
+			}
+			startPass(offset + passSize, maxId - offset - passSize);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void startPass(int newOffset, int newPassSize) {
+		offset = newOffset;
+		passSize = newPassSize;
+		halfBits = (getNoBitsFor(newPassSize) + 1) / 2;
+		position = 0;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected int getNoBitsFor(int maxId) {
+		return maxId <= 1 ? 1 : 32 - Integer.numberOfLeadingZeros(maxId - 1);
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Maps an index of the domain bijectively to an element of the domain.
+	 */
+	protected long permute(long index) {
+		long mask = (1L << halfBits) - 1;
+		long left = index >>> halfBits;
+		long right = index & mask;
+		for (int round = 0; round < NO_ROUNDS; round++) {
+			long newRight = left ^ (mix(right, round) & mask);
+			left = right;
+			right = newRight;
+		}
+		return (left << halfBits) | right;
+	}
+
+	/**
+	 * @methodtype helper
+	 *
+	 * Round function of the Feistel network, the finalizer of MurmurHash3 applied to value, seed, round and the offset
+	 * of the pass.
+	 */
+	protected long mix(long value, int round) {
+		long h = value ^ seed ^ ((long) round * 0x9E3779B97F4A7C15L) ^ ((long) offset * 0xD1B54A32D192ED03L);
+		h ^= h >>> 33;
+		h *= 0xFF51AFD7ED558CCDL;
+		h ^= h >>> 33;
+		h *= 0xC4CEB1E5E53FE6D3L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getPosition() {
+		return position;
+	}
+}
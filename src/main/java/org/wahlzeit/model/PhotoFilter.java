@@ -25,8 +25,7 @@ import org.wahlzeit.utils.StringUtil;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.LinkedList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
 import java.util.logging.Logger;
@@ -44,25 +43,44 @@ public class PhotoFilter implements Serializable {
 	 */
 	public static final String USER_NAME = "userName";
 	public static final String TAGS = "tags";
+	public static final String WEIGHTING = "weighting";
 
 	/**
 	 *
 	 */
 	protected String userName = "";
 	protected Tags tags = Tags.EMPTY_TAGS;
+	protected PhotoWeighting weighting = PhotoWeighting.UNIFORM;
 
 	/**
 	 *
 	 */
 	protected List<PhotoId> displayablePhotoIds;
-	protected List<PhotoId> processedPhotoIds = new LinkedList<PhotoId>();
-	protected List<PhotoId> skippedPhotoIds = new LinkedList<PhotoId>();
+	protected PhotoIdSet processedPhotoIds = new PhotoIdSet();
+
+	/**
+	 * Photos that matched the filter conditions in the datastore, queried once per change of the conditions; null if
+	 * the conditions have not been queried yet
+	 */
+	protected PhotoIdSet queriedPhotoIds = null;
+	protected PhotoIdSet skippedPhotoIds = new PhotoIdSet();
 
 	/**
 	 *
 	 */
 	protected Random randomNumber = new Random(System.currentTimeMillis());
 
+	/**
+	 * Walks through all photos in random order without repetition, used if there are no filter conditions
+	 */
+	protected PhotoCursor photoCursor = new PhotoCursor(randomNumber.nextLong());
+
+	/**
+	 * Number of weighted draws and cursor steps per view before the visible photos are scanned for one that has not
+	 * been shown yet
+	 */
+	protected static final int MAX_CURSOR_STEPS = 64;
+
 	/**
 	 *
 	 */
@@ -85,6 +103,7 @@ public class PhotoFilter implements Serializable {
 		setTags(Tags.EMPTY_TAGS);
 		displayablePhotoIds.clear();
 		processedPhotoIds.clear();
+		photoCursor = new PhotoCursor(randomNumber.nextLong());
 	}
 
 	/**
@@ -92,6 +111,7 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void setUserName(String newUserName) {
 		userName = newUserName;
+		queriedPhotoIds = null;
 		resetDisplayablePhotoIds();
 	}
 
@@ -107,9 +127,24 @@ public class PhotoFilter implements Serializable {
 	 */
 	public void setTags(Tags newTags) {
 		tags = newTags;
+		queriedPhotoIds = null;
 		resetDisplayablePhotoIds();
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public PhotoWeighting getWeighting() {
+		return weighting;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setWeighting(PhotoWeighting newWeighting) {
+		weighting = newWeighting;
+	}
+
 	/**
 	 *
 	 */
@@ -140,22 +175,50 @@ public class PhotoFilter implements Serializable {
 	 * @methodtype command
 	 */
 	public void generateDisplayablePhotoIds() {
-		displayablePhotoIds = getFilteredPhotoIds();
+		if (getFilterConditions().isEmpty()) {
+			displayablePhotoIds = getUnfilteredPhotoIds();
+		} else {
+			displayablePhotoIds = getFilteredPhotoIds();
+		}
 	}
 
 	/**
 	 * Get a random photo that has not been rated. If possible avoid skipped photos.
 	 */
 	public PhotoId getRandomDisplayablePhotoId() {
-		if (!displayablePhotoIds.isEmpty()) {
-			int size = displayablePhotoIds.size();
-			int index = ((randomNumber.nextInt() % size) + size) / 2;
+		if (displayablePhotoIds.size() > 1 && weighting != PhotoWeighting.UNIFORM) {
+			return getWeightedRandomDisplayablePhotoId();
+		} else if (!displayablePhotoIds.isEmpty()) {
+			int index = randomNumber.nextInt(displayablePhotoIds.size());
 			return displayablePhotoIds.get(index);
 		} else {
 			return PhotoId.NULL_ID;
 		}
 	}
 
+	/**
+	 * @methodtype get
+	 *
+	 * Picks one of the displayable photos with probability according to the weighting of the filter.
+	 */
+	protected PhotoId getWeightedRandomDisplayablePhotoId() {
+		PhotoManager photoManager = PhotoManager.getInstance();
+		double[] prefixSums = new double[displayablePhotoIds.size()];
+		double total = 0.0;
+		for (int i = 0; i < prefixSums.length; i++) {
+			total += photoManager.getPhotoWeight(displayablePhotoIds.get(i).asInt(), weighting);
+			prefixSums[i] = total;
+		}
+		if (total <= 0.0) {
+			// e.g. only skipped photos that are no longer visible
+			return displayablePhotoIds.get(randomNumber.nextInt(prefixSums.length));
+		}
+
+		int index = Arrays.binarySearch(prefixSums, randomNumber.nextDouble() * total);
+		index = index >= 0 ? index + 1 : -(index + 1);
+		return displayablePhotoIds.get(Math.min(index, prefixSums.length - 1));
+	}
+
 	/**
 	 *
 	 */
@@ -180,7 +243,7 @@ public class PhotoFilter implements Serializable {
 	/**
 	 *
 	 */
-	public List<PhotoId> getProcessedPhotoIds() {
+	public PhotoIdSet getProcessedPhotoIds() {
 		return processedPhotoIds;
 	}
 
@@ -188,10 +251,6 @@ public class PhotoFilter implements Serializable {
 	 *
 	 */
 	public boolean isProcessedPhotoId(PhotoId photoId) {
-		log.info("photoId: " + photoId.asString());
-		for (PhotoId id : processedPhotoIds) {
-			log.info("Processed id: " + id.asString());
-		}
 		return processedPhotoIds.contains(photoId);
 	}
 
@@ -211,14 +270,14 @@ public class PhotoFilter implements Serializable {
 	/**
 	 * @methodtype get
 	 */
-	public List<PhotoId> getSkippedPhotoIds() {
+	public PhotoIdSet getSkippedPhotoIds() {
 		return skippedPhotoIds;
 	}
 
 	/**
 	 * @methodtype set
 	 */
-	public void setSkippedPhotoIds(List<PhotoId> skippedPhotoIds) {
+	public void setSkippedPhotoIds(PhotoIdSet skippedPhotoIds) {
 		this.skippedPhotoIds = skippedPhotoIds;
 	}
 
@@ -226,41 +285,115 @@ public class PhotoFilter implements Serializable {
 	 * @methodtype set
 	 */
 	public void addSkippedPhotoId(PhotoId skippedPhotoId) {
-		if (!skippedPhotoIds.contains(skippedPhotoId)) {
-			skippedPhotoIds.add(skippedPhotoId);
+		skippedPhotoIds.add(skippedPhotoId);
+	}
+
+	/**
+	 * Without filter conditions, the next new visible photo of the photo cursor is shown instead of checking every
+	 * photo in the cache. If all visible photos have been processed or skipped, the skipped ones are shown again.
+	 */
+	protected List<PhotoId> getUnfilteredPhotoIds() {
+		List<PhotoId> result = new ArrayList<PhotoId>();
+		int photoId = getNewVisiblePhotoId(PhotoManager.getInstance().getVisiblePhotoIds());
+		if (photoId > 0) {
+			result.add(PhotoId.getIdFromInt(photoId));
+		} else {
+			result.addAll(skippedPhotoIds);
 		}
+
+		log.config(LogBuilder.createSystemMessage().addParameter("Number of photos to show", result.size())
+				.toString());
+
+		return result;
 	}
 
 	/**
+	 * @methodtype get
 	 *
+	 * Returns a random visible photo that has been neither processed nor skipped, or -1 if there is none.
+	 */
+	protected int getNewVisiblePhotoId(PhotoIdArray visiblePhotoIds) {
+		if (weighting != PhotoWeighting.UNIFORM) {
+			for (int i = 0; i < MAX_CURSOR_STEPS; i++) {
+				int photoId = PhotoManager.getInstance().getWeightedRandomPhotoId(weighting, randomNumber);
+				if (photoId < 0) {
+					break;
+				} else if (visiblePhotoIds.contains(photoId) && isNewPhotoId(photoId)) {
+					return photoId;
+				}
+			}
+		}
+
+		int maxId = PhotoId.getCurrentIdAsInt();
+		for (int i = 0; i < MAX_CURSOR_STEPS; i++) {
+			int photoId = photoCursor.next(maxId);
+			if (photoId < 0) {
+				break;
+			} else if (visiblePhotoIds.contains(photoId) && isNewPhotoId(photoId)) {
+				return photoId;
+			}
+		}
+
+		// the cursor has passed all photos, pick visible photos at random until a new one comes up
+		for (int i = 0; i < MAX_CURSOR_STEPS; i++) {
+			int photoId = visiblePhotoIds.getRandom(randomNumber);
+			if (photoId < 0) {
+				return -1;
+			} else if (isNewPhotoId(photoId)) {
+				return photoId;
+			}
+		}
+
+		// most visible photos have been seen, choose uniformly among the remaining ones
+		int result = -1;
+		int noNewPhotoIds = 0;
+		for (int photoId : visiblePhotoIds.toArray()) {
+			if (isNewPhotoId(photoId) && randomNumber.nextInt(++noNewPhotoIds) == 0) {
+				result = photoId;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isNewPhotoId(int photoId) {
+		return !processedPhotoIds.contains(photoId) && !skippedPhotoIds.contains(photoId);
+	}
+
+	/**
+	 * Only called if there are filter conditions, see {@link #generateDisplayablePhotoIds()}.
 	 */
 	protected List<PhotoId> getFilteredPhotoIds() {
 		// get all tags that match the filter conditions
-		List<PhotoId> result = new LinkedList<PhotoId>();
-		int noFilterConditions = getFilterConditions().size();
+		List<PhotoId> result = new ArrayList<PhotoId>();
+		List<String> filterConditions = getFilterConditions();
+		int noFilterConditions = filterConditions.size();
 		log.config(LogBuilder.createSystemMessage().
 				addParameter("Number of filter conditions", String.valueOf(noFilterConditions)).toString());
 
-		Collection<PhotoId> candidates;
-		if (noFilterConditions == 0) {
-			candidates = PhotoManager.getInstance().getPhotoCache().keySet();
-		} else {
-			List<Tag> tags = new LinkedList<Tag>();
-			candidates = new LinkedList<PhotoId>();
-			for (String condition : getFilterConditions()) {
-				PhotoManager.getInstance().addTagsThatMatchCondition(tags, condition);
-			}
-			// get the list of all photo ids that correspond to the tags
-			for (Tag tag : tags) {
-				candidates.add(PhotoId.getIdFromString(tag.getPhotoId()));
+		// the query finds photos saved by other instances, the in-memory tag index the photos saved by this instance
+		// that the eventually consistent query may not return yet
+		if (queriedPhotoIds == null) {
+			queriedPhotoIds = PhotoManager.getInstance().findPhotoIdsByConditions(filterConditions);
+		}
+		PhotoIdSet photoIds = new PhotoIdSet(queriedPhotoIds);
+		for (int photoId : PhotoManager.getInstance().getPhotoTagIndex().getPhotoIds(filterConditions)) {
+			photoIds.add(photoId);
+		}
+		List<PhotoId> candidates = new ArrayList<PhotoId>(photoIds.size());
+		for (PhotoId candidateId : photoIds) {
+			if (!candidateId.isNullId()) {
+				candidates.add(candidateId);
 			}
 		}
 
 		int newPhotos = 0;
 		for (PhotoId candidateId : candidates) {
 			Photo photoCandidate = PhotoManager.getInstance().getPhoto(candidateId);
-			if (!processedPhotoIds.contains(candidateId) && !skippedPhotoIds.contains(candidateId) &&
-					photoCandidate.isVisible()) {
+			if (photoCandidate != null && !processedPhotoIds.contains(candidateId) &&
+					!skippedPhotoIds.contains(candidateId) && photoCandidate.isVisible()) {
 				result.add(candidateId);
 				++newPhotos;
 			}
@@ -40,6 +40,11 @@ public class PhotoId implements Serializable {
 	 */
 	public static final int BUFFER_SIZE_INCREMENT = 64;
 
+	/**
+	 * "x" and the digits of the largest int in base 36
+	 */
+	public static final int MAX_STRING_LENGTH = 1 + 7;
+
 	/**
 	 *
 	 */
@@ -226,6 +231,25 @@ public class PhotoId implements Serializable {
 		return "x" + result.toString();
 	}
 
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if the value has the format of a photo id string, an "x" followed by lower case letters and digits.
+	 */
+	public static boolean isValidString(String value) {
+		if (value == null || value.length() < 2 || value.length() > MAX_STRING_LENGTH || value.charAt(0) != 'x') {
+			return false;
+		}
+
+		for (int i = 1; i < value.length(); i++) {
+			char letterOrDigit = value.charAt(i);
+			if (!(letterOrDigit >= '0' && letterOrDigit <= '9') && !(letterOrDigit >= 'a' && letterOrDigit <= 'z')) {
+				return false;
+			}
+		}
+		return true;
+	}
+
 	/**
 	 *
 	 */
@@ -0,0 +1,104 @@
+package org.wahlzeit.model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * An unordered array of distinct photo ints with O(1) add, remove, membership test and random access. Removal moves
+ * the last element into the gap; the position of each member is kept in a second array indexed by the photo int.
+ */
+public class PhotoIdArray {
+
+	/**
+	 *
+	 */
+	protected static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Members in no particular order
+	 */
+	protected int[] photoIds = new int[INITIAL_CAPACITY];
+	protected int size = 0;
+
+	/**
+	 * Position of each member in photoIds plus one, 0 for non-members
+	 */
+	protected int[] positions = new int[INITIAL_CAPACITY];
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized boolean add(int photoId) {
+		if (contains(photoId)) {
+			return false;
+		}
+
+		if (size == photoIds.length) {
+			photoIds = Arrays.copyOf(photoIds, size * 2);
+		}
+		if (photoId >= positions.length) {
+			positions = Arrays.copyOf(positions, Math.max(photoId + 1, positions.length * 2));
+		}
+		photoIds[size] = photoId;
+		positions[photoId] = ++size;
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized boolean remove(int photoId) {
+		if (!contains(photoId)) {
+			return false;
+		}
+
+		int position = positions[photoId] - 1;
+		int last = photoIds[--size];
+		photoIds[position] = last;
+		positions[last] = position + 1;
+		positions[photoId] = 0;
+		return true;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean contains(int photoId) {
+		return photoId >= 0 && photoId < positions.length && positions[photoId] != 0;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the member at the given position; positions change when members are removed.
+	 */
+	public synchronized int get(int position) {
+		if (position < 0 || position >= size) {
+			throw new IndexOutOfBoundsException("position " + position + " of " + size);
+		}
+		return photoIds[position];
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a random member or -1 if the array is empty.
+	 */
+	public synchronized int getRandom(Random random) {
+		return size == 0 ? -1 : photoIds[random.nextInt(size)];
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public synchronized int[] toArray() {
+		return Arrays.copyOf(photoIds, size);
+	}
+}
@@ -0,0 +1,153 @@
+package org.wahlzeit.model;
+
+import java.io.Serializable;
+import java.util.AbstractSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A set of photo ids that is backed by a bit set indexed by {@link PhotoId#asInt()}. Membership tests, adding and
+ * removing are O(1); the memory needed is bounded by the largest photo id (one bit per photo), which also keeps the
+ * serialized form in sessions and the datastore small. Iteration is in ascending order of the ids.
+ */
+public class PhotoIdSet extends AbstractSet<PhotoId> implements Serializable {
+
+	/**
+	 *
+	 */
+	protected BitSet bits = new BitSet();
+	protected int size = 0;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoIdSet() {
+		// do nothing
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public PhotoIdSet(Collection<PhotoId> photoIds) {
+		addAll(photoIds);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	@Override
+	public boolean contains(Object o) {
+		return o instanceof PhotoId && contains(((PhotoId) o).asInt());
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean contains(int photoId) {
+		return photoId >= 0 && bits.get(photoId);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public boolean add(PhotoId photoId) {
+		return add(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public boolean add(int photoId) {
+		if (bits.get(photoId)) {
+			return false;
+		}
+		bits.set(photoId);
+		size++;
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public boolean remove(Object o) {
+		return o instanceof PhotoId && remove(((PhotoId) o).asInt());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public boolean remove(int photoId) {
+		if (!contains(photoId)) {
+			return false;
+		}
+		bits.clear(photoId);
+		size--;
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	@Override
+	public void clear() {
+		// a new bit set releases the memory of the old one
+		bits = new BitSet();
+		size = 0;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	@Override
+	public Iterator<PhotoId> iterator() {
+		return new Iterator<PhotoId>() {
+			private int next = bits.nextSetBit(0);
+			private int last = -1;
+
+			@Override
+			public boolean hasNext() {
+				return next >= 0;
+			}
+
+			@Override
+			public PhotoId next() {
+				if (next < 0) {
+					throw new NoSuchElementException();
+				}
+				last = next;
+				next = bits.nextSetBit(next + 1);
+				return asPhotoId(last);
+			}
+
+			@Override
+			public void remove() {
+				if (last < 0) {
+					throw new IllegalStateException();
+				}
+				PhotoIdSet.this.remove(last);
+				last = -1;
+			}
+		};
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected PhotoId asPhotoId(int photoId) {
+		PhotoId result = PhotoId.getIdFromInt(photoId);
+		// ids above the current id are not handed out by PhotoId, but may still be members
+		return result.asInt() == photoId ? result : new PhotoId(photoId);
+	}
+}
@@ -0,0 +1,524 @@
+package org.wahlzeit.model;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.SessionManager;
+import org.wahlzeit.services.SysSession;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Imports a directory tree of photos in bulk, e.g. to seed or migrate an installation. Files in the root directory
+ * belong to the default user, files below a subdirectory to the user whose id is the name of the subdirectory; unknown
+ * users are created. Photos are read and scaled, and their images are stored, on a bounded pool of workers, while the
+ * photos themselves are written to the Datastore in batches. The files of each written batch are recorded in the
+ * checkpoint file, so an interrupted import continues where it stopped when it is started again.
+ *
+ * Workers need the App Engine environment of the request that runs the import, so they are created by
+ * {@link ThreadManager#currentRequestThreadFactory()} unless another thread factory is given; outside of a request,
+ * they are plain threads. If no worker can be created, the files are imported on the calling thread.
+ */
+public class PhotoImporter {
+
+	private static final Logger log = Logger.getLogger(PhotoImporter.class.getName());
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_NO_THREADS = Runtime.getRuntime().availableProcessors();
+	public static final int DEFAULT_BATCH_SIZE = 50;
+
+	/**
+	 * Progress is reported after a batch if this many milliseconds have passed since the last report
+	 */
+	public static final long REPORT_INTERVAL = 10 * 1000;
+
+	/**
+	 * Files with these endings are imported, compared in lower case
+	 */
+	protected static final String[] PHOTO_FILE_ENDINGS = {".jpg", ".jpeg", ".png", ".gif"};
+
+	/**
+	 *
+	 */
+	protected final int noThreads;
+	protected final int batchSize;
+	protected final Path checkpointFile;
+	protected final ThreadFactory threadFactory;
+
+	/**
+	 * Files that have been imported by this or a previous run, relative to the photo directory
+	 */
+	protected final Set<String> importedFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	/**
+	 * Imported photos that still have to be written, guarded by this; batches are written outside of that lock
+	 */
+	protected List<Photo> pendingPhotos = new ArrayList<Photo>();
+	protected List<String> pendingFiles = new ArrayList<String>();
+	protected long pendingBytes = 0;
+
+	/**
+	 *
+	 */
+	protected final Map<String, User> users = new HashMap<String, User>();
+
+	/**
+	 *
+	 */
+	protected final AtomicInteger noImportedPhotos = new AtomicInteger();
+	protected final AtomicLong noImportedBytes = new AtomicLong();
+	protected final AtomicInteger noSkippedFiles = new AtomicInteger();
+	protected final AtomicInteger noFailedFiles = new AtomicInteger();
+	protected long startTime;
+
+	/**
+	 * Serializes the writes of the checkpoint file, guards the last report time
+	 */
+	protected final Object checkpointLock = new Object();
+	protected long lastReportTime;
+
+	/**
+	 * @methodtype constructor
+	 *
+	 * The checkpoint file may be null, then the import cannot be resumed.
+	 */
+	public PhotoImporter(int noThreads, int batchSize, File checkpointFile) {
+		this(noThreads, batchSize, checkpointFile, null);
+	}
+
+	/**
+	 * @methodtype constructor
+	 *
+	 * If the thread factory is null, the workers are created as threads of the current request, or as plain threads
+	 * outside of a request.
+	 */
+	public PhotoImporter(int noThreads, int batchSize, File checkpointFile, ThreadFactory threadFactory) {
+		if (noThreads <= 0 || batchSize <= 0) {
+			throw new IllegalArgumentException("number of threads and batch size must be positive");
+		}
+		this.noThreads = noThreads;
+		this.batchSize = batchSize;
+		this.checkpointFile = checkpointFile != null ? checkpointFile.toPath() : null;
+		this.threadFactory = threadFactory;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Imports all photos below the photo directory that have not been imported before. Blocks until all photos are
+	 * written and returns the number of photos imported by this run.
+	 */
+	public int importPhotos(File photoDir, final User defaultUser) throws IOException, InterruptedException {
+		final Path rootDir = photoDir.toPath();
+		if (!Files.isDirectory(rootDir)) {
+			throw new IOException("Not a directory: " + photoDir);
+		}
+		readCheckpoint();
+
+		startTime = System.currentTimeMillis();
+		lastReportTime = startTime;
+		// files are handed to idle workers directly; if there is none and no worker can be added, the caller imports
+		final ThreadPoolExecutor executor = new ThreadPoolExecutor(noThreads, noThreads, 0, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<Runnable>(), createWorkerFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+		// bounds the photos in memory: each submitted file holds its image and the scaled sizes until it is written
+		final Semaphore submittedFiles = new Semaphore(2 * noThreads);
+
+		try {
+			Files.walkFileTree(rootDir, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(final Path file, BasicFileAttributes attributes) throws IOException {
+					final String relativeName = asRelativeName(rootDir, file);
+					if (!attributes.isRegularFile() || !isPhotoFile(file)) {
+						return FileVisitResult.CONTINUE;
+					} else if (importedFiles.contains(relativeName)) {
+						noSkippedFiles.incrementAndGet();
+						return FileVisitResult.CONTINUE;
+					}
+
+					final User user = getUser(rootDir.relativize(file), defaultUser);
+					if (user == null) {
+						noFailedFiles.incrementAndGet();
+						return FileVisitResult.CONTINUE;
+					}
+
+					submittedFiles.acquireUninterruptibly();
+					executor.execute(new Runnable() {
+						@Override
+						public void run() {
+							try {
+								importFile(user, file, relativeName);
+							} finally {
+								submittedFiles.release();
+							}
+						}
+					});
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} finally {
+			executor.shutdown();
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		}
+
+		flush();
+		log.info(asString());
+		return noImportedPhotos.get();
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Wraps the thread factory, so each worker has a session of its own. Returns no thread if the thread factory
+	 * fails, which is only logged for the first worker.
+	 */
+	protected ThreadFactory createWorkerFactory() {
+		final ThreadFactory factory = threadFactory != null ? threadFactory : getDefaultThreadFactory();
+		final AtomicBoolean isFailureLogged = new AtomicBoolean();
+		return new ThreadFactory() {
+			private final AtomicInteger noThreadsCreated = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				final String name = "photo-import-" + noThreadsCreated.incrementAndGet();
+				try {
+					Thread result = factory.newThread(new Runnable() {
+						@Override
+						public void run() {
+							SessionManager.setThreadLocalSession(new SysSession(name));
+							runnable.run();
+						}
+					});
+					result.setName(name);
+					return result;
+				} catch (RuntimeException ex) {
+					if (!isFailureLogged.getAndSet(true)) {
+						log.warning(LogBuilder.createSystemMessage().
+								addException("Cannot create import workers, importing on caller", ex).toString());
+					}
+					return null;
+				}
+			}
+		};
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the thread factory of the current request. Outside of a request, e.g. in the ImportPhotos tool, there is
+	 * none, so plain threads are created that take over the API environment of the caller, if it has one.
+	 */
+	protected ThreadFactory getDefaultThreadFactory() {
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		ThreadFactory result = environment != null ? ThreadManager.currentRequestThreadFactory() : null;
+		if (result != null) {
+			return result;
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addMessage("not in a request, importing on plain threads").toString());
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						if (environment != null) {
+							ApiProxy.setEnvironmentForCurrentThread(environment);
+						}
+						runnable.run();
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Imports a single file on a worker; failures are logged, so the file is tried again by the next run.
+	 */
+	protected void importFile(final User user, final Path file, final String relativeName) {
+		try {
+			ObjectifyService.run(new Work<Void>() {
+				@Override
+				public Void run() {
+					try {
+						byte[] imageData = Files.readAllBytes(file);
+						Photo photo = createPhoto(user, file.getFileName().toString(), imageData);
+						addToBatch(photo, relativeName, imageData.length);
+					} catch (Exception ex) {
+						throw new RuntimeException(ex);
+					}
+					return null;
+				}
+			});
+		} catch (RuntimeException ex) {
+			noFailedFiles.incrementAndGet();
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("file", relativeName).
+					addException("Problem when importing photo", ex).toString());
+		}
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Creates the photo with all of its sizes, assigns it to the user and stores its images right away, so storing
+	 * is spread over the workers instead of being done when the batch is written.
+	 */
+	protected Photo createPhoto(User user, String fileName, byte[] imageData) throws Exception {
+		Image image = ImagesServiceFactory.makeImage(imageData);
+		Photo result = PhotoManager.getInstance().createPhoto(fileName, image, false);
+		synchronized (user) {
+			user.addPhoto(result);
+		}
+
+		Map<Integer, Image> images = new LinkedHashMap<Integer, Image>();
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			Image scaledImage = result.getImage(photoSize);
+			if (scaledImage != null) {
+				images.put(photoSize.asInt(), scaledImage);
+			}
+		}
+		if (!images.isEmpty()) {
+			ImageStorage.getInstance().writeImages(images, result.getImageIdAsString());
+		}
+		if (!PhotoManager.getInstance().isLoadImagesOnStartUp()) {
+			// the images are stored, so writing the batch does not look them up again
+			for (PhotoSize photoSize : PhotoSize.values()) {
+				result.removeImage(photoSize);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void addToBatch(Photo photo, String relativeName, long noBytes) throws IOException {
+		boolean isBatchFull;
+		synchronized (this) {
+			pendingPhotos.add(photo);
+			pendingFiles.add(relativeName);
+			pendingBytes += noBytes;
+			isBatchFull = pendingPhotos.size() >= batchSize;
+		}
+		if (isBatchFull) {
+			flush();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Takes the pending photos and writes them, then records their files in the checkpoint file. Only taking the
+	 * photos holds the lock, so the other workers can go on adding photos while a batch is written.
+	 */
+	protected void flush() throws IOException {
+		List<Photo> photos;
+		List<String> files;
+		long noBytes;
+		synchronized (this) {
+			if (pendingPhotos.isEmpty()) {
+				return;
+			}
+
+			photos = pendingPhotos;
+			files = pendingFiles;
+			noBytes = pendingBytes;
+			pendingPhotos = new ArrayList<Photo>();
+			pendingFiles = new ArrayList<String>();
+			pendingBytes = 0;
+		}
+
+		// the ids of the photos are saved first, so they are not handed out again if the import is interrupted
+		writeBatch(photos);
+		synchronized (checkpointLock) {
+			writeCheckpoint(files);
+			importedFiles.addAll(files);
+
+			noImportedPhotos.addAndGet(photos.size());
+			noImportedBytes.addAndGet(noBytes);
+			long now = System.currentTimeMillis();
+			if (now - lastReportTime >= REPORT_INTERVAL) {
+				lastReportTime = now;
+				log.info(asString());
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty hook
+	 */
+	protected void writeBatch(List<Photo> photos) {
+		GlobalsManager.getInstance().saveGlobals();
+		PhotoManager.getInstance().savePhotos(photos);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void readCheckpoint() throws IOException {
+		if (checkpointFile != null && Files.isRegularFile(checkpointFile)) {
+			for (String line : Files.readAllLines(checkpointFile, StandardCharsets.UTF_8)) {
+				if (!line.isEmpty()) {
+					importedFiles.add(line);
+				}
+			}
+			log.config(LogBuilder.createSystemMessage().
+					addAction("read checkpoint").
+					addParameter("imported files", importedFiles.size()).toString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeCheckpoint(List<String> files) throws IOException {
+		if (checkpointFile == null) {
+			return;
+		}
+
+		BufferedWriter writer = Files.newBufferedWriter(checkpointFile, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+		try {
+			for (String file : files) {
+				writer.write(file);
+				writer.newLine();
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the owner of the file: the default user for files in the root directory, otherwise the user named like
+	 * the first subdirectory, who is created if unknown. Returns null if that user cannot be created.
+	 */
+	protected User getUser(Path relativeFile, User defaultUser) {
+		if (relativeFile.getNameCount() == 1) {
+			return defaultUser;
+		}
+
+		String userId = relativeFile.getName(0).toString();
+		if (users.containsKey(userId)) {
+			return users.get(userId);
+		}
+
+		User result = null;
+		try {
+			result = UserManager.getInstance().getUserById(userId);
+			if (result == null) {
+				String emailAddress = defaultUser.getEmailAddress().asString();
+				result = new User(userId, userId, userId + emailAddress.substring(emailAddress.indexOf("@")));
+			}
+		} catch (RuntimeException ex) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("user", userId).
+					addException("Problem when creating user", ex).toString());
+		}
+		users.put(userId, result);
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isPhotoFile(Path file) {
+		String fileName = file.getFileName().toString().toLowerCase(Locale.ENGLISH);
+		for (String ending : PHOTO_FILE_ENDINGS) {
+			if (fileName.endsWith(ending)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected String asRelativeName(Path rootDir, Path file) {
+		return rootDir.relativize(file).toString().replace(File.separatorChar, '/');
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoImportedPhotos() {
+		return noImportedPhotos.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoImportedBytes() {
+		return noImportedBytes.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoSkippedFiles() {
+		return noSkippedFiles.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoFailedFiles() {
+		return noFailedFiles.get();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public String asString() {
+		double seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000.0;
+		return LogBuilder.createSystemMessage().
+				addAction("import photos").
+				addParameter("photos", noImportedPhotos.get()).
+				addParameter("bytes", noImportedBytes.get()).
+				addParameter("skipped", noSkippedFiles.get()).
+				addParameter("failed", noFailedFiles.get()).
+				addParameter("photos/s", String.format(Locale.ENGLISH, "%.1f", noImportedPhotos.get() / seconds)).
+				addParameter("bytes/s", String.format(Locale.ENGLISH, "%.0f", noImportedBytes.get() / seconds)).
+				toString();
+	}
+}
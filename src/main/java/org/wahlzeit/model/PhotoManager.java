@@ -23,7 +23,11 @@ package org.wahlzeit.model;
 import com.google.appengine.api.images.Image;
 import com.googlecode.objectify.ObjectifyService;
 import com.googlecode.objectify.Work;
+import org.wahlzeit.agents.AsyncTaskExecutor;
+import org.wahlzeit.model.persistence.ImageContent;
+import org.wahlzeit.model.persistence.ImageContentIndex;
 import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.model.persistence.TieredImageStorage;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.ObjectManager;
 import org.wahlzeit.services.Persistent;
@@ -32,12 +36,22 @@ import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.logging.Logger;
 
 /**
@@ -53,20 +67,110 @@ public class PhotoManager extends ObjectManager {
 	private static final Logger log = Logger.getLogger(PhotoManager.class.getName());
 
 	/**
-	 * In-memory cache for photos
+	 * In-memory cache for photos, accessed concurrently by request threads
 	 */
-	protected Map<PhotoId, Photo> photoCache = new HashMap<PhotoId, Photo>();
+	protected ConcurrentMap<PhotoId, Photo> photoCache = new ConcurrentHashMap<PhotoId, Photo>();
+
+	/**
+	 * Loads of photos that are currently in progress; concurrent requests for the same photo wait for the same load
+	 */
+	protected ConcurrentMap<PhotoId, FutureTask<Photo>> pendingPhotoLoads =
+			new ConcurrentHashMap<PhotoId, FutureTask<Photo>>();
 
 	/**
 	 *
 	 */
 	protected PhotoTagCollector photoTagCollector = null;
 
+	/**
+	 * Filter conditions of all photos in the cache, see {@link PhotoFilter}
+	 */
+	protected final PhotoTagIndex photoTagIndex = new PhotoTagIndex();
+
+	/**
+	 * Ints of all visible photos in the cache, maintained on add and status change
+	 */
+	protected final PhotoIdArray visiblePhotoIds = new PhotoIdArray();
+
+	/**
+	 * Weights of all visible photos in the cache for each non-uniform weighting
+	 */
+	protected final Map<PhotoWeighting, WeightedPhotoSampler> photoSamplers =
+			new EnumMap<PhotoWeighting, WeightedPhotoSampler>(PhotoWeighting.class);
+
+	/**
+	 * Time relative to which the recency weights are computed, moved along with the newest visible photo; guarded by
+	 * photoSamplers
+	 */
+	protected long recencyReferenceTime = 0;
+
+	/**
+	 * Number of photos that are read from the datastore with one query when loading photos
+	 */
+	public static final int DEFAULT_LOAD_PAGE_SIZE = 500;
+
+	/**
+	 *
+	 */
+	protected int loadPageSize = DEFAULT_LOAD_PAGE_SIZE;
+
+	/**
+	 * If false, only the photo metadata is loaded at startup and images are loaded on first access
+	 */
+	protected boolean loadImagesOnStartUp = true;
+
+	/**
+	 * If true, only the largest size and the thumbnail are created at upload, other sizes on first access
+	 */
+	protected boolean createSizesOnDemand = false;
+
+	/**
+	 * Images that are being created on demand by photo id and size
+	 */
+	protected ConcurrentMap<String, FutureTask<Image>> pendingImageCreations =
+			new ConcurrentHashMap<String, FutureTask<Image>>();
+
+	/**
+	 * The datastore accepts at most this many values in an IN filter
+	 */
+	public static final int MAX_CONDITIONS_PER_QUERY = 30;
+
+	/**
+	 * Write-behind of frequently changed photos: a flush task is requested when this many photos are waiting or when
+	 * the oldest change is older than the maximum write delay (in milliseconds). The pending changes are only held in
+	 * the memory of the instance, but the flush task may be served by any instance. So a request thread flushes itself
+	 * if the requested flush has not happened within the maximum write delay, or if the number of waiting photos grows
+	 * to the backstop factor times the maximum. This bounds the changes lost by an instance that is stopped without
+	 * shutDown() to about twice the maximum write delay.
+	 */
+	public static final int DEFAULT_MAX_DIRTY_PHOTOS = 100;
+	public static final long DEFAULT_MAX_WRITE_DELAY = 60 * 1000;
+	public static final int FLUSH_BACKSTOP_FACTOR = 5;
+
+	/**
+	 *
+	 */
+	protected int maxDirtyPhotos = DEFAULT_MAX_DIRTY_PHOTOS;
+	protected long maxWriteDelay = DEFAULT_MAX_WRITE_DELAY;
+
+	/**
+	 * Ids of photos that have been changed since the last flush, each recorded once; guarded by itself
+	 */
+	protected final Set<PhotoId> dirtyPhotoIds = new LinkedHashSet<PhotoId>();
+	protected long oldestDirtyPhotoTime = 0;
+	protected boolean isFlushRequested = false;
+	protected long flushRequestTime = 0;
+
 	/**
 	 *
 	 */
 	public PhotoManager() {
 		photoTagCollector = PhotoFactory.getInstance().createPhotoTagCollector();
+		for (PhotoWeighting weighting : PhotoWeighting.values()) {
+			if (weighting != PhotoWeighting.UNIFORM) {
+				photoSamplers.put(weighting, new WeightedPhotoSampler());
+			}
+		}
 	}
 
 	/**
@@ -94,7 +198,7 @@ public class PhotoManager extends ObjectManager {
 	 *
 	 */
 	public final Photo getPhoto(PhotoId id) {
-		return instance.getPhotoFromId(id);
+		return getPhotoFromId(id);
 	}
 
 	/**
@@ -108,15 +212,62 @@ public class PhotoManager extends ObjectManager {
 		Photo result = doGetPhotoFromId(id);
 
 		if (result == null) {
-			result = PhotoFactory.getInstance().loadPhoto(id);
-			if (result != null) {
-				doAddPhoto(result);
-			}
+			result = loadPhotoOnce(id);
 		}
 
 		return result;
 	}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Loads the photo with the given id and adds it to the cache. If other threads ask for the same photo while it is
+	 * loaded, they wait for that load instead of loading the photo again.
+	 */
+	protected Photo loadPhotoOnce(final PhotoId id) {
+		FutureTask<Photo> newLoad = new FutureTask<Photo>(new Callable<Photo>() {
+			@Override
+			public Photo call() {
+				// a previous load may have finished in the meantime
+				Photo result = doGetPhotoFromId(id);
+				if (result == null) {
+					result = doLoadPhoto(id);
+					if (result != null) {
+						doAddPhoto(result);
+					}
+				}
+				return result;
+			}
+		});
+
+		FutureTask<Photo> load = pendingPhotoLoads.putIfAbsent(id, newLoad);
+		if (load == null) {
+			load = newLoad;
+			try {
+				newLoad.run();
+			} finally {
+				pendingPhotoLoads.remove(id, newLoad);
+			}
+		}
+
+		try {
+			return load.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			throw new IllegalStateException("Loading photo " + id.asString() + " failed", e.getCause());
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected Photo doLoadPhoto(PhotoId id) {
+		return PhotoFactory.getInstance().loadPhoto(id);
+	}
+
 	/**
 	 * @methodtype get
 	 * @methodproperties primitive
@@ -131,6 +282,114 @@ public class PhotoManager extends ObjectManager {
 	 */
 	protected void doAddPhoto(Photo myPhoto) {
 		photoCache.put(myPhoto.getId(), myPhoto);
+		indexTags(myPhoto);
+		updateVisiblePhotoIds(myPhoto);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the photo to or removes it from the visible photos, depending on its status. Photos that are not in the
+	 * cache of this manager are ignored.
+	 */
+	public void updateVisiblePhotoIds(Photo photo) {
+		if (photoCache.get(photo.getId()) != photo) {
+			return;
+		}
+
+		if (photo.isVisible()) {
+			visiblePhotoIds.add(photo.getId().asInt());
+		} else {
+			visiblePhotoIds.remove(photo.getId().asInt());
+		}
+		updatePhotoWeights(photo);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Updates the weights of the photo for weighted random selection, invisible photos get weight 0. Photos that are
+	 * not in the cache of this manager are ignored.
+	 */
+	public void updatePhotoWeights(Photo photo) {
+		int photoId = photo.getId().asInt();
+		if (photoId <= 0 || photoCache.get(photo.getId()) != photo) {
+			return;
+		}
+
+		boolean isVisible = photo.isVisible();
+		synchronized (photoSamplers) {
+			if (isVisible && photo.getCreationTime() > recencyReferenceTime + PhotoWeighting.RECENCY_HALF_LIFE) {
+				moveRecencyReferenceTime(photo.getCreationTime());
+			}
+			for (Map.Entry<PhotoWeighting, WeightedPhotoSampler> entry : photoSamplers.entrySet()) {
+				double weight = isVisible ? entry.getKey().getWeight(photo, recencyReferenceTime) : 0.0;
+				entry.getValue().setWeight(photoId, weight);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Moves the reference time of the recency weights and rescales the existing weights to it. This takes O(n), but
+	 * happens at most once per half-life, and keeps the weights at most 2 rather than growing without bound.
+	 */
+	protected void moveRecencyReferenceTime(long newReferenceTime) {
+		double factor = PhotoWeighting.getRecencyFactor(newReferenceTime, recencyReferenceTime);
+		photoSamplers.get(PhotoWeighting.RECENCY).scaleWeights(factor);
+		recencyReferenceTime = newReferenceTime;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the weight of the photo with the given int, 0 if the photo is not visible.
+	 */
+	public double getPhotoWeight(int photoId, PhotoWeighting weighting) {
+		WeightedPhotoSampler sampler = photoSamplers.get(weighting);
+		if (sampler == null) {
+			return visiblePhotoIds.contains(photoId) ? 1.0 : 0.0;
+		}
+		return sampler.getWeight(photoId);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Draws the int of a visible photo with probability according to the weighting, -1 if there is no visible photo.
+	 */
+	public int getWeightedRandomPhotoId(PhotoWeighting weighting, Random random) {
+		WeightedPhotoSampler sampler = photoSamplers.get(weighting);
+		if (sampler == null) {
+			return visiblePhotoIds.getRandom(random);
+		}
+		return sampler.sample(random);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoIdArray getVisiblePhotoIds() {
+		return visiblePhotoIds;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Updates the filter conditions of the photo in the in-memory tag index.
+	 */
+	protected void indexTags(Photo photo) {
+		Set<String> tags = new HashSet<String>();
+		photoTagCollector.collect(tags, photo);
+		photoTagIndex.setConditions(photo.getId(), tags);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public PhotoTagIndex getPhotoTagIndex() {
+		return photoTagIndex;
 	}
 
 	/**
@@ -150,31 +409,109 @@ public class PhotoManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 *
-	 * Load all persisted photos. Executed when Wahlzeit is restarted.
+	 * Load all persisted photos page by page. Executed when Wahlzeit is restarted. Scaled images are only loaded if
+	 * loadImagesOnStartUp is set, otherwise they are loaded on first access, see {@link #getImage(Photo, PhotoSize)}.
 	 */
 	public void loadPhotos() {
-		Collection<Photo> existingPhotos = ObjectifyService.run(new Work<Collection<Photo>>() {
-			@Override
-			public Collection<Photo> run() {
-				Collection<Photo> existingPhotos = new ArrayList<Photo>();
-				readObjects(existingPhotos, Photo.class);
-				return existingPhotos;
-			}
-		});
+		long startTime = System.currentTimeMillis();
+		long usedMemoryAtStart = getUsedMemory();
+		int noLoadedPhotos = 0;
 
-		for (Photo photo : existingPhotos) {
-			if (!doHasPhoto(photo.getId())) {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Load Photo with ID", photo.getIdAsString()).toString());
-				loadScaledImages(photo);
-				doAddPhoto(photo);
-			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Already loaded Photo", photo.getIdAsString()).toString());
+		String cursor = null;
+		do {
+			final String pageCursor = cursor;
+			final Collection<Photo> existingPhotos = new ArrayList<Photo>();
+			cursor = ObjectifyService.run(new Work<String>() {
+				@Override
+				public String run() {
+					return readObjects(existingPhotos, getPhotoClass(), loadPageSize, pageCursor);
+				}
+			});
+
+			for (Photo photo : existingPhotos) {
+				if (!doHasPhoto(photo.getId())) {
+					log.config(LogBuilder.createSystemMessage().
+							addParameter("Load Photo with ID", photo.getIdAsString()).toString());
+					if (loadImagesOnStartUp) {
+						loadScaledImages(photo);
+					}
+					doAddPhoto(photo);
+					noLoadedPhotos++;
+				} else {
+					log.config(LogBuilder.createSystemMessage().
+							addParameter("Already loaded Photo", photo.getIdAsString()).toString());
+				}
 			}
+		} while (cursor != null);
+
+		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").
+				addParameter("number of photos", noLoadedPhotos).
+				addParameter("images loaded", loadImagesOnStartUp).
+				addParameter("load time in ms", System.currentTimeMillis() - startTime).
+				addParameter("additional memory in bytes", getUsedMemory() - usedMemoryAtStart).toString());
+	}
+
+	/**
+	 * @methodtype get
+	 * @methodproperty hook
+	 *
+	 * Returns the type of photos that are persisted by this manager.
+	 */
+	protected Class<? extends Photo> getPhotoClass() {
+		return Photo.class;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected long getUsedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getLoadPageSize() {
+		return loadPageSize;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setLoadPageSize(int newLoadPageSize) {
+		if (newLoadPageSize <= 0) {
+			throw new IllegalArgumentException("page size must be positive: " + newLoadPageSize);
 		}
+		loadPageSize = newLoadPageSize;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isLoadImagesOnStartUp() {
+		return loadImagesOnStartUp;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setLoadImagesOnStartUp(boolean newLoadImagesOnStartUp) {
+		loadImagesOnStartUp = newLoadImagesOnStartUp;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isCreateSizesOnDemand() {
+		return createSizesOnDemand;
+	}
 
-		log.info(LogBuilder.createSystemMessage().addMessage("All photos loaded.").toString());
+	/**
+	 * @methodtype set
+	 */
+	public void setCreateSizesOnDemand(boolean newCreateSizesOnDemand) {
+		createSizesOnDemand = newCreateSizesOnDemand;
 	}
 
 	/**
@@ -188,32 +525,260 @@ public class PhotoManager extends ObjectManager {
 	/**
 	 * @methodtype command
 	 *
-	 * Loads all scaled Images of this Photo from Google Cloud Storage
+	 * Loads all scaled Images of this Photo from the image storage with a single call.
 	 */
 	protected void loadScaledImages(Photo photo) {
-		String photoIdAsString = photo.getId().asString();
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			sizes.add(photoSize.asInt());
+		}
+
+		try {
+			Map<Integer, Serializable> images = ImageStorage.getInstance().readImages(photo.getImageIdAsString(), sizes);
+			for (Map.Entry<Integer, Serializable> entry : images.entrySet()) {
+				if (entry.getValue() instanceof Image) {
+					photo.setImage(PhotoSize.getFromInt(entry.getKey()), (Image) entry.getValue());
+				}
+			}
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("photo ID", photo.getImageIdAsString()).
+					addException("Could not load images", e).toString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads the scaled Image of this Photo in the given size from the image storage and keeps it in the photo.
+	 */
+	protected void loadScaledImage(Photo photo, PhotoSize photoSize) {
+		Image image = readScaledImage(photo, photoSize);
+		if (image != null) {
+			photo.setImage(photoSize, image);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Reads the scaled Image of this Photo in the given size from the image storage. Returns null if it does not exist.
+	 */
+	protected Image readScaledImage(Photo photo, PhotoSize photoSize) {
+		String photoIdAsString = photo.getImageIdAsString();
 		ImageStorage imageStorage = ImageStorage.getInstance();
 
-		for (PhotoSize photoSize : PhotoSize.values()) {
+		log.config(LogBuilder.createSystemMessage().
+				addAction("loading image").
+				addParameter("image size", photoSize.asString()).
+				addParameter("photo ID", photoIdAsString).toString());
+		try {
+			// the storage returns null for missing images, so there is no separate existence check
+			Serializable rawImage = imageStorage.readImage(photoIdAsString, photoSize.asInt());
+			if (rawImage instanceof Image) {
+				return (Image) rawImage;
+			}
 			log.config(LogBuilder.createSystemMessage().
-					addAction("loading image").
-					addParameter("image size", photoSize.asString()).
-					addParameter("photo ID", photoIdAsString).toString());
-			if (imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-				try {
-					Serializable rawImage = imageStorage.readImage(photoIdAsString, photoSize.asInt());
-					if (rawImage != null && rawImage instanceof Image) {
-						photo.setImage(photoSize, (Image) rawImage);
-					}
-				} catch (IOException e) {
-					log.warning(LogBuilder.createSystemMessage().
-							addParameter("size", photoSize.asString()).
-							addParameter("photo ID", photoIdAsString).
-							addException("Could not load image although it exists", e).toString());
+					addParameter("Size does not exist", photoSize.asString()).toString());
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", photoIdAsString).
+					addException("Could not load image", e).toString());
+		}
+		return null;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the Image of the photo in the given size. Images that have not been loaded at startup are read from the
+	 * image storage, which keeps recently used images in memory, see {@link TieredImageStorage}. Sizes that have not
+	 * been created yet are created from a larger size, see {@link #createImageOnce(Photo, PhotoSize)}. Returns null
+	 * if the photo does not exist in that size.
+	 */
+	public Image getImage(Photo photo, PhotoSize photoSize) {
+		Image result = photo.getImage(photoSize);
+		if (result == null && photo.hasPhotoSize(photoSize)) {
+			result = getStoredImage(photo, photoSize);
+			if (result == null) {
+				result = createImageOnce(photo, photoSize);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the Image of the photo in the given size from the photo or the image storage, without creating it.
+	 */
+	protected Image getStoredImage(Photo photo, PhotoSize photoSize) {
+		Image result = getImageFromMemory(photo, photoSize);
+		if (result == null) {
+			result = readScaledImage(photo, photoSize);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the Image of the photo in the given size if it is held by the photo or its source photo, null
+	 * otherwise.
+	 */
+	protected Image getImageFromMemory(Photo photo, PhotoSize photoSize) {
+		Image result = photo.getImage(photoSize);
+		if (result == null && photo.getImageSourceId() != null) {
+			// the images of the source photo may not have been written yet; they are only held if it is in the cache,
+			// so the source photo is not loaded for every read
+			Photo source = photoCache.get(PhotoId.getIdFromString(photo.getImageSourceId()));
+			result = source != null ? source.getImage(photoSize) : null;
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Creates the missing size of the photo from the nearest larger size that exists, persists it and keeps it like
+	 * the sizes created at upload. If other threads ask for the same image while it is created, they wait for that
+	 * creation instead of scaling the image again. Returns null if no larger size exists.
+	 */
+	protected Image createImageOnce(final Photo photo, final PhotoSize photoSize) {
+		final String key = photo.getImageIdAsString() + "-" + photoSize.asInt();
+		FutureTask<Image> newCreation = new FutureTask<Image>(new Callable<Image>() {
+			@Override
+			public Image call() {
+				// a previous creation may have finished in the meantime
+				Image result = getStoredImage(photo, photoSize);
+				if (result == null) {
+					result = doCreateImage(photo, photoSize);
 				}
-			} else {
-				log.config(LogBuilder.createSystemMessage().
-						addParameter("Size does not exist", photoSize.asString()).toString());
+				return result;
+			}
+		});
+
+		FutureTask<Image> creation = pendingImageCreations.putIfAbsent(key, newCreation);
+		if (creation == null) {
+			creation = newCreation;
+			try {
+				newCreation.run();
+			} finally {
+				pendingImageCreations.remove(key, newCreation);
+			}
+		}
+
+		try {
+			return creation.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("size", photoSize.asString()).
+					addParameter("photo ID", photo.getIdAsString()).
+					addException("Could not create image", e.getCause()).toString());
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 */
+	protected Image doCreateImage(Photo photo, PhotoSize photoSize) {
+		Image source = null;
+		int maxSize = photo.getMaxPhotoSize().asInt();
+		for (int size = photoSize.asInt() + 1; source == null && size <= maxSize; size++) {
+			source = getImageFromMemory(photo, PhotoSize.getFromInt(size));
+		}
+		if (source == null) {
+			// ask the storage for all sizes at once instead of trying to read each larger size
+			int sourceSize = maxSize + 1;
+			for (int size : ImageStorage.getInstance().existingSizes(photo.getImageIdAsString())) {
+				if (size > photoSize.asInt() && size < sourceSize) {
+					sourceSize = size;
+				}
+			}
+			if (sourceSize <= maxSize) {
+				source = getStoredImage(photo, PhotoSize.getFromInt(sourceSize));
+			}
+		}
+		if (source == null) {
+			log.warning(LogBuilder.createSystemMessage().
+					addParameter("No larger image for size", photoSize.asString()).
+					addParameter("photo ID", photo.getIdAsString()).toString());
+			return null;
+		}
+
+		Image result = PhotoUtil.createScaledImage(source, photoSize, photo.getWidth(), photo.getHeight());
+		String photoIdAsString = photo.getImageIdAsString();
+		try {
+			ImageStorage.getInstance().writeImage(result, photoIdAsString, photoSize.asInt());
+		} catch (Exception e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Problem when storing image", e).toString());
+		}
+		if (loadImagesOnStartUp) {
+			photo.setImage(photoSize, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Marks the photo as deleted and releases its images, which are deleted from the storage once no photo shows them
+	 * anymore. A deleted photo cannot be restored together with its images.
+	 */
+	public void deletePhoto(Photo photo) {
+		if (photo.getStatus().isDeleted()) {
+			return;
+		}
+
+		photo.setStatus(photo.getStatus().asDeleted(true));
+		savePhoto(photo);
+		if (photo.getContentHash() != null) {
+			releaseImageContent(photo.getContentHash());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes a reference to the images created from content with the given hash, and deletes the images if it was
+	 * the last one.
+	 */
+	protected void releaseImageContent(String contentHash) {
+		ImageContent imageContent = ImageContentIndex.getInstance().release(contentHash);
+		if (imageContent != null && imageContent.getRefCount() == 0) {
+			deleteImages(imageContent.getPhotoIdAsString());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Deletes all sizes of the images with the given id from the storage and the photo holding them.
+	 */
+	protected void deleteImages(String photoIdAsString) {
+		ImageStorage imageStorage = ImageStorage.getInstance();
+		Photo photo = photoCache.get(PhotoId.getIdFromString(photoIdAsString));
+		if (photo != null) {
+			for (PhotoSize photoSize : PhotoSize.values()) {
+				photo.removeImage(photoSize);
+			}
+		}
+
+		for (int size : imageStorage.existingSizes(photoIdAsString)) {
+			try {
+				imageStorage.deleteImage(photoIdAsString, size);
+			} catch (IOException e) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("size", size).
+						addParameter("photo ID", photoIdAsString).
+						addException("Could not delete image", e).toString());
 			}
 		}
 	}
@@ -225,82 +790,315 @@ public class PhotoManager extends ObjectManager {
 		updateObject(photo);
 	}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Writes the photos with batched Datastore writes, regardless of whether they have been marked dirty.
+	 */
+	public void savePhotos(List<? extends Photo> photos) {
+		writeObjects(photos);
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Records that the photo entity has been changed, e.g. by praise, it is persisted with the next flush. Repeated
+	 * changes of the same photo between two flushes result in a single write. Changes of images, tags or the owner
+	 * must be saved with {@link #savePhoto(Photo)} instead.
+	 */
+	public void markPhotoDirty(Photo photo) {
+		assertIsNonNullArgument(photo, "photo");
+
+		boolean doRequestFlush = false;
+		boolean doFlush;
+		long now = System.currentTimeMillis();
+		synchronized (dirtyPhotoIds) {
+			if (dirtyPhotoIds.isEmpty()) {
+				oldestDirtyPhotoTime = now;
+			}
+			dirtyPhotoIds.add(photo.getId());
+			// the requested flush has been served by another instance or has failed
+			boolean isFlushOverdue = isFlushRequested && now - flushRequestTime >= maxWriteDelay;
+			if (!isFlushRequested &&
+					(dirtyPhotoIds.size() >= maxDirtyPhotos || now - oldestDirtyPhotoTime >= maxWriteDelay)) {
+				isFlushRequested = true;
+				flushRequestTime = now;
+				doRequestFlush = true;
+			}
+			doFlush = isFlushOverdue || dirtyPhotoIds.size() >= FLUSH_BACKSTOP_FACTOR * maxDirtyPhotos;
+		}
+
+		if (doFlush) {
+			flushDirtyPhotos();
+		} else if (doRequestFlush) {
+			requestFlush();
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty hook
+	 *
+	 * Enqueues a task that flushes the dirty photos, so the flush does not delay the request that triggered it.
+	 */
+	protected void requestFlush() {
+		AsyncTaskExecutor.flushDirtyPhotosAsync();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Writes all photos that have been marked dirty since the last flush in one batched write of the photo entities
+	 * only, their dependents are not affected by these changes. Returns the number of written photos. If the write
+	 * fails, the photos are marked dirty again, so the next flush writes them.
+	 */
+	public int flushDirtyPhotos() {
+		List<Photo> photos = new ArrayList<Photo>();
+		long oldestFlushedPhotoTime;
+		synchronized (dirtyPhotoIds) {
+			oldestFlushedPhotoTime = oldestDirtyPhotoTime;
+			for (PhotoId id : dirtyPhotoIds) {
+				Photo photo = doGetPhotoFromId(id);
+				if (photo != null) {
+					photos.add(photo);
+				}
+			}
+			dirtyPhotoIds.clear();
+			isFlushRequested = false;
+		}
+
+		if (!photos.isEmpty()) {
+			log.config(LogBuilder.createSystemMessage().
+					addAction("flush dirty photos").
+					addParameter("number of photos", photos.size()).toString());
+			// photos changed again during the flush are marked anew, so they are written regardless of the dirty bit
+			try {
+				saveObjects(photos);
+			} catch (RuntimeException ex) {
+				synchronized (dirtyPhotoIds) {
+					if (dirtyPhotoIds.isEmpty() || oldestFlushedPhotoTime < oldestDirtyPhotoTime) {
+						oldestDirtyPhotoTime = oldestFlushedPhotoTime;
+					}
+					for (Photo photo : photos) {
+						dirtyPhotoIds.add(photo.getId());
+					}
+				}
+				throw ex;
+			}
+			for (Photo photo : photos) {
+				photo.resetWriteCount();
+			}
+		}
+		return photos.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoDirtyPhotos() {
+		synchronized (dirtyPhotoIds) {
+			return dirtyPhotoIds.size();
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getMaxDirtyPhotos() {
+		return maxDirtyPhotos;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setMaxDirtyPhotos(int newMaxDirtyPhotos) {
+		if (newMaxDirtyPhotos <= 0) {
+			throw new IllegalArgumentException("maximum number of dirty photos must be positive");
+		}
+		maxDirtyPhotos = newMaxDirtyPhotos;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxWriteDelay() {
+		return maxWriteDelay;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setMaxWriteDelay(long newMaxWriteDelay) {
+		if (newMaxWriteDelay < 0) {
+			throw new IllegalArgumentException("maximum write delay must not be negative");
+		}
+		maxWriteDelay = newMaxWriteDelay;
+	}
+
 	@Override
 	protected void updateDependents(Persistent obj) {
+		updateDependents(Collections.singletonList(obj));
+	}
+
+	/**
+	 * Images are only written for photos that hold images, and the owners of all photos are saved with one batched
+	 * write that skips owners without changes.
+	 */
+	@Override
+	protected void updateDependents(List<? extends Persistent> objects) {
+		UserManager userManager = UserManager.getInstance();
+		Set<Client> owners = new LinkedHashSet<Client>();
+		for (Persistent obj : objects) {
+			if (obj instanceof Photo) {
+				Photo photo = (Photo) obj;
+				if (photo.hasImages()) {
+					saveScaledImages(photo);
+				}
+				updateTags(photo);
+				Client owner = photo.getOwnerId() != null ? userManager.getClientById(photo.getOwnerId()) : null;
+				if (owner != null) {
+					owners.add(owner);
+				}
+			}
+		}
+		userManager.saveClients(owners);
+	}
+
+	/**
+	 * Stores the filter conditions with the photo, so the photo is found by a query on its indexed property.
+	 */
+	@Override
+	protected void prepareForWrite(Persistent obj) {
 		if (obj instanceof Photo) {
 			Photo photo = (Photo) obj;
-			saveScaledImages(photo);
-			updateTags(photo);
-			UserManager userManager = UserManager.getInstance();
-			Client owner = userManager.getClientById(photo.getOwnerId());
-			userManager.saveClient(owner);
+			Set<String> conditions = new TreeSet<String>();
+			photoTagCollector.collect(conditions, photo);
+			photo.setFilterConditions(conditions);
 		}
 	}
 
 	/**
-	 * @methodtype helper
+	 * @methodtype get
+	 *
+	 * Reads all photos that match at least one of the filter conditions from the datastore with a single query. The
+	 * datastore limits the values of an IN filter, so longer lists of conditions are split into one query per
+	 * {@link #MAX_CONDITIONS_PER_QUERY} conditions.
+	 */
+	public Set<Photo> findPhotosByConditions(Collection<String> conditions) {
+		Set<Photo> result = new HashSet<Photo>();
+		List<String> distinctConditions = new ArrayList<String>(new LinkedHashSet<String>(conditions));
+		for (int from = 0; from < distinctConditions.size(); from += MAX_CONDITIONS_PER_QUERY) {
+			List<String> chunk = new ArrayList<String>(distinctConditions.subList(from,
+					Math.min(from + MAX_CONDITIONS_PER_QUERY, distinctConditions.size())));
+			readObjects(result, getPhotoClass(), Photo.FILTER_CONDITIONS + " in", chunk);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the ids of all photos that match at least one of the filter conditions, see
+	 * {@link #findPhotosByConditions(Collection)}.
 	 */
-	public List<Tag> addTagsThatMatchCondition(List<Tag> tags, String condition) {
-		readObjects(tags, Tag.class, Tag.TEXT, condition);
-		return tags;
+	public PhotoIdSet findPhotoIdsByConditions(Collection<String> conditions) {
+		PhotoIdSet result = new PhotoIdSet();
+		for (Photo photo : findPhotosByConditions(conditions)) {
+			result.add(photo.getId());
+		}
+		return result;
 	}
 
 	/**
 	 * @methodtype command
 	 *
-	 * Persists all available sizes of the Photo. If one size exceeds the limit of the persistence layer, e.g. > 1MB for
-	 * the Datastore, it is simply not persisted.
+	 * Persists all available sizes of the Photo; sizes that have not been created are skipped. The sizes that are not
+	 * yet in the storage are written with a single call, so the storage can write them concurrently. If one size
+	 * exceeds the limit of the persistence layer, e.g. > 1MB for the Datastore, the images stay in the photo.
 	 */
 	protected void saveScaledImages(Photo photo) {
-		String photoIdAsString = photo.getId().asString();
+		String photoIdAsString = photo.getImageIdAsString();
 		ImageStorage imageStorage = ImageStorage.getInstance();
-		PhotoSize photoSize;
-		int it = 0;
-		boolean moreSizesExist = true;
-		do{
-			photoSize = PhotoSize.values()[it];
-			it++;
+		Map<PhotoSize, Image> images = new LinkedHashMap<PhotoSize, Image>();
+		Map<Integer, Image> newImages = new LinkedHashMap<Integer, Image>();
+		Set<Integer> existingSizes = null;
+		for (PhotoSize photoSize : PhotoSize.values()) {
 			Image image = photo.getImage(photoSize);
-			if (image != null) {
-				try {
-					if (!imageStorage.doesImageExist(photoIdAsString, photoSize.asInt())) {
-						imageStorage.writeImage(image, photoIdAsString, photoSize.asInt());
-					}
-				} catch (Exception e) {
-					log.warning(LogBuilder.createSystemMessage().
-							addException("Problem when storing image", e).toString());
-					moreSizesExist = false;
-				}
-			} else {
+			if (image == null) {
 				log.config(LogBuilder.createSystemMessage().
 						addParameter("No image for size", photoSize.asString()).toString());
-				moreSizesExist = false;
+				continue;
+			}
+			images.put(photoSize, image);
+			if (existingSizes == null) {
+				existingSizes = imageStorage.existingSizes(photoIdAsString);
+			}
+			if (!existingSizes.contains(photoSize.asInt())) {
+				newImages.put(photoSize.asInt(), image);
+			}
+		}
+
+		try {
+			if (!newImages.isEmpty()) {
+				imageStorage.writeImages(newImages, photoIdAsString);
 			}
-		} while (it < PhotoSize.values().length && moreSizesExist);
+		} catch (Exception e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Problem when storing images", e).toString());
+			return;
+		}
+
+		if (!loadImagesOnStartUp) {
+			// persisted images are served from the image storage instead of being kept in the photo
+			for (PhotoSize photoSize : images.keySet()) {
+				photo.removeImage(photoSize);
+			}
+		}
 	}
 
 	/**
-	 * Removes all tags of the Photo (obj) in the datastore that have been removed by the user and adds all new tags of
-	 * the photo to the datastore.
+	 * Updates the tags of the photo in the in-memory tag index. The tags are persisted as filter conditions of the
+	 * photo entity itself, see {@link #prepareForWrite(Persistent)}.
 	 */
 	protected void updateTags(Photo photo) {
-		// delete all existing tags, for the case that some have been removed
-		deleteObjects(Tag.class, Tag.PHOTO_ID, photo.getId().asString());
+		indexTags(photo);
+	}
 
-		// add all current tags to the datastore
-		Set<String> tags = new HashSet<String>();
-		photoTagCollector.collect(tags, photo);
-		for (Iterator<String> i = tags.iterator(); i.hasNext(); ) {
-			Tag tag = new Tag(i.next(), photo.getId().asString());
-			log.config(LogBuilder.createSystemMessage().addParameter("Writing Tag", tag.asString()).toString());
-			writeObject(tag);
+	/**
+	 * @methodtype command
+	 *
+	 * Migrates one batch of legacy Tag entities: the photos they refer to are saved with their filter conditions, then
+	 * the Tags are deleted. Returns the number of processed Tags, 0 if none are left. Tags are only deleted after their
+	 * photos have been saved, so an interrupted migration can simply be started again.
+	 */
+	public int migrateTags(int batchSize) {
+		List<Tag> tags = new ArrayList<Tag>();
+		readObjects(tags, Tag.class, batchSize, null);
+		if (tags.isEmpty()) {
+			return 0;
+		}
+
+		Map<PhotoId, Photo> photos = new LinkedHashMap<PhotoId, Photo>();
+		for (Tag tag : tags) {
+			Photo photo = getPhoto(tag.getPhotoId());
+			if (photo != null) {
+				photos.put(photo.getId(), photo);
+			} else {
+				log.config(LogBuilder.createSystemMessage().
+						addParameter("Drop Tag of unknown photo", tag.asString()).toString());
+			}
 		}
+
+		saveObjects(new ArrayList<Photo>(photos.values()));
+		deleteObjects(tags);
+		return tags.size();
 	}
 
 	/**
 	 *
 	 */
 	public void savePhotos() throws IOException{
+		flushDirtyPhotos();
 		updateObjects(photoCache.values());
 	}
 
@@ -337,9 +1135,95 @@ public class PhotoManager extends ObjectManager {
 	 *
 	 */
 	public Photo createPhoto(String filename, Image uploadedImage) throws Exception {
+		return createPhoto(filename, uploadedImage, true);
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * If saveGlobals is false, the globals with the last photo id are not saved, so a bulk import can save them once
+	 * per batch of photos instead of once per photo.
+	 */
+	public Photo createPhoto(String filename, Image uploadedImage, boolean saveGlobals) throws Exception {
 		PhotoId id = PhotoId.getNextId();
-		Photo result = PhotoUtil.createPhoto(filename, id, uploadedImage);
-		addPhoto(result);
+		String contentHash = ImageContentIndex.computeContentHash(uploadedImage.getImageData());
+		Photo result = createPhotoWithSameContent(filename, id, contentHash);
+		if (result == null) {
+			result = PhotoUtil.createPhoto(filename, id, uploadedImage, !createSizesOnDemand);
+			result.setContentHash(contentHash);
+			addPhoto(result, saveGlobals);
+			registerImageContent(result, contentHash);
+		} else {
+			try {
+				addPhoto(result, saveGlobals);
+			} catch (Exception ex) {
+				releaseImageContent(contentHash);
+				throw ex;
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Registers the images of the new photo for their content. If an identical upload has been registered first, the
+	 * photo shows the images of that upload instead and drops its own, which have not been stored yet. If these images
+	 * are gone in the meantime, the photo keeps its own images but no content hash, so deleting it never releases an
+	 * entry it does not hold a reference to.
+	 */
+	protected void registerImageContent(Photo photo, String contentHash) {
+		ImageContentIndex imageContentIndex = ImageContentIndex.getInstance();
+		ImageContent imageContent = imageContentIndex.register(contentHash, photo.getIdAsString(),
+				getNoImageBytes(photo));
+		if (photo.getIdAsString().equals(imageContent.getPhotoIdAsString())) {
+			return;
+		}
+
+		imageContent = imageContentIndex.acquire(contentHash);
+		if (imageContent != null) {
+			photo.setImageSourceId(imageContent.getPhotoIdAsString());
+			for (PhotoSize photoSize : PhotoSize.values()) {
+				photo.removeImage(photoSize);
+			}
+		} else {
+			photo.setContentHash(null);
+		}
+	}
+
+	/**
+	 * @methodtype creation
+	 *
+	 * Creates a photo that shows the images of an existing photo that was uploaded with the same content, so the
+	 * upload is neither scaled nor stored again. Returns null if there is no such photo.
+	 */
+	protected Photo createPhotoWithSameContent(String filename, PhotoId id, String contentHash) {
+		ImageContentIndex imageContentIndex = ImageContentIndex.getInstance();
+		ImageContent imageContent = imageContentIndex.getImageContent(contentHash);
+		Photo source = imageContent != null ? getPhoto(imageContent.getPhotoIdAsString()) : null;
+		if (source == null || imageContentIndex.acquire(contentHash) == null) {
+			return null;
+		}
+
+		Photo result = PhotoFactory.getInstance().createPhoto(id);
+		result.setEnding(filename.substring(filename.lastIndexOf(".") + 1));
+		result.setWidthAndHeight(source.getWidth(), source.getHeight());
+		result.setImageSourceId(source.getImageIdAsString());
+		result.setContentHash(contentHash);
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected long getNoImageBytes(Photo photo) {
+		long result = 0;
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			Image image = photo.getImage(photoSize);
+			if (image != null) {
+				result += image.getImageData().length;
+			}
+		}
 		return result;
 	}
 
@@ -347,11 +1231,20 @@ public class PhotoManager extends ObjectManager {
 	 * @methodtype command
 	 */
 	public void addPhoto(Photo photo) throws IOException {
+		addPhoto(photo, true);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void addPhoto(Photo photo, boolean saveGlobals) throws IOException {
 		PhotoId id = photo.getId();
 		assertIsNewPhoto(id);
 		doAddPhoto(photo);
 
-		GlobalsManager.getInstance().saveGlobals();
+		if (saveGlobals) {
+			GlobalsManager.getInstance().saveGlobals();
+		}
 	}
 
 	/**
@@ -0,0 +1,200 @@
+package org.wahlzeit.model;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * In-memory inverted index from filter conditions ("un:..." and "tg:..." strings, see {@link PhotoTagCollector}) to
+ * the ids of the photos that match them. Each condition keeps a sorted array of photo ints; the conditions of each
+ * photo are remembered as well, so a photo can be re-indexed without knowing its previous tags.
+ *
+ * @review
+ */
+public class PhotoTagIndex {
+
+	/**
+	 *
+	 */
+	protected static final int[] NO_IDS = new int[0];
+	protected static final String[] NO_CONDITIONS = new String[0];
+
+	/**
+	 * Sorted photo ints per condition
+	 */
+	protected final Map<String, PostingList> postingLists = new HashMap<String, PostingList>();
+
+	/**
+	 * Conditions per photo int
+	 */
+	protected final Map<Integer, String[]> photoConditions = new HashMap<Integer, String[]>();
+
+	/**
+	 * @methodtype command
+	 *
+	 * Replaces the conditions the photo is indexed under.
+	 */
+	public synchronized void setConditions(PhotoId photoId, Collection<String> conditions) {
+		int id = photoId.asInt();
+		doRemove(id);
+
+		String[] newConditions = conditions.toArray(new String[conditions.size()]);
+		for (String condition : newConditions) {
+			PostingList postingList = postingLists.get(condition);
+			if (postingList == null) {
+				postingList = new PostingList();
+				postingLists.put(condition, postingList);
+			}
+			postingList.add(id);
+		}
+		if (newConditions.length > 0) {
+			photoConditions.put(id, newConditions);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void remove(PhotoId photoId) {
+		doRemove(photoId.asInt());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void doRemove(int id) {
+		String[] oldConditions = photoConditions.remove(id);
+		if (oldConditions == null) {
+			return;
+		}
+
+		for (String condition : oldConditions) {
+			PostingList postingList = postingLists.get(condition);
+			if (postingList != null) {
+				postingList.remove(id);
+				if (postingList.size == 0) {
+					postingLists.remove(condition);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the sorted ints of all photos that match at least one of the conditions, each int once.
+	 */
+	public synchronized int[] getPhotoIds(Collection<String> conditions) {
+		if (conditions.size() == 1) {
+			PostingList postingList = postingLists.get(conditions.iterator().next());
+			return postingList == null ? NO_IDS : Arrays.copyOf(postingList.ids, postingList.size);
+		}
+
+		int[] result = NO_IDS;
+		for (String condition : conditions) {
+			PostingList postingList = postingLists.get(condition);
+			if (postingList != null) {
+				result = union(result, result.length, postingList.ids, postingList.size);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized String[] getConditions(PhotoId photoId) {
+		String[] conditions = photoConditions.get(photoId.asInt());
+		return conditions == null ? NO_CONDITIONS : conditions.clone();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getNoConditions() {
+		return postingLists.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getNoPhotos() {
+		return photoConditions.size();
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void clear() {
+		postingLists.clear();
+		photoConditions.clear();
+	}
+
+	/**
+	 * @methodtype helper
+	 *
+	 * Merges two sorted arrays without duplicates into a new sorted array without duplicates.
+	 */
+	protected static int[] union(int[] a, int aSize, int[] b, int bSize) {
+		int[] result = new int[aSize + bSize];
+		int i = 0, j = 0, k = 0;
+		while (i < aSize && j < bSize) {
+			if (a[i] < b[j]) {
+				result[k++] = a[i++];
+			} else if (a[i] > b[j]) {
+				result[k++] = b[j++];
+			} else {
+				result[k++] = a[i++];
+				j++;
+			}
+		}
+		while (i < aSize) {
+			result[k++] = a[i++];
+		}
+		while (j < bSize) {
+			result[k++] = b[j++];
+		}
+		return k == result.length ? result : Arrays.copyOf(result, k);
+	}
+
+	/**
+	 * Sorted, growable array of photo ints
+	 */
+	protected static class PostingList {
+
+		protected int[] ids = new int[4];
+		protected int size = 0;
+
+		/**
+		 * @methodtype command
+		 */
+		protected void add(int id) {
+			int position = Arrays.binarySearch(ids, 0, size, id);
+			if (position >= 0) {
+				return;
+			}
+
+			position = -(position + 1);
+			if (size == ids.length) {
+				ids = Arrays.copyOf(ids, size * 2);
+			}
+			System.arraycopy(ids, position, ids, position + 1, size - position);
+			ids[position] = id;
+			size++;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		protected void remove(int id) {
+			int position = Arrays.binarySearch(ids, 0, size, id);
+			if (position < 0) {
+				return;
+			}
+
+			System.arraycopy(ids, position + 1, ids, position, size - position - 1);
+			size--;
+		}
+	}
+}
@@ -26,6 +26,11 @@ import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.appengine.api.images.Transform;
 import org.wahlzeit.services.LogBuilder;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Logger;
 
 /**
@@ -40,10 +45,21 @@ public class PhotoUtil {
 	 * @methodtype creation
 	 */
 	public static Photo createPhoto(String filename, PhotoId id, Image uploadedImage) throws Exception {
+		return createPhoto(filename, id, uploadedImage, true);
+	}
+
+	/**
+	 * @methodtype creation
+	 *
+	 * If allSizes is false, only the largest size and the thumbnail are created, see
+	 * {@link #createImageFiles(Image, Photo, boolean)}.
+	 */
+	public static Photo createPhoto(String filename, PhotoId id, Image uploadedImage, boolean allSizes)
+			throws Exception {
 		Photo result = PhotoFactory.getInstance().createPhoto(id);
 		result.setEnding(filename.substring(filename.lastIndexOf(".") + 1));
 
-		createImageFiles(uploadedImage, result);
+		createImageFiles(uploadedImage, result, allSizes);
 
 		int sourceWidth = uploadedImage.getWidth();
 		int sourceHeight = uploadedImage.getHeight();
@@ -53,20 +69,72 @@ public class PhotoUtil {
 	}
 
 	/**
-	 *
+	 * Scales the source to all sizes it is large enough for. Only the largest of these sizes is scaled from the source;
+	 * the others are scaled from larger intermediate images. The sizes form a binary tree, largest first, in which
+	 * each size is scaled from its parent, so the sizes of one level are independent of each other and are scaled
+	 * concurrently. For six sizes, this takes three rounds instead of six.
 	 */
 	public static void createImageFiles(Image source, Photo photo) throws Exception {
+		createImageFiles(source, photo, true);
+	}
+
+	/**
+	 * If allSizes is false, only the largest size that fits and the thumbnail are created; the other sizes are created
+	 * on first request, see {@link PhotoManager#getImage(Photo, PhotoSize)}.
+	 */
+	public static void createImageFiles(Image source, Photo photo, boolean allSizes) throws Exception {
 		assertIsValidImage(source);
 
 		int sourceWidth = source.getWidth();
 		int sourceHeight = source.getHeight();
 		assertHasValidSize(sourceWidth, sourceHeight);
 
+		List<PhotoSize> sizes = new ArrayList<PhotoSize>();
 		for (PhotoSize size : PhotoSize.values()) {
 			if (!size.isWiderAndHigher(sourceWidth, sourceHeight)) {
-				scaleImage(ImagesServiceFactory.makeImage(source.getImageData()), size, photo);
+				sizes.add(0, size);
+			}
+		}
+		if (!allSizes) {
+			sizes.retainAll(Arrays.asList(sizes.get(0), PhotoSize.THUMB));
+		}
+
+		ImagesService imagesService = ImagesServiceFactory.getImagesService();
+		Image[] images = new Image[sizes.size()];
+		// the images service replaces the data of the image it transforms, so it gets a wrapper of the source data
+		images[0] = imagesService.applyTransform(createResize(sizes.get(0), sourceWidth, sourceHeight),
+				ImagesServiceFactory.makeImage(source.getImageData()));
+
+		for (int first = 1; first < images.length; first = 2 * first + 1) {
+			int last = Math.min(2 * first + 1, images.length);
+			List<Future<Image>> level = new ArrayList<Future<Image>>(last - first);
+			for (int i = first; i < last; i++) {
+				Image parent = images[(i - 1) / 2];
+				level.add(imagesService.applyTransformAsync(createResize(sizes.get(i), sourceWidth, sourceHeight),
+						ImagesServiceFactory.makeImage(parent.getImageData())));
+			}
+			for (int i = first; i < last; i++) {
+				images[i] = getScaledImage(level.get(i - first));
 			}
 		}
+
+		for (int i = 0; i < images.length; i++) {
+			photo.setImage(sizes.get(i), images[i]);
+			log.config(LogBuilder.createSystemMessage().
+					addParameter("Scaled image to size", sizes.get(i).asString()).toString());
+		}
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected static Image getScaledImage(Future<Image> scaledImage) throws Exception {
+		try {
+			return scaledImage.get();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			throw cause instanceof Exception ? (Exception) cause : e;
+		}
 	}
 
 	/**
@@ -88,23 +156,27 @@ public class PhotoUtil {
 	}
 
 	/**
-	 * @methodtype command Scale the source picture to the given size, store it in the datastore and reference it in the
-	 * photo.
+	 * @methodtype creation
+	 *
+	 * Scales the source, an image of the photo in a larger size, to the given size. The target dimensions are computed
+	 * from the original dimensions, so the result equals the one created at upload.
 	 */
-	protected static void scaleImage(Image source, PhotoSize size, Photo photo) throws Exception {
-		int sourceWidth = source.getWidth();
-		int sourceHeight = source.getHeight();
-
-		int targetWidth = size.calcAdjustedWidth(sourceWidth, sourceHeight);
-		int targetHeight = size.calcAdjustedHeight(sourceWidth, sourceHeight);
-
+	public static Image createScaledImage(Image source, PhotoSize size, int originalWidth, int originalHeight) {
 		ImagesService imagesService = ImagesServiceFactory.getImagesService();
-		Transform resize = ImagesServiceFactory.makeResize(targetWidth, targetHeight);
-		Image newImage = imagesService.applyTransform(resize, source);
-
-		photo.setImage(size, newImage);
+		Image result = imagesService.applyTransform(createResize(size, originalWidth, originalHeight),
+				ImagesServiceFactory.makeImage(source.getImageData()));
 
 		log.config(LogBuilder.createSystemMessage().addParameter("Scaled image to size", size.asString()).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype factory Creates the transform that scales an image of the given original size to the photo size.
+	 */
+	protected static Transform createResize(PhotoSize size, int sourceWidth, int sourceHeight) {
+		int targetWidth = size.calcAdjustedWidth(sourceWidth, sourceHeight);
+		int targetHeight = size.calcAdjustedHeight(sourceWidth, sourceHeight);
+		return ImagesServiceFactory.makeResize(targetWidth, targetHeight);
 	}
 
 }
@@ -0,0 +1,100 @@
+package org.wahlzeit.model;
+
+import org.wahlzeit.utils.EnumValue;
+
+/**
+ * The PhotoWeighting defines how likely a photo is to be shown next: all photos equally (uniform), proportional to
+ * their praise, preferring recent photos, or preferring photos with few votes so that new photos get exposure.
+ */
+public enum PhotoWeighting implements EnumValue {
+
+	UNIFORM {
+		@Override
+		public double getWeight(Photo photo, long referenceTime) {
+			return 1.0;
+		}
+	},
+	PRAISE {
+		@Override
+		public double getWeight(Photo photo, long referenceTime) {
+			return photo.getPraise();
+		}
+	},
+	RECENCY {
+		@Override
+		public double getWeight(Photo photo, long referenceTime) {
+			return getRecencyFactor(referenceTime, photo.getCreationTime());
+		}
+	},
+	FEW_VOTES {
+		@Override
+		public double getWeight(Photo photo, long referenceTime) {
+			return 1.0 / Math.max(1, photo.getNoVotes());
+		}
+	};
+
+	/**
+	 * A photo is half as likely to be shown as a photo uploaded one half-life (in milliseconds) later
+	 */
+	public static final long RECENCY_HALF_LIFE = 30L * 24 * 60 * 60 * 1000;
+
+	/**
+	 * @methodtype get
+	 */
+	public static PhotoWeighting getFromString(String myWeighting) throws IllegalArgumentException {
+		for (PhotoWeighting weighting : PhotoWeighting.values()) {
+			if (weighting.asString().equals(myWeighting)) {
+				return weighting;
+			}
+		}
+
+		throw new IllegalArgumentException("invalid PhotoWeighting string: " + myWeighting);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns how much more likely a photo created at the second time is to be shown than one created at the first
+	 * time; it underflows to 0 rather than overflowing for times that are far apart.
+	 */
+	public static double getRecencyFactor(long fromTime, long toTime) {
+		return Math.pow(2.0, (double) (toTime - fromTime) / RECENCY_HALF_LIFE);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the weight of the photo. Recency weights are relative to the reference time, at which a photo has weight
+	 * 1, so the reference time should be close to the creation time of the newest photo to keep weights in range.
+	 */
+	public abstract double getWeight(Photo photo, long referenceTime);
+
+	/**
+	 * @methodtype conversion
+	 */
+	public int asInt() {
+		return ordinal();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public String asString() {
+		return name().toLowerCase();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public EnumValue[] getAllValues() {
+		return values();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getTypeName() {
+		return "PhotoWeighting";
+	}
+
+}
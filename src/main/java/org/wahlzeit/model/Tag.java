@@ -10,6 +10,8 @@ import org.wahlzeit.services.ObjectManager;
 
 /**
  * A class to hold one tag.
+ * Tags are no longer written, the filter conditions are stored with the photo. Existing Tags are converted by the
+ * MigrateTags tool.
  * 
  * @review
  */
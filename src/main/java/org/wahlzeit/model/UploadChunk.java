@@ -0,0 +1,90 @@
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Parent;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Part of the original of an upload that waits to be processed, see {@link UploadManager}. The chunks are children of
+ * the {@link UploadStatus}, so they are kept apart from the images of photos and are found by the token alone.
+ */
+@Entity
+public class UploadChunk {
+
+	/**
+	 * Entities are limited to 1 MB
+	 */
+	public static final int CHUNK_SIZE = 960 * 1024;
+
+	@Parent
+	private Key<UploadStatus> uploadStatus;
+
+	@Id
+	private long index;
+
+	private byte[] data;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public UploadChunk() {
+		// just for Objectify to load it from Datastore
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public UploadChunk(String token, int index, byte[] data) {
+		this.uploadStatus = Key.create(UploadStatus.class, token);
+		this.index = getId(index);
+		this.data = data;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public static int getNoChunks(int noBytes) {
+		return Math.max(1, (noBytes + CHUNK_SIZE - 1) / CHUNK_SIZE);
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Creates the chunk with the given index from the remaining bytes of the upload. Only the bytes of this chunk are
+	 * copied, so the chunks can be saved one by one without a second copy of the whole upload.
+	 */
+	public static UploadChunk slice(String token, ByteBuffer data, int index) {
+		int offset = index * CHUNK_SIZE;
+		ByteBuffer view = data.duplicate();
+		view.position(data.position() + offset);
+		byte[] chunkData = new byte[Math.min(CHUNK_SIZE, data.remaining() - offset)];
+		view.get(chunkData);
+		return new UploadChunk(token, index, chunkData);
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public static Key<UploadChunk> getKey(String token, int index) {
+		return Key.create(Key.create(UploadStatus.class, token), UploadChunk.class, getId(index));
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Numeric ids must not be 0.
+	 */
+	protected static long getId(int index) {
+		return index + 1;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public byte[] getData() {
+		return data;
+	}
+}
@@ -0,0 +1,477 @@
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.agents.AsyncTaskExecutor;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.OfyService;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.logging.Logger;
+
+/**
+ * Accepts uploaded photos and processes them in the background. An accepted upload is described by an
+ * {@link UploadStatus} and its original is spooled in {@link UploadChunk}s below that status; a task of the upload
+ * queue then creates the photo, including scaling and storing its images, and applies the tags. The uploading user
+ * polls the status with the token of the upload. Uploads that are older than their time to live are expired by the
+ * <code>ExpireUploadsAgent</code>.
+ */
+public class UploadManager {
+
+	private static final Logger log = Logger.getLogger(UploadManager.class.getName());
+
+	/**
+	 * The uploading user stops polling long before
+	 */
+	public static final long UPLOAD_TIME_TO_LIVE = 24 * 60 * 60 * 1000;
+	public static final int MAX_EXPIRED_UPLOADS_PER_RUN = 500;
+
+	/**
+	 * An upload that has been processing for longer is taken over by the next delivery of its task; this is the
+	 * deadline of push tasks
+	 */
+	public static final long PROCESSING_TIMEOUT = 10 * 60 * 1000;
+
+	/**
+	 * Unfinished uploads may not spool more bytes in total, so originals do not pile up while the upload queue is
+	 * backed up
+	 */
+	public static final long DEFAULT_MAX_SPOOLED_BYTES = 200L * 1024 * 1024;
+
+	/**
+	 *
+	 */
+	protected long maxSpooledBytes = DEFAULT_MAX_SPOOLED_BYTES;
+
+	/**
+	 *
+	 */
+	private static UploadManager instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized UploadManager getInstance() {
+		if (instance == null) {
+			log.config(LogBuilder.createSystemMessage().addAction("create default UploadManager").toString());
+			instance = new UploadManager();
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(UploadManager newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Spools the uploaded image, records the upload as pending and enqueues its processing. The status is saved and
+	 * the task is added in one transaction, so there is no task without status and no pending status without task.
+	 * Uploads that would exceed the maximum of spooled bytes are rejected. Returns the status, whose token identifies
+	 * the upload.
+	 */
+	public UploadStatus acceptUpload(User user, String fileName, ByteBuffer imageData, String tags) throws IOException {
+		int noBytes = imageData.remaining();
+		long noSpooledBytes = getNoSpooledBytes(maxSpooledBytes - noBytes);
+		if (noSpooledBytes + noBytes > maxSpooledBytes) {
+			throw new UploadSpoolFullException("Spooled uploads hold " + noSpooledBytes + " of " + maxSpooledBytes +
+					" bytes");
+		}
+
+		String token = UUID.randomUUID().toString();
+		UploadStatus result = new UploadStatus(token, user.getId(), fileName, tags);
+		result.setNoChunks(UploadChunk.getNoChunks(noBytes));
+		result.setNoBytes(noBytes);
+
+		try {
+			// the chunks of an upload can be larger than a transaction
+			saveSpool(result, imageData);
+			saveAndEnqueue(result);
+		} catch (RuntimeException ex) {
+			deleteSpool(result);
+			throw ex;
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("accepted upload").
+				addParameter("token", token).
+				addParameter("bytes", noBytes).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the number of bytes spooled by unfinished uploads. Counting stops as soon as the limit is exceeded. As
+	 * the query is eventually consistent, uploads accepted a moment ago may be missing.
+	 */
+	protected long getNoSpooledBytes(final long limit) {
+		return ObjectifyService.run(new Work<Long>() {
+			@Override
+			public Long run() {
+				long result = 0;
+				for (UploadStatus uploadStatus : OfyService.ofy().load().type(UploadStatus.class).
+						filter("state in", Arrays.asList(UploadStatus.State.PENDING, UploadStatus.State.PROCESSING))) {
+					result += uploadStatus.getNoBytes();
+					if (result > limit) {
+						break;
+					}
+				}
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxSpooledBytes() {
+		return maxSpooledBytes;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setMaxSpooledBytes(long newMaxSpooledBytes) {
+		if (newMaxSpooledBytes <= 0) {
+			throw new IllegalArgumentException("maximum of spooled bytes must be positive");
+		}
+		maxSpooledBytes = newMaxSpooledBytes;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void saveAndEnqueue(final UploadStatus uploadStatus) {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				return OfyService.ofy().transact(new Work<Void>() {
+					@Override
+					public Void run() {
+						OfyService.ofy().save().entity(uploadStatus).now();
+						enqueue(uploadStatus);
+						return null;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty hook
+	 *
+	 * Called within the transaction that saves the status, so the task is only added if the status is saved.
+	 */
+	protected void enqueue(UploadStatus uploadStatus) {
+		AsyncTaskExecutor.processUploadAsync(uploadStatus.getToken());
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Creates the photo of the upload from its spooled image. Finished uploads and uploads that are being processed by
+	 * another delivery of the task are left alone, so a task that is delivered twice does no harm. A failed attempt
+	 * returns the upload to pending, and a photo it created is reused when the task is retried, so the spool is only
+	 * deleted once the upload is finished. Returns the status or null if there is no upload with the token.
+	 */
+	public UploadStatus processUpload(String token) throws Exception {
+		UploadStatus result = startProcessing(token);
+		if (result == null) {
+			return getUploadStatus(token);
+		}
+
+		try {
+			byte[] imageData = loadSpool(result);
+			if (imageData == null) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("spooled upload is missing", token).toString());
+				doFailUpload(result);
+				return result;
+			}
+
+			try {
+				Photo photo = doProcessUpload(result, ImagesServiceFactory.makeImage(imageData));
+				result.setPhotoId(photo.getIdAsString());
+				result.setState(UploadStatus.State.DONE);
+			} catch (Exception ex) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("token", token).
+						addException("processing upload failed", ex).toString());
+				result.setState(UploadStatus.State.PENDING);
+				saveUploadStatus(result);
+				throw ex;
+			}
+
+			saveUploadStatus(result);
+			return result;
+		} finally {
+			if (result.isFinished()) {
+				deleteSpool(result);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Moves the upload from pending to processing in a transaction, so only one delivery of its task processes it.
+	 * Returns the status if the caller may process the upload, null otherwise.
+	 */
+	protected UploadStatus startProcessing(final String token) {
+		if (token == null || "".equals(token)) {
+			return null;
+		}
+		return ObjectifyService.run(new Work<UploadStatus>() {
+			@Override
+			public UploadStatus run() {
+				return OfyService.ofy().transact(new Work<UploadStatus>() {
+					@Override
+					public UploadStatus run() {
+						UploadStatus uploadStatus = OfyService.ofy().load().type(UploadStatus.class).id(token).now();
+						if (uploadStatus == null || uploadStatus.isFinished() || isProcessing(uploadStatus)) {
+							return null;
+						}
+						uploadStatus.setState(UploadStatus.State.PROCESSING);
+						OfyService.ofy().save().entity(uploadStatus).now();
+						return uploadStatus;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean isProcessing(UploadStatus uploadStatus) {
+		return uploadStatus.getState() == UploadStatus.State.PROCESSING &&
+				System.currentTimeMillis() - uploadStatus.getLastModified() < PROCESSING_TIMEOUT;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Gives up on an upload that could not be processed, e.g. after the last retry, and drops its spooled image and
+	 * the photo a failed attempt may have created.
+	 */
+	public void failUpload(String token) throws IOException {
+		UploadStatus uploadStatus = getUploadStatus(token);
+		if (uploadStatus != null && !uploadStatus.isFinished()) {
+			doFailUpload(uploadStatus);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void doFailUpload(UploadStatus uploadStatus) {
+		uploadStatus.setState(UploadStatus.State.FAILED);
+		saveUploadStatus(uploadStatus);
+		deleteSpool(uploadStatus);
+		if (uploadStatus.getPhotoId() != null) {
+			deletePhoto(uploadStatus.getPhotoId());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty hook
+	 *
+	 * Deletes the photo of a failed upload together with its images.
+	 */
+	protected void deletePhoto(String photoIdAsString) {
+		PhotoManager pm = PhotoManager.getInstance();
+		Photo photo = pm.getPhoto(photoIdAsString);
+		if (photo != null) {
+			pm.deletePhoto(photo);
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Deletes the uploads created before the given time together with their spooled images, at most
+	 * {@link #MAX_EXPIRED_UPLOADS_PER_RUN} at a time. Their tasks have given up long ago, so uploads that are not
+	 * finished are dropped as well. Returns the number of expired uploads.
+	 */
+	public int expireUploads(final long createdBefore) {
+		return ObjectifyService.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				List<Key<?>> keys = new ArrayList<Key<?>>();
+				int result = 0;
+				for (Key<UploadStatus> key : OfyService.ofy().load().type(UploadStatus.class).
+						filter("creationTime <", createdBefore).limit(MAX_EXPIRED_UPLOADS_PER_RUN).keys()) {
+					keys.add(key);
+					keys.addAll(OfyService.ofy().load().type(UploadChunk.class).ancestor(key).keys().list());
+					result++;
+				}
+				OfyService.ofy().delete().keys(keys).now();
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 *
+	 * Creates the photo, assigns it to the user and applies the tags. The photo id is recorded in the status right
+	 * after creation, so a retry does not create a second photo.
+	 */
+	protected Photo doProcessUpload(UploadStatus uploadStatus, Image image) throws Exception {
+		User user = UserManager.getInstance().getUserById(uploadStatus.getUserId());
+		if (user == null) {
+			throw new IllegalStateException("Unknown user " + uploadStatus.getUserId());
+		}
+
+		PhotoManager pm = PhotoManager.getInstance();
+		Photo result = uploadStatus.getPhotoId() != null ? pm.getPhoto(uploadStatus.getPhotoId()) : null;
+		if (result == null) {
+			result = pm.createPhoto(uploadStatus.getFileName(), image);
+			uploadStatus.setPhotoId(result.getIdAsString());
+			saveUploadStatus(uploadStatus);
+		}
+
+		if (!user.getId().equals(result.getOwnerId())) {
+			user.addPhoto(result);
+		}
+		result.setTags(new Tags(uploadStatus.getTags()));
+		pm.savePhoto(result);
+
+		log.config(LogBuilder.createUserMessage().
+				addAction("Upload Photo").
+				addParameter("Photo", result.getIdAsString()).
+				addParameter("tags", result.getTags().asString()).toString());
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public UploadStatus getUploadStatus(final String token) {
+		if (token == null || "".equals(token)) {
+			return null;
+		}
+		return ObjectifyService.run(new Work<UploadStatus>() {
+			@Override
+			public UploadStatus run() {
+				return OfyService.ofy().load().type(UploadStatus.class).id(token).now();
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void saveUploadStatus(final UploadStatus uploadStatus) {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				OfyService.ofy().save().entity(uploadStatus).now();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Saves the image data in the chunks of the upload. The chunks are copied out of the data and saved one at a time,
+	 * so at most one chunk is held in addition to the upload itself.
+	 */
+	protected void saveSpool(final UploadStatus uploadStatus, final ByteBuffer imageData) {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				for (int i = 0; i < uploadStatus.getNoChunks(); i++) {
+					OfyService.ofy().save().entity(UploadChunk.slice(uploadStatus.getToken(), imageData, i)).now();
+				}
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the spooled image data of the upload, null if a chunk is missing.
+	 */
+	protected byte[] loadSpool(final UploadStatus uploadStatus) {
+		return ObjectifyService.run(new Work<byte[]>() {
+			@Override
+			public byte[] run() {
+				List<Key<UploadChunk>> keys = getSpoolKeys(uploadStatus);
+				Map<Key<UploadChunk>, UploadChunk> chunks = OfyService.ofy().load().keys(keys);
+				int length = 0;
+				for (Key<UploadChunk> key : keys) {
+					if (!chunks.containsKey(key)) {
+						return null;
+					}
+					length += chunks.get(key).getData().length;
+				}
+
+				byte[] result = new byte[length];
+				int offset = 0;
+				for (Key<UploadChunk> key : keys) {
+					byte[] data = chunks.get(key).getData();
+					System.arraycopy(data, 0, result, offset, data.length);
+					offset += data.length;
+				}
+				return result;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void deleteSpool(final UploadStatus uploadStatus) {
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				OfyService.ofy().delete().keys(getSpoolKeys(uploadStatus)).now();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected List<Key<UploadChunk>> getSpoolKeys(UploadStatus uploadStatus) {
+		List<Key<UploadChunk>> result = new ArrayList<Key<UploadChunk>>(uploadStatus.getNoChunks());
+		for (int i = 0; i < uploadStatus.getNoChunks(); i++) {
+			result.add(UploadChunk.getKey(uploadStatus.getToken(), i));
+		}
+		return result;
+	}
+
+	/**
+	 * Signals that the spool of pending uploads is full, the user may try again later
+	 */
+	public static class UploadSpoolFullException extends IOException {
+
+		/**
+		 * @methodtype constructor
+		 */
+		public UploadSpoolFullException(String message) {
+			super(message);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package org.wahlzeit.model;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+import com.googlecode.objectify.annotation.Index;
+
+/**
+ * Progress of an upload that is processed in the background, see {@link UploadManager}. It is identified by a random
+ * token that is handed to the uploading user, who can poll the status with it.
+ */
+@Entity
+public class UploadStatus {
+
+	/**
+	 * The states an upload goes through
+	 */
+	public enum State {
+		PENDING, PROCESSING, DONE, FAILED
+	}
+
+	@Id
+	private String token;
+
+	private String userId;
+	private String fileName;
+	private String tags;
+
+	/**
+	 * Indexed, so the bytes spooled by unfinished uploads can be summed up
+	 */
+	@Index
+	private State state = State.PENDING;
+
+	/**
+	 * Id of the created photo, set as soon as the photo exists
+	 */
+	private String photoId;
+
+	/**
+	 * Number of {@link UploadChunk}s the original is spooled in and its size
+	 */
+	private int noChunks;
+	private int noBytes;
+
+	/**
+	 * Indexed, so stale uploads can be expired
+	 */
+	@Index
+	private long creationTime;
+	private long lastModified;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public UploadStatus() {
+		// just for Objectify to load it from Datastore
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public UploadStatus(String token, String userId, String fileName, String tags) {
+		this.token = token;
+		this.userId = userId;
+		this.fileName = fileName;
+		this.tags = tags;
+		this.creationTime = System.currentTimeMillis();
+		this.lastModified = creationTime;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getUserId() {
+		return userId;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getFileName() {
+		return fileName;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getTags() {
+		return tags;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setState(State newState) {
+		state = newState;
+		lastModified = System.currentTimeMillis();
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public boolean isFinished() {
+		return state == State.DONE || state == State.FAILED;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getPhotoId() {
+		return photoId;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setPhotoId(String newPhotoId) {
+		photoId = newPhotoId;
+		lastModified = System.currentTimeMillis();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoChunks() {
+		return noChunks;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setNoChunks(int newNoChunks) {
+		noChunks = newNoChunks;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoBytes() {
+		return noBytes;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setNoBytes(int newNoBytes) {
+		noBytes = newNoBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getCreationTime() {
+		return creationTime;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Returns the status as JSON object for the upload page.
+	 */
+	public String asJson() {
+		StringBuilder result = new StringBuilder("{\"token\":\"").append(token).
+				append("\",\"state\":\"").append(state.name()).append("\"");
+		if (photoId != null && state == State.DONE) {
+			result.append(",\"photoId\":\"").append(photoId).append("\"");
+		}
+		return result.append("}").toString();
+	}
+}
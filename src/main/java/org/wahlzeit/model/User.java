@@ -20,8 +20,6 @@
 
 package org.wahlzeit.model;
 
-import com.google.appengine.api.images.Image;
-import com.googlecode.objectify.annotation.Ignore;
 import com.googlecode.objectify.annotation.Subclass;
 import org.wahlzeit.services.EmailAddress;
 import org.wahlzeit.services.Language;
@@ -73,8 +71,6 @@ public class User extends Client {
 	 */
 	protected Photo userPhoto = null;
 	protected Set<Photo> photos = new HashSet<Photo>();
-	@Ignore // only used as temporary variable
-	protected Image uploadedImage = null;
 
 	/**
 	 *
@@ -294,18 +290,4 @@ public class User extends Client {
 			}
 		};
 	}
-
-	/**
-	 * @methodtype set
-	 */
-	public void setUploadedImage(Image image) {
-		uploadedImage = image;
-	}
-
-	/**
-	 * @methodtype get
-	 */
-	public Image getUploadedImage() {
-		return uploadedImage;
-	}
 }
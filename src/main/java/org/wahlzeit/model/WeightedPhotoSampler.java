@@ -0,0 +1,129 @@
+package org.wahlzeit.model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Draws photo ints at random with probability proportional to their weight. The weights are kept in a Fenwick tree
+ * (binary indexed tree) indexed by the photo int, so changing a weight and drawing a photo both take O(log n). The
+ * weights themselves are kept next to the tree, so that a change is applied as the exact difference to the old weight
+ * instead of one recovered from prefix sums, which loses all precision when weights differ by orders of magnitude.
+ */
+public class WeightedPhotoSampler {
+
+	/**
+	 *
+	 */
+	protected static final int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Fenwick tree, 1-based; the capacity is a power of two so that tree[capacity] holds the total weight
+	 */
+	protected double[] tree = new double[INITIAL_CAPACITY + 1];
+	protected int capacity = INITIAL_CAPACITY;
+
+	/**
+	 * Weight of each photo int, 1-based like the tree
+	 */
+	protected double[] weights = new double[INITIAL_CAPACITY + 1];
+
+	/**
+	 * @methodtype set
+	 *
+	 * Sets the weight of the photo, 0 removes it from the sampler.
+	 */
+	public synchronized void setWeight(int photoId, double weight) {
+		if (photoId <= 0) {
+			throw new IllegalArgumentException("photo id must be positive: " + photoId);
+		} else if (weight < 0 || Double.isNaN(weight) || Double.isInfinite(weight)) {
+			throw new IllegalArgumentException("invalid weight: " + weight);
+		}
+
+		while (photoId > capacity) {
+			grow();
+		}
+
+		double delta = weight - weights[photoId];
+		weights[photoId] = weight;
+		for (int i = photoId; i <= capacity; i += i & -i) {
+			tree[i] += delta;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized double getWeight(int photoId) {
+		return photoId <= 0 || photoId > capacity ? 0.0 : weights[photoId];
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Multiplies all weights by the factor and rebuilds the tree from the weights in O(n), which also drops the
+	 * rounding errors that the updates have accumulated in the tree.
+	 */
+	public synchronized void scaleWeights(double factor) {
+		if (factor < 0 || Double.isNaN(factor) || Double.isInfinite(factor)) {
+			throw new IllegalArgumentException("invalid factor: " + factor);
+		}
+
+		for (int i = 1; i <= capacity; i++) {
+			weights[i] *= factor;
+			tree[i] = weights[i];
+		}
+		for (int i = 1; i <= capacity; i++) {
+			int parent = i + (i & -i);
+			if (parent <= capacity) {
+				tree[parent] += tree[i];
+			}
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized double getTotalWeight() {
+		return tree[capacity];
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Returns a photo int drawn with probability proportional to its weight, or -1 if all weights are 0.
+	 */
+	public synchronized int sample(Random random) {
+		double total = tree[capacity];
+		if (total <= 0.0) {
+			return -1;
+		}
+
+		// find the smallest photo int whose prefix sum exceeds the random value
+		double remaining = random.nextDouble() * total;
+		int position = 0;
+		for (int step = capacity; step > 0; step >>= 1) {
+			int next = position + step;
+			if (next <= capacity && tree[next] <= remaining) {
+				position = next;
+				remaining -= tree[next];
+			}
+		}
+		int result = position + 1;
+		return result <= capacity ? result : -1;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Doubles the capacity. The existing nodes keep their ranges, the new root covers the old total, all other new
+	 * nodes cover only new, empty positions.
+	 */
+	protected void grow() {
+		int newCapacity = capacity * 2;
+		double[] newTree = Arrays.copyOf(tree, newCapacity + 1);
+		newTree[newCapacity] = tree[capacity];
+		tree = newTree;
+		weights = Arrays.copyOf(weights, newCapacity + 1);
+		capacity = newCapacity;
+	}
+}
@@ -22,10 +22,13 @@ package org.wahlzeit.model.persistence;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Result;
 import com.googlecode.objectify.Work;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
+import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.OfyService;
 import org.wahlzeit.utils.Pattern;
@@ -33,10 +36,24 @@ import org.wahlzeit.utils.Pattern;
 import java.io.IOException;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 /**
  * Adapter for the Google Datastore. Use default constructor to create an instance.
+ *
+ * Images smaller than {@link #CHUNK_SIZE} are stored in a single {@link ImageWrapper}. Larger images are split into
+ * {@link ImageChunk}s of that size, as entities are limited to 1 MB. Each image is described by a small
+ * {@link ImageManifest}, so the existence of images can be checked without loading their data; images written before
+ * manifests were written for all images have a wrapper only.
  * 
  * @review
  */
@@ -48,18 +65,44 @@ public class DatastoreAdapter extends ImageStorage {
 
 	private static final Logger log = Logger.getLogger(DatastoreAdapter.class.getName());
 
+	/**
+	 * Number of bytes per chunk, leaves room for the other properties of the entity
+	 */
+	public static final int CHUNK_SIZE = 960 * 1024;
+
+	/**
+	 * Maximum number of chunks that are saved with one call, keeps batches below the request size limit
+	 */
+	public static final int MAX_CHUNKS_PER_BATCH = 8;
+
 
 	@Override
 	protected void doWriteImage(Serializable image, String photoIdAsString, int size)
 			throws IOException, InvalidParameterException {
 		if (image instanceof Image) {
-			final ImageWrapper imageWrapper = new ImageWrapper(photoIdAsString + size);
-			imageWrapper.setImage((Image) image);
+			final String id = photoIdAsString + size;
+			final byte[] imageData = ((Image) image).getImageData();
 
 			ObjectifyService.run(new Work<Boolean>() {
 				@Override
 				public Boolean run() {
-					OfyService.ofy().save().entity(imageWrapper).now();
+					ImageManifest oldManifest = OfyService.ofy().load().type(ImageManifest.class).id(id).now();
+					if (imageData.length < CHUNK_SIZE) {
+						ImageWrapper imageWrapper = new ImageWrapper(id);
+						imageWrapper.setImageData(imageData);
+						OfyService.ofy().save().entity(imageWrapper).now();
+						OfyService.ofy().save().entity(new ImageManifest(id, imageData.length, 0, 0)).now();
+					} else {
+						long generation = Math.max(System.currentTimeMillis(),
+								oldManifest != null ? oldManifest.getGeneration() + 1 : 1);
+						writeChunks(id, generation, imageData);
+						OfyService.ofy().delete().type(ImageWrapper.class).id(id).now();
+					}
+
+					// the chunks of the previous version are no longer referenced by the manifest
+					if (oldManifest != null) {
+						OfyService.ofy().delete().keys(getChunkKeys(oldManifest)).now();
+					}
 					return null;
 				}
 			});
@@ -72,48 +115,212 @@ public class DatastoreAdapter extends ImageStorage {
 		}
 	}
 
+	/**
+	 * @methodtype command
+	 *
+	 * Saves the chunks of the image under a new generation, in batches that are written concurrently, then the
+	 * manifest. The chunks of the previous version stay untouched until the manifest has been replaced with a single
+	 * write, so readers see either the old or the new image, never a mix of both, and never a manifest without its
+	 * chunks. Returns the number of chunks.
+	 */
+	protected int writeChunks(String id, long generation, byte[] imageData) {
+		int noChunks = (imageData.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		List<Result<Map<Key<ImageChunk>, ImageChunk>>> batches =
+				new ArrayList<Result<Map<Key<ImageChunk>, ImageChunk>>>();
+		List<ImageChunk> batch = new ArrayList<ImageChunk>(MAX_CHUNKS_PER_BATCH);
+		for (int i = 0; i < noChunks; i++) {
+			int offset = i * CHUNK_SIZE;
+			batch.add(new ImageChunk(id, generation, i, Arrays.copyOfRange(imageData, offset,
+					Math.min(offset + CHUNK_SIZE, imageData.length))));
+			if (batch.size() == MAX_CHUNKS_PER_BATCH || i == noChunks - 1) {
+				batches.add(OfyService.ofy().save().entities(batch));
+				batch = new ArrayList<ImageChunk>(MAX_CHUNKS_PER_BATCH);
+			}
+		}
+		for (Result<Map<Key<ImageChunk>, ImageChunk>> result : batches) {
+			result.now();
+		}
+
+		OfyService.ofy().save().entity(new ImageManifest(id, imageData.length, noChunks, generation)).now();
+		return noChunks;
+	}
+
+	/**
+	 * Deletes the wrapper or the manifest with its chunks.
+	 */
+	@Override
+	protected void doDeleteImage(String photoIdAsString, int size) throws IOException {
+		final String id = photoIdAsString + size;
+		ObjectifyService.run(new Work<Boolean>() {
+			@Override
+			public Boolean run() {
+				ImageManifest imageManifest = OfyService.ofy().load().type(ImageManifest.class).id(id).now();
+				if (imageManifest != null) {
+					// the manifest goes first, so readers never see a manifest without its chunks
+					OfyService.ofy().delete().entity(imageManifest).now();
+					OfyService.ofy().delete().keys(getChunkKeys(imageManifest)).now();
+				}
+				OfyService.ofy().delete().type(ImageWrapper.class).id(id).now();
+				return null;
+			}
+		});
+	}
+
 	@Override
 	protected Image doReadImage(final String photoIdAsString, final int size) throws IOException {
-		Image result = null;
+		return (Image) doReadImages(photoIdAsString, Collections.singletonList(size)).get(size);
+	}
 
-		ImageWrapper imageWrapper = ObjectifyService.run(new Work<ImageWrapper>() {
+	/**
+	 * Loads manifests and wrappers of all sizes with batch gets and the chunks of all chunked sizes with a second
+	 * round. The datastore serves the entities of a batch get in parallel.
+	 */
+	@Override
+	protected Map<Integer, Serializable> doReadImages(final String photoIdAsString, final Collection<Integer> sizes)
+			throws IOException {
+
+		Map<Integer, byte[]> imageData = ObjectifyService.run(new Work<Map<Integer, byte[]>>() {
 			@Override
-			public ImageWrapper run() {
-				return OfyService.ofy().load().type(ImageWrapper.class).id(photoIdAsString + size).now();
+			public Map<Integer, byte[]> run() {
+				List<Key<ImageManifest>> manifestKeys = new ArrayList<Key<ImageManifest>>(sizes.size());
+				List<Key<ImageWrapper>> wrapperKeys = new ArrayList<Key<ImageWrapper>>(sizes.size());
+				for (int size : sizes) {
+					manifestKeys.add(Key.create(ImageManifest.class, photoIdAsString + size));
+					wrapperKeys.add(Key.create(ImageWrapper.class, photoIdAsString + size));
+				}
+				// both loads are started before either result is used
+				Map<Key<ImageManifest>, ImageManifest> manifests = OfyService.ofy().load().keys(manifestKeys);
+				Map<Key<ImageWrapper>, ImageWrapper> wrappers = OfyService.ofy().load().keys(wrapperKeys);
+
+				Map<Integer, byte[]> result = new TreeMap<Integer, byte[]>();
+				Map<Integer, ImageManifest> imageManifests = new TreeMap<Integer, ImageManifest>();
+				List<Key<ImageChunk>> chunkKeys = new ArrayList<Key<ImageChunk>>();
+				for (int size : sizes) {
+					String id = photoIdAsString + size;
+					ImageManifest imageManifest = manifests.get(Key.create(ImageManifest.class, id));
+					ImageWrapper imageWrapper = wrappers.get(Key.create(ImageWrapper.class, id));
+					if (imageManifest != null && imageManifest.getNoChunks() > 0) {
+						imageManifests.put(size, imageManifest);
+						chunkKeys.addAll(getChunkKeys(imageManifest));
+					} else if (imageWrapper != null) {
+						result.put(size, imageWrapper.getImageData());
+					}
+				}
+
+				if (!chunkKeys.isEmpty()) {
+					Map<Key<ImageChunk>, ImageChunk> chunks = OfyService.ofy().load().keys(chunkKeys);
+					for (Map.Entry<Integer, ImageManifest> entry : imageManifests.entrySet()) {
+						byte[] data = assembleChunks(entry.getValue(), chunks);
+						if (data != null) {
+							result.put(entry.getKey(), data);
+						}
+					}
+				}
+				return result;
 			}
 		});
 
-		if (imageWrapper == null) {
-			log.info(LogBuilder.createSystemMessage().addMessage("does not exist!").toString());
-		} else {
-			result = imageWrapper.getImage();
-			if (result != null) {
-				log.config(LogBuilder.createSystemMessage().addMessage("image successfully read").toString());
-			} else {
-				log.warning(LogBuilder.createSystemMessage().addMessage("ImageWrapper contains no Image").toString());
-			}
+		Map<Integer, Serializable> result = new TreeMap<Integer, Serializable>();
+		for (Map.Entry<Integer, byte[]> entry : imageData.entrySet()) {
+			result.put(entry.getKey(), ImagesServiceFactory.makeImage(entry.getValue()));
 		}
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("requested sizes", sizes).
+				addParameter("sizes read", result.keySet()).toString());
 		return result;
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	protected List<Key<ImageChunk>> getChunkKeys(ImageManifest imageManifest) {
+		List<Key<ImageChunk>> result = new ArrayList<Key<ImageChunk>>(imageManifest.getNoChunks());
+		for (int i = 0; i < imageManifest.getNoChunks(); i++) {
+			result.add(Key.create(ImageChunk.class,
+					ImageChunk.getId(imageManifest.getId(), imageManifest.getGeneration(), i)));
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Copies the chunks of the image into one array of the final length. Returns null if a chunk is missing.
+	 */
+	protected byte[] assembleChunks(ImageManifest imageManifest, Map<Key<ImageChunk>, ImageChunk> chunks) {
+		byte[] result = new byte[imageManifest.getLength()];
+		int offset = 0;
+		for (Key<ImageChunk> chunkKey : getChunkKeys(imageManifest)) {
+			ImageChunk chunk = chunks.get(chunkKey);
+			if (chunk == null || offset + chunk.getData().length > result.length) {
+				log.warning(LogBuilder.createSystemMessage().
+						addParameter("missing or invalid chunk", chunkKey.getName()).toString());
+				return null;
+			}
+			System.arraycopy(chunk.getData(), 0, result, offset, chunk.getData().length);
+			offset += chunk.getData().length;
+		}
+		return offset == result.length ? result : null;
+	}
+
 	@Override
 	protected boolean doDoesImageExist(String photoIdAsString, int size) {
-		Image image = null;
-		boolean result = false;
-		try {
-			image = doReadImage(photoIdAsString, size);
-		} catch (IOException e) {
-			log.warning(
-					LogBuilder.createSystemMessage().addException("IOException when checking for Image existance", e)
-							.toString());
-		}
-		if (image != null) {
-			result = true;
-		}
+		boolean result = !findExistingSizes(photoIdAsString, Collections.singletonList(size)).isEmpty();
 		log.config(LogBuilder.createSystemMessage().addParameter("does image exist", result).toString());
 		return result;
 	}
 
+	@Override
+	protected Set<Integer> doExistingSizes(String photoIdAsString) {
+		List<Integer> sizes = new ArrayList<Integer>();
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			sizes.add(photoSize.asInt());
+		}
+		return findExistingSizes(photoIdAsString, sizes);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Looks up the manifests of the sizes with a batch get, which is strongly consistent and loads no image data.
+	 * Only for sizes without a manifest, the wrappers are looked up as well, as images written before manifests were
+	 * written for all images have a wrapper only.
+	 */
+	protected Set<Integer> findExistingSizes(final String photoIdAsString, final Collection<Integer> sizes) {
+		return ObjectifyService.run(new Work<Set<Integer>>() {
+			@Override
+			public Set<Integer> run() {
+				Set<Integer> result = new TreeSet<Integer>();
+				List<Key<ImageManifest>> manifestKeys = new ArrayList<Key<ImageManifest>>(sizes.size());
+				for (int size : sizes) {
+					manifestKeys.add(Key.create(ImageManifest.class, photoIdAsString + size));
+				}
+				Map<Key<ImageManifest>, ImageManifest> manifests = OfyService.ofy().load().keys(manifestKeys);
+
+				List<Integer> legacySizes = new ArrayList<Integer>();
+				List<Key<ImageWrapper>> wrapperKeys = new ArrayList<Key<ImageWrapper>>();
+				for (int size : sizes) {
+					if (manifests.containsKey(Key.create(ImageManifest.class, photoIdAsString + size))) {
+						result.add(size);
+					} else {
+						legacySizes.add(size);
+						wrapperKeys.add(Key.create(ImageWrapper.class, photoIdAsString + size));
+					}
+				}
+
+				if (!wrapperKeys.isEmpty()) {
+					Map<Key<ImageWrapper>, ImageWrapper> wrappers = OfyService.ofy().load().keys(wrapperKeys);
+					for (int i = 0; i < legacySizes.size(); i++) {
+						if (wrappers.containsKey(wrapperKeys.get(i))) {
+							result.add(legacySizes.get(i));
+						}
+					}
+				}
+				return result;
+			}
+		});
+	}
+
 	/**
 	 * Wrapper class to store {@link Image}s in the Google Datastore with Objectify.
 	 * 
@@ -145,18 +352,125 @@ public class DatastoreAdapter extends ImageStorage {
 			return ImagesServiceFactory.makeImage(imageData);
 		}
 
+		/**
+		 * @methodtype get
+		 */
+		public byte[] getImageData() {
+			return imageData;
+		}
+
 		/**
 		 * @methodtype set
 		 *
 		 * Can not handle images >= 1 MB because this is the upper limit of entities in Google Datastore.
 		 */
 		public void setImage(Image image) throws ArrayIndexOutOfBoundsException {
-			if(image.getImageData().length >= maxEntitySize) {
+			setImageData(image.getImageData());
+		}
+
+		/**
+		 * @methodtype set
+		 */
+		public void setImageData(byte[] newImageData) throws ArrayIndexOutOfBoundsException {
+			if(newImageData.length >= maxEntitySize) {
 				throw new ArrayIndexOutOfBoundsException("Can not store images >= 1 MB in the Google Datastore.");
 			}
 			else {
-				imageData = image.getImageData();
+				imageData = newImageData;
 			}
 		}
 	}
+
+	/**
+	 * Describes an image that is stored in {@link ImageChunk}s; has the same id as an {@link ImageWrapper} would have.
+	 * Each version of the image has its chunks stored under a generation of its own.
+	 */
+	@Entity
+	public static class ImageManifest {
+
+		@Id
+		private String id;
+
+		private int length;
+		private int noChunks;
+
+		/**
+		 * 0 for images written before chunks had generations
+		 */
+		private long generation;
+
+		public ImageManifest() {
+			// just for Objectify to load it from Datastore
+		}
+
+		public ImageManifest(String id, int length, int noChunks, long generation) {
+			this.id = id;
+			this.length = length;
+			this.noChunks = noChunks;
+			this.generation = generation;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getLength() {
+			return length;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public int getNoChunks() {
+			return noChunks;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public long getGeneration() {
+			return generation;
+		}
+	}
+
+	/**
+	 * Part of the data of an image, see {@link ImageManifest}.
+	 */
+	@Entity
+	public static class ImageChunk {
+
+		@Id
+		private String id;
+
+		private byte[] data;
+
+		public ImageChunk() {
+			// just for Objectify to load it from Datastore
+		}
+
+		public ImageChunk(String imageId, long generation, int index, byte[] data) {
+			this.id = getId(imageId, generation, index);
+			this.data = data;
+		}
+
+		/**
+		 * @methodtype conversion
+		 */
+		public static String getId(String imageId, long generation, int index) {
+			return generation == 0 ? imageId + "-" + index : imageId + "-g" + generation + "-" + index;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public byte[] getData() {
+			return data;
+		}
+	}
 }
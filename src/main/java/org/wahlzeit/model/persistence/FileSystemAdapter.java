@@ -0,0 +1,282 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.model.PhotoSize;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.SysConfig;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidParameterException;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.logging.Logger;
+
+/**
+ * Adapter for the local file system, e.g. for self-hosted deployments and benchmarks. Images are stored in the photos
+ * directory, spread over two levels of subdirectories that are derived from a hash of the photo id. Images are written
+ * to a temporary file that is then renamed, so readers never see partially written images. Reads go through a
+ * FileChannel; larger images are memory-mapped.
+ */
+public class FileSystemAdapter extends ImageStorage {
+
+	private static final Logger log = Logger.getLogger(FileSystemAdapter.class.getName());
+
+	/**
+	 * Images of at least this size are read through a memory-mapped buffer instead of a channel read
+	 */
+	public static final int MIN_MAPPED_SIZE = 64 * 1024;
+
+	/**
+	 *
+	 */
+	protected static final String FILE_ENDING = ".img";
+	protected static final String TEMP_FILE_ENDING = ".tmp";
+
+	/**
+	 *
+	 */
+	protected final Path photosDir;
+
+	/**
+	 * @methodtype constructor
+	 *
+	 * Stores the images in {@link SysConfig#getPhotosDir()}.
+	 */
+	public FileSystemAdapter() {
+		this(new File(SysConfig.getPhotosDir().asString()));
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public FileSystemAdapter(File photosDir) {
+		this.photosDir = photosDir.toPath();
+	}
+
+	@Override
+	protected void doWriteImage(Serializable image, String photoIdAsString, int size)
+			throws IOException, InvalidParameterException {
+
+		if (!(image instanceof Image)) {
+			throw new InvalidParameterException("not an Image object!");
+		}
+
+		Path imageFile = getImageFile(photoIdAsString, size);
+		Files.createDirectories(imageFile.getParent());
+		Path tempFile = Files.createTempFile(imageFile.getParent(), imageFile.getFileName().toString(),
+				TEMP_FILE_ENDING);
+		try {
+			FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.WRITE);
+			try {
+				ByteBuffer buffer = ByteBuffer.wrap(((Image) image).getImageData());
+				while (buffer.hasRemaining()) {
+					channel.write(buffer);
+				}
+				channel.force(true);
+			} finally {
+				channel.close();
+			}
+
+			try {
+				Files.move(tempFile, imageFile, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tempFile, imageFile, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addMessage("image successfully written").
+				addParameter("file", imageFile).toString());
+	}
+
+	@Override
+	protected Image doReadImage(String photoIdAsString, int size) throws IOException {
+		Path imageFile = getImageFile(photoIdAsString, size);
+		if (!Files.isRegularFile(imageFile)) {
+			log.config(LogBuilder.createSystemMessage().addParameter("file does not exist", imageFile).toString());
+			return null;
+		}
+
+		FileChannel channel = FileChannel.open(imageFile, StandardOpenOption.READ);
+		try {
+			long length = channel.size();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Image too large: " + imageFile);
+			}
+
+			byte[] imageData = new byte[(int) length];
+			if (length >= MIN_MAPPED_SIZE) {
+				channel.map(FileChannel.MapMode.READ_ONLY, 0, length).get(imageData);
+			} else {
+				ByteBuffer buffer = ByteBuffer.wrap(imageData);
+				while (buffer.hasRemaining()) {
+					if (channel.read(buffer) < 0) {
+						throw new EOFException("Image file was truncated: " + imageFile);
+					}
+				}
+			}
+			return ImagesServiceFactory.makeImage(imageData);
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	protected long doGetImageLength(String photoIdAsString, int size) throws IOException {
+		Path imageFile = getImageFile(photoIdAsString, size);
+		return Files.isRegularFile(imageFile) ? Files.size(imageFile) : -1;
+	}
+
+	/**
+	 * Maps the requested range of the file and copies it in chunks.
+	 */
+	@Override
+	protected void doStreamImage(String photoIdAsString, int size, long offset, long length, OutputStream out)
+			throws IOException {
+
+		Path imageFile = getImageFile(photoIdAsString, size);
+		FileChannel channel = FileChannel.open(imageFile, StandardOpenOption.READ);
+		try {
+			if (offset + length > channel.size()) {
+				throw new EOFException("Range exceeds image of " + channel.size() + " bytes");
+			}
+
+			MappedByteBuffer mappedRange = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+			byte[] chunk = new byte[(int) Math.min(STREAM_CHUNK_SIZE, Math.max(1, length))];
+			while (mappedRange.hasRemaining()) {
+				int chunkLength = Math.min(chunk.length, mappedRange.remaining());
+				mappedRange.get(chunk, 0, chunkLength);
+				out.write(chunk, 0, chunkLength);
+			}
+		} finally {
+			channel.close();
+		}
+	}
+
+	@Override
+	public boolean isStreamingSupported() {
+		return true;
+	}
+
+	@Override
+	protected void doDeleteImage(String photoIdAsString, int size) throws IOException {
+		Files.deleteIfExists(getImageFile(photoIdAsString, size));
+	}
+
+	@Override
+	protected boolean doDoesImageExist(String photoIdAsString, int size) {
+		// no image can be stored under an invalid id
+		boolean result = isSafeName(photoIdAsString) && Files.isRegularFile(getImageFile(photoIdAsString, size));
+		log.config(LogBuilder.createSystemMessage().addParameter("does image exist", result).toString());
+		return result;
+	}
+
+	/**
+	 * Lists the directory of the photo once instead of checking each size.
+	 */
+	@Override
+	protected Set<Integer> doExistingSizes(String photoIdAsString) {
+		Set<Integer> result = new TreeSet<Integer>();
+		Path directory = getImageFile(photoIdAsString, 0).getParent();
+		if (!Files.isDirectory(directory)) {
+			return result;
+		}
+
+		String prefix = photoIdAsString + "-";
+		try {
+			DirectoryStream<Path> files = Files.newDirectoryStream(directory);
+			try {
+				for (Path file : files) {
+					String name = file.getFileName().toString();
+					if (name.length() == prefix.length() + 1 + FILE_ENDING.length() && name.startsWith(prefix) &&
+							name.endsWith(FILE_ENDING) && Character.isDigit(name.charAt(prefix.length()))) {
+						int size = Character.digit(name.charAt(prefix.length()), 10);
+						if (size < PhotoSize.values().length) {
+							result.add(size);
+						}
+					}
+				}
+			} finally {
+				files.close();
+			}
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Problem when listing images", e).toString());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the file of the photo in the specified size. The path structure is:
+	 *
+	 * photosDir/hh/hh/photoIdAsString-size.img
+	 *
+	 * where the two directory levels are taken from a hash of the photo id, so no directory gets too many entries.
+	 * Ids that are not plain names or that would resolve to a file outside of the photos directory are rejected.
+	 *
+	 * @methodtype get
+	 */
+	protected Path getImageFile(String photoIdAsString, int size) throws IllegalArgumentException {
+		if (!isSafeName(photoIdAsString)) {
+			throw new IllegalArgumentException("invalid photo id: " + photoIdAsString);
+		}
+
+		int hash = getSpreadHash(photoIdAsString);
+		String firstLevel = toHex(hash & 0xFF);
+		String secondLevel = toHex((hash >>> 8) & 0xFF);
+		Path result = photosDir.resolve(firstLevel).resolve(secondLevel).resolve(photoIdAsString + "-" + size + FILE_ENDING);
+		if (!result.normalize().startsWith(photosDir.normalize())) {
+			throw new IllegalArgumentException("photo id leaves the photos directory: " + photoIdAsString);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Returns true if the id consists of letters, digits, '-' and '_' only, so it cannot name another directory.
+	 */
+	protected boolean isSafeName(String photoIdAsString) {
+		if (photoIdAsString == null || photoIdAsString.isEmpty()) {
+			return false;
+		}
+
+		for (int i = 0; i < photoIdAsString.length(); i++) {
+			char c = photoIdAsString.charAt(i);
+			if (!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'z') && !(c >= 'A' && c <= 'Z') && c != '-' && c != '_') {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected String toHex(int value) {
+		return value < 0x10 ? "0" + Integer.toHexString(value) : Integer.toHexString(value);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public Path getPhotosDir() {
+		return photosDir;
+	}
+}
@@ -20,30 +20,56 @@
 
 package org.wahlzeit.model.persistence;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.appengine.tools.cloudstorage.GcsFileMetadata;
 import com.google.appengine.tools.cloudstorage.GcsFileOptions;
 import com.google.appengine.tools.cloudstorage.GcsFilename;
 import com.google.appengine.tools.cloudstorage.GcsInputChannel;
-import com.google.appengine.tools.cloudstorage.GcsOutputChannel;
 import com.google.appengine.tools.cloudstorage.GcsService;
 import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.ListOptions;
+import com.google.appengine.tools.cloudstorage.ListResult;
 import com.google.appengine.tools.cloudstorage.RetryParams;
+import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SysConfig;
+import org.wahlzeit.utils.ByteBufferPool;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.net.URLConnection;
 import java.nio.ByteBuffer;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
 /**
  * Adapter for the Google Cloud Storage.
  * Use {@link org.wahlzeit.model.persistence.GcsAdapter.Builder} to create an object.
+ *
+ * Object names start with a hash of the photo id, so consecutive photo ids do not end up in the same key range of the
+ * bucket. Objects written under the former names (without hash) are still found, unless looking for them is turned off
+ * once all objects have hashed names, which saves a metadata request for every size that does not exist.
  * 
  * @review
  */
@@ -54,18 +80,30 @@ public class GcsAdapter extends ImageStorage {
 	private String bucketName;
 	private String photoFolder;
 	private String defaultImageMimeTypeName;
-	private int bufferLength;
+	private ByteBufferPool bufferPool;
+	private int maxThreads;
+	private ThreadFactory threadFactory;
+	private boolean isLegacyNameLookup;
 	private GcsService gcsService;
 
+	/**
+	 * Shared by all requests, created on first use
+	 */
+	private ExecutorService executor = null;
+
 	/**
 	 * Do not use directly, instead use {@link org.wahlzeit.model.persistence.GcsAdapter.Builder} to create an object.
 	 */
-	private GcsAdapter(String bucketName, String photoFolderName, String defaultImageMimeTypeName, int bufferLength,
-					   GcsService gcsService) {
+	private GcsAdapter(String bucketName, String photoFolderName, String defaultImageMimeTypeName,
+					   ByteBufferPool bufferPool, int maxThreads, ThreadFactory threadFactory,
+					   boolean isLegacyNameLookup, GcsService gcsService) {
 		this.bucketName = bucketName;
 		this.photoFolder = photoFolderName;
 		this.defaultImageMimeTypeName = defaultImageMimeTypeName;
-		this.bufferLength = bufferLength;
+		this.bufferPool = bufferPool;
+		this.maxThreads = maxThreads;
+		this.threadFactory = threadFactory;
+		this.isLegacyNameLookup = isLegacyNameLookup;
 		this.gcsService = gcsService;
 	}
 
@@ -74,9 +112,145 @@ public class GcsAdapter extends ImageStorage {
 	protected void doWriteImage(Serializable image, String photoIdAsString, int size)
 			throws IOException, InvalidParameterException {
 
+		if (!(image instanceof Image)) {
+			throw new InvalidParameterException("not an Image object!");
+		}
+
 		GcsFilename gcsFilename = getGcsFileName(photoIdAsString, size);
 		log.config(LogBuilder.createSystemMessage().addParameter("gcsFileName", gcsFilename).toString());
 
+		gcsService.createOrReplace(gcsFilename, getFileOptions(gcsFilename),
+				ByteBuffer.wrap(((Image) image).getImageData()));
+		log.config(LogBuilder.createSystemMessage().addMessage("image successfully written").toString());
+	}
+
+	/**
+	 * Writes all images concurrently, each with a single request, and waits until all of them are written.
+	 */
+	@Override
+	protected void doWriteImages(final Map<Integer, ? extends Serializable> images, final String photoIdAsString)
+			throws IOException, InvalidParameterException {
+
+		if (images.size() <= 1 || maxThreads <= 1) {
+			super.doWriteImages(images, photoIdAsString);
+			return;
+		}
+
+		List<Callable<Void>> writes = new ArrayList<Callable<Void>>(images.size());
+		for (final Map.Entry<Integer, ? extends Serializable> entry : images.entrySet()) {
+			writes.add(new Callable<Void>() {
+				@Override
+				public Void call() throws IOException {
+					doWriteImage(entry.getValue(), photoIdAsString, entry.getKey());
+					return null;
+				}
+			});
+		}
+		runConcurrently(writes);
+	}
+
+	/**
+	 * Reads all images concurrently.
+	 */
+	@Override
+	protected Map<Integer, Serializable> doReadImages(final String photoIdAsString, Collection<Integer> sizes)
+			throws IOException {
+
+		if (sizes.size() <= 1 || maxThreads <= 1) {
+			return super.doReadImages(photoIdAsString, sizes);
+		}
+
+		List<Integer> sizeList = new ArrayList<Integer>(sizes);
+		List<Callable<Image>> reads = new ArrayList<Callable<Image>>(sizeList.size());
+		for (final int size : sizeList) {
+			reads.add(new Callable<Image>() {
+				@Override
+				public Image call() throws IOException {
+					return doReadImage(photoIdAsString, size);
+				}
+			});
+		}
+		List<Image> images = runConcurrently(reads);
+
+		Map<Integer, Serializable> result = new TreeMap<Integer, Serializable>();
+		for (int i = 0; i < sizeList.size(); i++) {
+			if (images.get(i) != null) {
+				result.put(sizeList.get(i), images.get(i));
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Runs the tasks on the shared executor and returns their results in the same order, after all have finished.
+	 * Tasks for which the executor has no thread left run on the calling thread.
+	 */
+	protected <T> List<T> runConcurrently(List<Callable<T>> tasks) throws IOException {
+		List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+		for (Callable<T> task : tasks) {
+			futures.add(getExecutor().submit(task));
+		}
+		List<T> result = new ArrayList<T>(tasks.size());
+		for (Future<T> future : futures) {
+			result.add(waitFor(future));
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the executor shared by all requests. Its threads are created by the thread factory of the builder, by
+	 * default the background thread factory of App Engine, whose threads have an API environment of their own and
+	 * may outlive a request; idle threads end after a minute. Threads are not queued for: if all are busy or none can
+	 * be created, e.g. where background threads are not available, the caller runs the task.
+	 */
+	protected synchronized ExecutorService getExecutor() {
+		if (executor == null) {
+			final ThreadFactory factory = threadFactory;
+			executor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS,
+					new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					try {
+						return (factory != null ? factory : ThreadManager.backgroundThreadFactory()).newThread(runnable);
+					} catch (RuntimeException e) {
+						log.warning(LogBuilder.createSystemMessage().
+								addException("Cannot create thread, running task on caller", e).toString());
+						return null;
+					}
+				}
+			}, new ThreadPoolExecutor.CallerRunsPolicy());
+		}
+		return executor;
+	}
+
+	/**
+	 * @methodtype helper
+	 */
+	protected <T> T waitFor(Future<T> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while accessing the Cloud Storage");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected GcsFileOptions getFileOptions(GcsFilename gcsFilename) {
 		String fileType = URLConnection.guessContentTypeFromName(gcsFilename.getObjectName());
 		GcsFileOptions.Builder fileOptionsBuilder = new GcsFileOptions.Builder();
 		if (fileType != null) {
@@ -88,49 +262,110 @@ public class GcsAdapter extends ImageStorage {
 					addMessage("did not found file type, used default type").
 					addParameter("default type", defaultImageMimeTypeName).toString());
 		}
-
-		GcsFileOptions fileOptions = fileOptionsBuilder.build();
-		GcsOutputChannel outputChannel = gcsService.createOrReplace(gcsFilename, fileOptions);
-		if (image instanceof Image) {
-			Image imageObject = (Image) image;
-			outputChannel.write(ByteBuffer.wrap(imageObject.getImageData()));
-			outputChannel.close();
-			log.config(LogBuilder.createSystemMessage().addMessage("image successfully written").toString());
-		} else {
-			throw new InvalidParameterException("not an Image object!");
-		}
+		return fileOptionsBuilder.build();
 	}
 
+	/**
+	 * Reads exactly the number of bytes given by the metadata of the object, in chunks of a pooled buffer.
+	 */
 	@Override
 	protected Image doReadImage(String filename, int size) throws IOException {
-		GcsFilename gcsFilename = getGcsFileName(filename, size);
+		GcsFileMetadata gcsFileMetadata = getMetadata(filename, size);
+		if (gcsFileMetadata == null) {
+			log.warning(LogBuilder.createSystemMessage().addMessage("does not exist!").toString());
+			return null;
+		}
+
+		GcsFilename gcsFilename = gcsFileMetadata.getFilename();
 		log.config(LogBuilder.createSystemMessage().addParameter("gcsFileName", gcsFilename).toString());
+		if (gcsFileMetadata.getLength() > Integer.MAX_VALUE) {
+			throw new IOException("Image too large: " + gcsFilename);
+		}
 
+		byte[] imageData = new byte[(int) gcsFileMetadata.getLength()];
 		GcsInputChannel readChannel = gcsService.openReadChannel(gcsFilename, 0);
-		ByteBuffer bb = ByteBuffer.allocate(bufferLength);
-		Image result = null;
+		ByteBuffer buffer = bufferPool.acquire();
 		try {
-			readChannel.read(bb);
-			result = ImagesServiceFactory.makeImage(bb.array());
-		} catch (IOException e) {
-			// when image does not exist, IOException is thrown
+			int position = 0;
+			while (position < imageData.length) {
+				buffer.clear();
+				buffer.limit(Math.min(buffer.capacity(), imageData.length - position));
+				int noReadBytes = readChannel.read(buffer);
+				if (noReadBytes < 0) {
+					throw new EOFException("Image ended " + (imageData.length - position) + " bytes early");
+				}
+				buffer.flip();
+				buffer.get(imageData, position, noReadBytes);
+				position += noReadBytes;
+			}
+		} finally {
+			bufferPool.release(buffer);
+			readChannel.close();
 		}
-		if (result == null) {
-			log.warning(LogBuilder.createSystemMessage().addMessage("does not exist!").toString());
-		} else {
-			log.config(LogBuilder.createSystemMessage().addMessage("image successfully read").toString());
+
+		log.config(LogBuilder.createSystemMessage().addMessage("image successfully read").toString());
+		return ImagesServiceFactory.makeImage(imageData);
+	}
+
+	@Override
+	protected long doGetImageLength(String photoIdAsString, int size) throws IOException {
+		GcsFileMetadata gcsFileMetadata = getMetadata(photoIdAsString, size);
+		return gcsFileMetadata == null ? -1 : gcsFileMetadata.getLength();
+	}
+
+	/**
+	 * Reads only the requested range from the Cloud Storage, one chunk at a time.
+	 */
+	@Override
+	protected void doStreamImage(String photoIdAsString, int size, long offset, long length, OutputStream out)
+			throws IOException {
+
+		GcsFileMetadata gcsFileMetadata = getMetadata(photoIdAsString, size);
+		if (gcsFileMetadata == null) {
+			throw new IOException("Image does not exist: " + photoIdAsString + ", size " + size);
 		}
-		return result;
+
+		GcsFilename gcsFilename = gcsFileMetadata.getFilename();
+		log.config(LogBuilder.createSystemMessage().addParameter("gcsFileName", gcsFilename).toString());
+
+		GcsInputChannel readChannel = gcsService.openReadChannel(gcsFilename, offset);
+		try {
+			ByteBuffer buffer = ByteBuffer.allocate(STREAM_CHUNK_SIZE);
+			long remaining = length;
+			while (remaining > 0) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), remaining));
+				int noReadBytes = readChannel.read(buffer);
+				if (noReadBytes < 0) {
+					throw new EOFException("Image ended " + remaining + " bytes before the end of the range");
+				}
+				out.write(buffer.array(), 0, noReadBytes);
+				remaining -= noReadBytes;
+			}
+		} finally {
+			readChannel.close();
+		}
+	}
+
+	@Override
+	public boolean isStreamingSupported() {
+		return true;
+	}
+
+	/**
+	 * Deletes the object with the current name as well as one with the legacy name.
+	 */
+	@Override
+	protected void doDeleteImage(String photoIdAsString, int size) throws IOException {
+		gcsService.delete(getGcsFileName(photoIdAsString, size));
+		gcsService.delete(getLegacyGcsFileName(photoIdAsString, size));
 	}
 
 	@Override
 	protected boolean doDoesImageExist(String photoIdAsString, int size) {
-		GcsFilename gcsFilename = getGcsFileName(photoIdAsString, size);
 		boolean result;
 		try {
-			// will be null if file does not exist
-			GcsFileMetadata gcsFileMetadata = gcsService.getMetadata(gcsFilename);
-			result = gcsFileMetadata != null;
+			result = getMetadata(photoIdAsString, size) != null;
 		} catch (IOException e) {
 			result = false;
 		}
@@ -138,19 +373,96 @@ public class GcsAdapter extends ImageStorage {
 		return result;
 	}
 
+	/**
+	 * Lists the objects of the photo with a single request, and those with legacy names with a second one if they
+	 * are looked up, as a photo may have sizes under both names.
+	 */
+	@Override
+	protected Set<Integer> doExistingSizes(String photoIdAsString) {
+		Set<Integer> result = new TreeSet<Integer>();
+		try {
+			String objectName = getGcsFileName(photoIdAsString, 0).getObjectName();
+			addSizes(result, objectName.substring(0, objectName.length() - 1));
+			if (isLegacyNameLookup) {
+				objectName = getLegacyGcsFileName(photoIdAsString, 0).getObjectName();
+				addSizes(result, objectName.substring(0, objectName.length() - 1));
+			}
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Problem when listing images", e).toString());
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds the sizes of the objects whose names consist of the prefix and a valid size.
+	 */
+	protected void addSizes(Set<Integer> sizes, String prefix) throws IOException {
+		ListResult listResult = gcsService.list(bucketName, new ListOptions.Builder().setPrefix(prefix).build());
+		while (listResult.hasNext()) {
+			String suffix = listResult.next().getName().substring(prefix.length());
+			if (suffix.length() == 1 && Character.isDigit(suffix.charAt(0))) {
+				int size = Character.digit(suffix.charAt(0), 10);
+				if (size < PhotoSize.values().length) {
+					sizes.add(size);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the metadata of the object of the photo in the specified size, looking for the legacy name if there is
+	 * no object with the current name and legacy names are looked up. Returns null if neither exists.
+	 */
+	protected GcsFileMetadata getMetadata(String photoIdAsString, int size) throws IOException {
+		// will be null if file does not exist
+		GcsFileMetadata result = gcsService.getMetadata(getGcsFileName(photoIdAsString, size));
+		if (result == null && isLegacyNameLookup) {
+			result = gcsService.getMetadata(getLegacyGcsFileName(photoIdAsString, size));
+		}
+		return result;
+	}
+
 
 	/**
 	 * Creates a <code>GcsFilename</code> for the photo in the specified size. The name structure is:
 	 *
-	 * BUCKET_NAME - ownerId/fileName/photoIdAsString
+	 * BUCKET_NAME - photoFolder/hash/photoIdAsString-size
+	 *
+	 * where hash consists of four hex digits computed from the photo id.
+	 *
+	 * @methodtype get
+	 */
+	protected GcsFilename getGcsFileName(String photoIdAsString, int size) {
+		String filePath = photoFolder + File.separator + getNamePrefix(photoIdAsString) + File.separator +
+				photoIdAsString + "-" + size;
+		return new GcsFilename(bucketName, filePath);
+	}
+
+	/**
+	 * Creates the <code>GcsFilename</code> images were stored under before hashed names were introduced:
+	 *
+	 * BUCKET_NAME - photoFolder/photoIdAsStringsize
 	 *
 	 * @methodtype get
 	 */
-	private GcsFilename getGcsFileName(String photoIdAsString, int size) {
+	protected GcsFilename getLegacyGcsFileName(String photoIdAsString, int size) {
 		String filePath = photoFolder + File.separator + photoIdAsString + size;
 		return new GcsFilename(bucketName, filePath);
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	protected String getNamePrefix(String photoIdAsString) {
+		String hex = Integer.toHexString((getSpreadHash(photoIdAsString) & 0xFFFF) | 0x10000);
+		return hex.substring(1);
+	}
+
 
 	public static class Builder {
 		GcsService gcsService;
@@ -158,16 +470,31 @@ public class GcsAdapter extends ImageStorage {
 		private String photoFolderName;
 		private String defaultImageMimeTypeName;
 		private int bufferLength;
+		private int maxPooledBuffers;
+		private int maxThreads;
+		private ThreadFactory threadFactory;
+		private boolean isLegacyNameLookup;
 
 		public Builder() {
 			bucketName = SysConfig.DATA_PATH;
 			photoFolderName = "photos";
 			defaultImageMimeTypeName = "image/jpeg";
 			/**
-			 * 1 MB Buffer, does not limit the size of the files. A valid compromise between unused allocation and
-			 * reallocation.
+			 * Images are read in chunks of pooled 256 KB direct buffers, so the buffer does not limit the size of the
+			 * files and is not allocated for every read.
+			 */
+			bufferLength = 256 * 1024;
+			maxPooledBuffers = 16;
+			/**
+			 * Threads for the sizes of concurrent requests; they are created with the background thread factory by
+			 * default.
+			 */
+			maxThreads = 8;
+			threadFactory = null;
+			/**
+			 * Objects written before hashed names were introduced are looked for until this is turned off.
 			 */
-			bufferLength = 1024 * 1024;
+			isLegacyNameLookup = true;
 			gcsService = GcsServiceFactory.createGcsService(RetryParams.getDefaultInstance());
 		}
 
@@ -187,12 +514,30 @@ public class GcsAdapter extends ImageStorage {
 			this.bufferLength = bufferLength;
 		}
 
+		public void setMaxPooledBuffers(int maxPooledBuffers) {
+			this.maxPooledBuffers = maxPooledBuffers;
+		}
+
+		public void setMaxThreads(int maxThreads) {
+			this.maxThreads = maxThreads;
+		}
+
+		public void setThreadFactory(ThreadFactory threadFactory) {
+			this.threadFactory = threadFactory;
+		}
+
+		public void setLegacyNameLookup(boolean isLegacyNameLookup) {
+			this.isLegacyNameLookup = isLegacyNameLookup;
+		}
+
 		public void setGcsService(GcsService gcsService) {
 			this.gcsService = gcsService;
 		}
 
 		public GcsAdapter build() {
-			return new GcsAdapter(bucketName, photoFolderName, defaultImageMimeTypeName, bufferLength, gcsService);
+			return new GcsAdapter(bucketName, photoFolderName, defaultImageMimeTypeName,
+					new ByteBufferPool(bufferLength, maxPooledBuffers), maxThreads, threadFactory, isLegacyNameLookup,
+					gcsService);
 		}
 	}
 }
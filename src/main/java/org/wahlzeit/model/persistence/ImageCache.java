@@ -0,0 +1,401 @@
+package org.wahlzeit.model.persistence;
+
+import org.wahlzeit.services.LogBuilder;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Cache for the bytes of scaled images that keeps the data outside of the Java heap. Memory is allocated in direct
+ * slabs which are split into fixed-size blocks; an image occupies as many (not necessarily adjacent) blocks as needed.
+ * The total number of bytes is limited by a hard budget, when it is reached the least recently used images are
+ * evicted. An {@link EvictionListener} can be registered to keep evicted images elsewhere.
+ *
+ * @review
+ */
+public class ImageCache {
+
+	private static final Logger log = Logger.getLogger(ImageCache.class.getName());
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+	public static final int DEFAULT_SLAB_SIZE = 4 * 1024 * 1024;
+	public static final int DEFAULT_BLOCK_SIZE = 16 * 1024;
+
+	/**
+	 *
+	 */
+	private static ImageCache instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized ImageCache getInstance() {
+		if (instance == null) {
+			log.config(LogBuilder.createSystemMessage().addAction("create default ImageCache").toString());
+			instance = new ImageCache(DEFAULT_MAX_BYTES);
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(ImageCache newInstance) {
+		log.config(LogBuilder.createSystemMessage().
+				addAction("set ImageCache instance").
+				addParameter("max bytes", newInstance.getMaxBytes()).toString());
+		instance = newInstance;
+	}
+
+	/**
+	 * Memory layout
+	 */
+	protected final int slabSize;
+	protected final int blockSize;
+	protected final int blocksPerSlab;
+	protected final int maxSlabs;
+	protected final List<ByteBuffer> slabs = new ArrayList<ByteBuffer>();
+
+	/**
+	 * Indices of all allocated blocks that are currently unused
+	 */
+	protected int[] freeBlocks;
+	protected int noFreeBlocks = 0;
+
+	/**
+	 * Entries in access order, the eldest entry is the least recently used one
+	 */
+	protected final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(64, 0.75f, true);
+
+	/**
+	 * Statistics
+	 */
+	protected long noHits = 0;
+	protected long noMisses = 0;
+	protected long noEvictions = 0;
+
+	/**
+	 * Notified after the lock of the cache has been released, so it may do I/O
+	 */
+	protected volatile EvictionListener evictionListener = null;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ImageCache(long maxBytes) {
+		this(maxBytes, DEFAULT_SLAB_SIZE, DEFAULT_BLOCK_SIZE);
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ImageCache(long maxBytes, int slabSize, int blockSize) {
+		if (blockSize <= 0 || slabSize < blockSize || slabSize % blockSize != 0) {
+			throw new IllegalArgumentException("slab size must be a positive multiple of the block size");
+		}
+		this.slabSize = slabSize;
+		this.blockSize = blockSize;
+		this.blocksPerSlab = slabSize / blockSize;
+		this.maxSlabs = (int) Math.max(1, maxBytes / slabSize);
+		this.freeBlocks = new int[blocksPerSlab];
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns a heap copy of the cached image data or null if it is not cached.
+	 */
+	public synchronized byte[] get(String photoIdAsString, int size) {
+		Entry entry = entries.get(asKey(photoIdAsString, size));
+		if (entry == null) {
+			noMisses++;
+			return null;
+		}
+
+		noHits++;
+		return readData(entry);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Copies the data of the entry from its blocks to the heap.
+	 */
+	protected byte[] readData(Entry entry) {
+		byte[] result = new byte[entry.length];
+		int offset = 0;
+		for (int block : entry.blocks) {
+			int length = Math.min(blockSize, entry.length - offset);
+			ByteBuffer slab = getSlabOfBlock(block);
+			slab.position(getOffsetOfBlock(block));
+			slab.get(result, offset, length);
+			offset += length;
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Copies the image data into the cache, evicting least recently used images if necessary. Images larger than a
+	 * quarter of the budget are not cached. Evicted images are handed to the eviction listener, if any.
+	 */
+	public void put(String photoIdAsString, int size, byte[] data) {
+		if (data == null || data.length > getMaxBytes() / 4) {
+			return;
+		}
+
+		EvictionListener listener = evictionListener;
+		List<EvictedImage> evictedImages = doPut(photoIdAsString, size, data, listener != null);
+		if (listener != null) {
+			for (EvictedImage evictedImage : evictedImages) {
+				listener.onEviction(evictedImage.photoIdAsString, evictedImage.size, evictedImage.data);
+			}
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 * @methodproperty primitive
+	 *
+	 * Returns the evicted images, which only hold their data if keepEvictedData is true.
+	 */
+	protected synchronized List<EvictedImage> doPut(String photoIdAsString, int size, byte[] data,
+													boolean keepEvictedData) {
+
+		String key = asKey(photoIdAsString, size);
+		Entry previous = entries.remove(key);
+		if (previous != null) {
+			releaseBlocks(previous);
+		}
+
+		int noBlocks = Math.max(1, (data.length + blockSize - 1) / blockSize);
+		List<EvictedImage> result = ensureFreeBlocks(noBlocks, keepEvictedData);
+
+		Entry entry = new Entry(photoIdAsString, size, new int[noBlocks], data.length);
+		int offset = 0;
+		for (int i = 0; i < noBlocks; i++) {
+			int block = freeBlocks[--noFreeBlocks];
+			entry.blocks[i] = block;
+			int length = Math.min(blockSize, data.length - offset);
+			ByteBuffer slab = getSlabOfBlock(block);
+			slab.position(getOffsetOfBlock(block));
+			slab.put(data, offset, length);
+			offset += length;
+		}
+		entries.put(key, entry);
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public synchronized void remove(String photoIdAsString, int size) {
+		Entry entry = entries.remove(asKey(photoIdAsString, size));
+		if (entry != null) {
+			releaseBlocks(entry);
+		}
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	public synchronized boolean contains(String photoIdAsString, int size) {
+		return entries.containsKey(asKey(photoIdAsString, size));
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Makes sure that at least the given number of blocks is free, first by allocating new slabs within the budget,
+	 * then by evicting least recently used entries. Returns the evicted images.
+	 */
+	protected List<EvictedImage> ensureFreeBlocks(int noBlocks, boolean keepEvictedData) {
+		while (noFreeBlocks < noBlocks && slabs.size() < maxSlabs) {
+			allocateSlab();
+		}
+
+		List<EvictedImage> result = new ArrayList<EvictedImage>();
+		Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+		while (noFreeBlocks < noBlocks && eldest.hasNext()) {
+			Entry entry = eldest.next().getValue();
+			eldest.remove();
+			byte[] evictedData = keepEvictedData ? readData(entry) : null;
+			result.add(new EvictedImage(entry.photoIdAsString, entry.size, evictedData));
+			releaseBlocks(entry);
+			noEvictions++;
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void allocateSlab() {
+		int firstBlock = slabs.size() * blocksPerSlab;
+		slabs.add(ByteBuffer.allocateDirect(slabSize));
+
+		// all allocated blocks may be free at the same time
+		if (freeBlocks.length < slabs.size() * blocksPerSlab) {
+			int[] newFreeBlocks = new int[slabs.size() * blocksPerSlab];
+			System.arraycopy(freeBlocks, 0, newFreeBlocks, 0, noFreeBlocks);
+			freeBlocks = newFreeBlocks;
+		}
+		for (int block = firstBlock + blocksPerSlab - 1; block >= firstBlock; block--) {
+			freeBlocks[noFreeBlocks++] = block;
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("allocated image cache slab").
+				addParameter("number of slabs", slabs.size()).toString());
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void releaseBlocks(Entry entry) {
+		for (int block : entry.blocks) {
+			freeBlocks[noFreeBlocks++] = block;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected ByteBuffer getSlabOfBlock(int block) {
+		return slabs.get(block / blocksPerSlab);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected int getOffsetOfBlock(int block) {
+		return (block % blocksPerSlab) * blockSize;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	protected String asKey(String photoIdAsString, int size) {
+		return photoIdAsString + "-" + size;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getMaxBytes() {
+		return (long) maxSlabs * slabSize;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the number of bytes occupied by cached images, including the unused rest of their last blocks.
+	 */
+	public synchronized long getUsedBytes() {
+		return ((long) slabs.size() * blocksPerSlab - noFreeBlocks) * blockSize;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized int getSize() {
+		return entries.size();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getNoHits() {
+		return noHits;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getNoMisses() {
+		return noMisses;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public synchronized long getNoEvictions() {
+		return noEvictions;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public EvictionListener getEvictionListener() {
+		return evictionListener;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setEvictionListener(EvictionListener newEvictionListener) {
+		evictionListener = newEvictionListener;
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public synchronized String asString() {
+		return "ImageCache: entries=" + entries.size() + ", usedBytes=" + getUsedBytes() + ", maxBytes=" +
+				getMaxBytes() + ", hits=" + noHits + ", misses=" + noMisses + ", evictions=" + noEvictions;
+	}
+
+	/**
+	 * Location of one cached image within the slabs
+	 */
+	protected static class Entry {
+
+		protected final String photoIdAsString;
+		protected final int size;
+		protected final int[] blocks;
+		protected final int length;
+
+		protected Entry(String photoIdAsString, int size, int[] blocks, int length) {
+			this.photoIdAsString = photoIdAsString;
+			this.size = size;
+			this.blocks = blocks;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * An image that has been evicted, data is null if it was not kept
+	 */
+	protected static class EvictedImage {
+
+		protected final String photoIdAsString;
+		protected final int size;
+		protected final byte[] data;
+
+		protected EvictedImage(String photoIdAsString, int size, byte[] data) {
+			this.photoIdAsString = photoIdAsString;
+			this.size = size;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Is notified about images that have been evicted from the cache
+	 */
+	public interface EvictionListener {
+
+		/**
+		 * @methodtype command
+		 */
+		void onEviction(String photoIdAsString, int size, byte[] data);
+	}
+}
@@ -0,0 +1,95 @@
+package org.wahlzeit.model.persistence;
+
+import com.googlecode.objectify.annotation.Entity;
+import com.googlecode.objectify.annotation.Id;
+
+/**
+ * Entry of the {@link ImageContentIndex}: the photo whose stored images were created from uploaded bytes with the
+ * given SHA-256 hash, and how many photos show these images.
+ */
+@Entity
+public class ImageContent {
+
+	@Id
+	private String contentHash;
+
+	private String photoIdAsString;
+
+	/**
+	 * Number of bytes of the stored images of the photo
+	 */
+	private long noBytes;
+
+	/**
+	 * Number of photos that show the images, including the photo they belong to
+	 */
+	private int refCount;
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ImageContent() {
+		// just for Objectify to load it from Datastore
+	}
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ImageContent(String contentHash, String photoIdAsString, long noBytes) {
+		this.contentHash = contentHash;
+		this.photoIdAsString = photoIdAsString;
+		this.noBytes = noBytes;
+		this.refCount = 1;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getContentHash() {
+		return contentHash;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public String getPhotoIdAsString() {
+		return photoIdAsString;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoBytes() {
+		return noBytes;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getRefCount() {
+		return refCount;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void incRefCount() {
+		refCount++;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	public void decRefCount() {
+		refCount--;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the number of bytes that were not stored again because other photos share the images.
+	 */
+	public long getNoSavedBytes() {
+		return (refCount - 1) * noBytes;
+	}
+}
@@ -0,0 +1,201 @@
+package org.wahlzeit.model.persistence;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.services.LogBuilder;
+import org.wahlzeit.services.OfyService;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Index from the SHA-256 hash of uploaded image bytes to the photo whose scaled images were created from them, kept in
+ * the datastore next to the {@link ImageStorage}. A photo uploaded again with the same bytes shows the stored images
+ * of the first photo instead of scaling and storing its own; each such reuse increments the reference count of the
+ * {@link ImageContent}, and each deleted photo decrements it. The entry is removed when no photo is left.
+ */
+public class ImageContentIndex {
+
+	private static final Logger log = Logger.getLogger(ImageContentIndex.class.getName());
+
+	/**
+	 *
+	 */
+	private static ImageContentIndex instance = null;
+
+	/**
+	 * @methodtype get
+	 */
+	public static synchronized ImageContentIndex getInstance() {
+		if (instance == null) {
+			log.config(LogBuilder.createSystemMessage().addAction("create default ImageContentIndex").toString());
+			instance = new ImageContentIndex();
+		}
+		return instance;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public static synchronized void setInstance(ImageContentIndex newInstance) {
+		instance = newInstance;
+	}
+
+	/**
+	 * Statistics since startup
+	 */
+	protected final AtomicLong noReusedContents = new AtomicLong();
+	protected final AtomicLong noSavedBytes = new AtomicLong();
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Returns the SHA-256 hash of the data as 64 hex digits.
+	 */
+	public static String computeContentHash(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+			StringBuilder result = new StringBuilder(2 * digest.length);
+			for (byte b : digest) {
+				result.append(Character.forDigit((b >> 4) & 0xF, 16));
+				result.append(Character.forDigit(b & 0xF, 16));
+			}
+			return result.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 is not available", e);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public ImageContent getImageContent(final String contentHash) {
+		return ObjectifyService.run(new Work<ImageContent>() {
+			@Override
+			public ImageContent run() {
+				return OfyService.ofy().load().type(ImageContent.class).id(contentHash).now();
+			}
+		});
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Adds a reference to the images created from content with the given hash and returns their entry, or returns
+	 * null if there are no such images.
+	 */
+	public ImageContent acquire(final String contentHash) {
+		ImageContent result = ObjectifyService.run(new Work<ImageContent>() {
+			@Override
+			public ImageContent run() {
+				return OfyService.ofy().transact(new Work<ImageContent>() {
+					@Override
+					public ImageContent run() {
+						ImageContent imageContent = OfyService.ofy().load().type(ImageContent.class).
+								id(contentHash).now();
+						if (imageContent != null) {
+							imageContent.incRefCount();
+							OfyService.ofy().save().entity(imageContent).now();
+						}
+						return imageContent;
+					}
+				});
+			}
+		});
+
+		if (result != null) {
+			noReusedContents.incrementAndGet();
+			noSavedBytes.addAndGet(result.getNoBytes());
+			log.info(LogBuilder.createSystemMessage().
+					addMessage("reused images of identical upload").
+					addParameter("photo id", result.getPhotoIdAsString()).
+					addParameter("references", result.getRefCount()).
+					addParameter("saved bytes", result.getNoBytes()).
+					addParameter("saved bytes since startup", noSavedBytes.get()).toString());
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Removes a reference to the images created from content with the given hash and returns their entry, or returns
+	 * null if there is no such entry. If the returned entry has no references left, it has been removed from the
+	 * index and its images may be deleted, as no photo can acquire them anymore.
+	 */
+	public ImageContent release(final String contentHash) {
+		ImageContent result = ObjectifyService.run(new Work<ImageContent>() {
+			@Override
+			public ImageContent run() {
+				return OfyService.ofy().transact(new Work<ImageContent>() {
+					@Override
+					public ImageContent run() {
+						ImageContent imageContent = OfyService.ofy().load().type(ImageContent.class).
+								id(contentHash).now();
+						if (imageContent != null) {
+							imageContent.decRefCount();
+							if (imageContent.getRefCount() > 0) {
+								OfyService.ofy().save().entity(imageContent).now();
+							} else {
+								OfyService.ofy().delete().entity(imageContent).now();
+							}
+						}
+						return imageContent;
+					}
+				});
+			}
+		});
+
+		if (result != null) {
+			log.info(LogBuilder.createSystemMessage().
+					addMessage("released images of deleted photo").
+					addParameter("photo id", result.getPhotoIdAsString()).
+					addParameter("references", result.getRefCount()).toString());
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Records that the images of the photo were created from content with the given hash. If another photo has been
+	 * registered for the hash in the meantime, that entry is kept and returned.
+	 */
+	public ImageContent register(final String contentHash, final String photoIdAsString, final long noBytes) {
+		return ObjectifyService.run(new Work<ImageContent>() {
+			@Override
+			public ImageContent run() {
+				return OfyService.ofy().transact(new Work<ImageContent>() {
+					@Override
+					public ImageContent run() {
+						ImageContent imageContent = OfyService.ofy().load().type(ImageContent.class).
+								id(contentHash).now();
+						if (imageContent == null) {
+							imageContent = new ImageContent(contentHash, photoIdAsString, noBytes);
+							OfyService.ofy().save().entity(imageContent).now();
+						}
+						return imageContent;
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoReusedContents() {
+		return noReusedContents.get();
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the number of image bytes that have not been scaled and stored again since startup.
+	 */
+	public long getNoSavedBytes() {
+		return noSavedBytes.get();
+	}
+}
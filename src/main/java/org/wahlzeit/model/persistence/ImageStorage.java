@@ -1,11 +1,19 @@
 package org.wahlzeit.model.persistence;
 
+import com.google.appengine.api.images.Image;
 import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.services.LogBuilder;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
 import java.util.logging.Logger;
 
 /**
@@ -18,6 +26,11 @@ public abstract class ImageStorage {
 	private static final Logger log = Logger.getLogger(ImageStorage.class.getName());
 	private static ImageStorage instance = null;
 
+	/**
+	 * Size of the chunks in which streamed images are copied
+	 */
+	public static final int STREAM_CHUNK_SIZE = 64 * 1024;
+
 	/**
 	 * @methodtype get
 	 */
@@ -75,6 +88,77 @@ public abstract class ImageStorage {
 	protected abstract void doWriteImage(Serializable image, String photoIdAsString, int size)
 			throws IOException, InvalidParameterException;
 
+	/**
+	 * Writes several sizes of the photo to the storage as one operation. The map is from size to image, see
+	 * {@link PhotoSize#asInt()}. Existing files are overwritten.
+	 *
+	 * @methodtype command
+	 * @methodproperty wrapper
+	 */
+	public void writeImages(Map<Integer, ? extends Serializable> images, String photoIdAsString)
+			throws InvalidParameterException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		for (Map.Entry<Integer, ? extends Serializable> entry : images.entrySet()) {
+			assertImageNotNull(entry.getValue());
+			PhotoSize.assertIsValidPhotoSizeAsInt(entry.getKey());
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("write images to storage").
+				addParameter("photo id", photoIdAsString).
+				addParameter("sizes", images.keySet()).toString());
+
+		doWriteImages(images, photoIdAsString);
+	}
+
+	/**
+	 * Actually writes the images to the storage. By default, they are written one after the other in the iteration
+	 * order of the map.
+	 *
+	 * @methodtype command
+	 * @methodproperty hook
+	 */
+	protected void doWriteImages(Map<Integer, ? extends Serializable> images, String photoIdAsString)
+			throws IOException, InvalidParameterException {
+
+		for (Map.Entry<Integer, ? extends Serializable> entry : images.entrySet()) {
+			doWriteImage(entry.getValue(), photoIdAsString, entry.getKey());
+		}
+	}
+
+
+	// delete methods --------------------------------------------------------------------------------------------------
+
+	/**
+	 * Removes the image from the storage. Nothing happens if it does not exist.
+	 *
+	 * @methodtype command
+	 * @methodproperty wrapper
+	 */
+	public void deleteImage(String photoIdAsString, int size)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("delete image from storage").
+				addParameter("photo id", photoIdAsString).
+				addParameter("size", size).toString());
+
+		doDeleteImage(photoIdAsString, size);
+	}
+
+	/**
+	 * Actually removes the image from the storage
+	 *
+	 * @methodtype command
+	 * @methodproperty hook
+	 */
+	protected abstract void doDeleteImage(String photoIdAsString, int size)
+			throws IOException;
+
 
 	// read methods ----------------------------------------------------------------------------------------------------
 
@@ -107,6 +191,143 @@ public abstract class ImageStorage {
 	protected abstract Serializable doReadImage(String filename, int size)
 			throws IOException;
 
+	/**
+	 * Reads several sizes of the photo from the storage as one operation. The result maps each size that exists to its
+	 * image; sizes that are not found are missing.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public Map<Integer, Serializable> readImages(String photoIdAsString, Collection<Integer> sizes)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		for (int size : sizes) {
+			PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("read images from storage").
+				addParameter("photo id", photoIdAsString).
+				addParameter("sizes", sizes).toString());
+
+		return doReadImages(photoIdAsString, sizes);
+	}
+
+	/**
+	 * Actually reads the images from the storage. By default, they are read one after the other.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected Map<Integer, Serializable> doReadImages(String photoIdAsString, Collection<Integer> sizes)
+			throws IOException {
+
+		Map<Integer, Serializable> result = new TreeMap<Integer, Serializable>();
+		for (int size : sizes) {
+			Serializable image = doReadImage(photoIdAsString, size);
+			if (image != null) {
+				result.put(size, image);
+			}
+		}
+		return result;
+	}
+
+
+	// stream methods --------------------------------------------------------------------------------------------------
+
+	/**
+	 * Returns the number of bytes of the specified image, -1 if it does not exist.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public long getImageLength(String photoIdAsString, int size)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("get image length").
+				addParameter("photo id", photoIdAsString).
+				addParameter("size", size).toString());
+
+		return doGetImageLength(photoIdAsString, size);
+	}
+
+	/**
+	 * Actually determines the number of bytes of the image. By default, the image is read.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected long doGetImageLength(String photoIdAsString, int size)
+			throws IOException {
+
+		Serializable image = doReadImage(photoIdAsString, size);
+		return image instanceof Image ? ((Image) image).getImageData().length : -1;
+	}
+
+	/**
+	 * Writes length bytes of the specified image, starting at offset, to the output stream.
+	 *
+	 * @methodtype command
+	 * @methodproperty wrapper
+	 */
+	public void streamImage(String photoIdAsString, int size, long offset, long length, OutputStream out)
+			throws IllegalArgumentException, IOException {
+
+		assertValidPhotoId(photoIdAsString);
+		PhotoSize.assertIsValidPhotoSizeAsInt(size);
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Invalid range: offset " + offset + ", length " + length);
+		}
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("stream image from storage").
+				addParameter("photo id", photoIdAsString).
+				addParameter("size", size).
+				addParameter("offset", offset).
+				addParameter("length", length).toString());
+
+		doStreamImage(photoIdAsString, size, offset, length, out);
+	}
+
+	/**
+	 * Actually writes the range of the image to the output stream. By default, the image is read completely and the
+	 * range is written in chunks.
+	 *
+	 * @methodtype command
+	 * @methodproperty hook
+	 */
+	protected void doStreamImage(String photoIdAsString, int size, long offset, long length, OutputStream out)
+			throws IOException {
+
+		Serializable image = doReadImage(photoIdAsString, size);
+		if (!(image instanceof Image)) {
+			throw new IOException("Image does not exist: " + photoIdAsString + ", size " + size);
+		}
+
+		byte[] imageData = ((Image) image).getImageData();
+		if (offset + length > imageData.length) {
+			throw new EOFException("Range exceeds image of " + imageData.length + " bytes");
+		}
+		for (long position = offset; position < offset + length; position += STREAM_CHUNK_SIZE) {
+			out.write(imageData, (int) position, (int) Math.min(STREAM_CHUNK_SIZE, offset + length - position));
+		}
+	}
+
+	/**
+	 * Returns true if images can be streamed without reading them completely, see
+	 * {@link #streamImage(String, int, long, long, OutputStream)}.
+	 *
+	 * @methodtype boolean query
+	 */
+	public boolean isStreamingSupported() {
+		return false;
+	}
+
 
 	// exist method ----------------------------------------------------------------------------------------------------
 
@@ -139,6 +360,54 @@ public abstract class ImageStorage {
 	 */
 	protected abstract boolean doDoesImageExist(String photoIdAsString, int size);
 
+	/**
+	 * Returns the sizes in which the photo exists in the storage, determined from metadata without reading the images.
+	 *
+	 * @methodtype get
+	 * @methodproperty wrapper
+	 */
+	public Set<Integer> existingSizes(String photoIdAsString)
+			throws IllegalArgumentException {
+
+		assertValidPhotoId(photoIdAsString);
+
+		log.config(LogBuilder.createSystemMessage().
+				addAction("get existing sizes from storage").
+				addParameter("photo id", photoIdAsString).toString());
+
+		return doExistingSizes(photoIdAsString);
+	}
+
+	/**
+	 * Actually determines the existing sizes. By default, the existence of each size is checked separately.
+	 *
+	 * @methodtype get
+	 * @methodproperty hook
+	 */
+	protected Set<Integer> doExistingSizes(String photoIdAsString) {
+		Set<Integer> result = new TreeSet<Integer>();
+		for (PhotoSize photoSize : PhotoSize.values()) {
+			if (doDoesImageExist(photoIdAsString, photoSize.asInt())) {
+				result.add(photoSize.asInt());
+			}
+		}
+		return result;
+	}
+
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Returns the hash code of the photo id with its bits mixed, so that consecutive photo ids get unrelated values.
+	 * Adapters use it to spread the images of photos over directories or key ranges.
+	 */
+	protected static int getSpreadHash(String photoIdAsString) {
+		int result = photoIdAsString.hashCode();
+		result ^= (result >>> 16);
+		result *= 0x85EBCA6B;
+		result ^= (result >>> 13);
+		return result;
+	}
 
 	// assertion methods -----------------------------------------------------------------------------------------------
 
@@ -0,0 +1,484 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import org.wahlzeit.services.LogBuilder;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Image storage that chains several tiers, from the fastest to the slowest: an {@link ImageCache} in memory, followed
+ * by one or more image storages, e.g. the local disk and the remote Datastore or GCS. The last storage tier is the
+ * authoritative one, images are written through to all tiers. The tiered storage is the only access point of its
+ * memory tier, so callers read images through it instead of asking the cache themselves.
+ *
+ * Reads go down the tiers until the image is found and promote it to all faster tiers. If there is a storage tier in
+ * front of the authoritative one, images evicted from memory are demoted to it if it does not hold them yet. Each
+ * tier counts its hits, misses and the time spent in it, see {@link #getTierStatistics()}.
+ */
+public class TieredImageStorage extends ImageStorage {
+
+	private static final Logger log = Logger.getLogger(TieredImageStorage.class.getName());
+
+	/**
+	 *
+	 */
+	protected final ImageCache memoryTier;
+	protected final List<ImageStorage> storageTiers;
+
+	/**
+	 * Statistics of the memory tier, followed by those of the storage tiers
+	 */
+	protected final List<TierStatistics> tierStatistics = new ArrayList<TierStatistics>();
+
+	/**
+	 *
+	 */
+	protected final AtomicLong noPromotions = new AtomicLong();
+	protected final AtomicLong noDemotions = new AtomicLong();
+
+	/**
+	 * @methodtype constructor
+	 *
+	 * The storage tiers are ordered from the fastest to the authoritative one. If there is more than one storage tier,
+	 * the tiered storage registers as eviction listener of the cache, so the cache should not be shared.
+	 */
+	public TieredImageStorage(ImageCache memoryTier, List<? extends ImageStorage> storageTiers) {
+		if (memoryTier == null || storageTiers == null || storageTiers.isEmpty()) {
+			throw new IllegalArgumentException("Tiered storage needs a memory tier and at least one storage tier");
+		}
+
+		this.memoryTier = memoryTier;
+		this.storageTiers = Collections.unmodifiableList(new ArrayList<ImageStorage>(storageTiers));
+
+		tierStatistics.add(new TierStatistics("memory"));
+		for (ImageStorage storageTier : storageTiers) {
+			tierStatistics.add(new TierStatistics(storageTier.getClass().getSimpleName()));
+		}
+
+		// evicted images are still held by the authoritative tier, there is nothing to demote if it is the only one
+		if (storageTiers.size() > 1) {
+			memoryTier.setEvictionListener(new ImageCache.EvictionListener() {
+				@Override
+				public void onEviction(String photoIdAsString, int size, byte[] data) {
+					demote(photoIdAsString, size, data);
+				}
+			});
+		}
+	}
+
+
+	// write-methods ---------------------------------------------------------------------------------------------------
+
+	/**
+	 * Writes the image to the storage tiers, starting with the authoritative one, so faster tiers never hold images
+	 * the authoritative tier does not. Memory is written last, as new images are usually shown right away.
+	 */
+	@Override
+	protected void doWriteImage(Serializable image, String photoIdAsString, int size)
+			throws IOException, InvalidParameterException {
+
+		for (int i = storageTiers.size() - 1; i >= 0; i--) {
+			storageTiers.get(i).doWriteImage(image, photoIdAsString, size);
+		}
+		writeToMemory(image, photoIdAsString, size);
+	}
+
+	/**
+	 * Writes the images to the storage tiers with their batch operation, starting with the authoritative one.
+	 */
+	@Override
+	protected void doWriteImages(Map<Integer, ? extends Serializable> images, String photoIdAsString)
+			throws IOException, InvalidParameterException {
+
+		for (int i = storageTiers.size() - 1; i >= 0; i--) {
+			storageTiers.get(i).doWriteImages(images, photoIdAsString);
+		}
+		for (Map.Entry<Integer, ? extends Serializable> entry : images.entrySet()) {
+			writeToMemory(entry.getValue(), photoIdAsString, entry.getKey());
+		}
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Replaces the copy of the image in memory; images that are no {@link Image} are not kept in memory.
+	 */
+	protected void writeToMemory(Serializable image, String photoIdAsString, int size) {
+		if (image instanceof Image) {
+			memoryTier.put(photoIdAsString, size, ((Image) image).getImageData());
+		} else {
+			memoryTier.remove(photoIdAsString, size);
+		}
+	}
+
+
+	// delete methods --------------------------------------------------------------------------------------------------
+
+	/**
+	 * Deletes the image from memory first and from the authoritative tier last, the reverse order of writing.
+	 */
+	@Override
+	protected void doDeleteImage(String photoIdAsString, int size) throws IOException {
+		memoryTier.remove(photoIdAsString, size);
+		for (ImageStorage storageTier : storageTiers) {
+			storageTier.doDeleteImage(photoIdAsString, size);
+		}
+	}
+
+
+	// read methods ----------------------------------------------------------------------------------------------------
+
+	@Override
+	protected Serializable doReadImage(String photoIdAsString, int size) throws IOException {
+		byte[] imageData = readFromMemory(photoIdAsString, size);
+		if (imageData != null) {
+			return ImagesServiceFactory.makeImage(imageData);
+		}
+
+		for (int i = 0; i < storageTiers.size(); i++) {
+			TierStatistics statistics = getStorageTierStatistics(i);
+			long start = System.nanoTime();
+			Serializable result = storageTiers.get(i).doReadImage(photoIdAsString, size);
+			statistics.addAccess(result != null, System.nanoTime() - start);
+			if (result != null) {
+				promote(photoIdAsString, size, result, i);
+				return result;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Takes the images from the fastest tier that has them; only the sizes that are still missing are read from the
+	 * next tier with its batch operation.
+	 */
+	@Override
+	protected Map<Integer, Serializable> doReadImages(String photoIdAsString, Collection<Integer> sizes)
+			throws IOException {
+
+		Map<Integer, Serializable> result = new TreeMap<Integer, Serializable>();
+		List<Integer> missingSizes = new ArrayList<Integer>();
+		for (int size : sizes) {
+			byte[] imageData = readFromMemory(photoIdAsString, size);
+			if (imageData != null) {
+				result.put(size, ImagesServiceFactory.makeImage(imageData));
+			} else {
+				missingSizes.add(size);
+			}
+		}
+
+		for (int i = 0; i < storageTiers.size() && !missingSizes.isEmpty(); i++) {
+			TierStatistics statistics = getStorageTierStatistics(i);
+			long start = System.nanoTime();
+			Map<Integer, Serializable> images = storageTiers.get(i).doReadImages(photoIdAsString, missingSizes);
+			long nanos = System.nanoTime() - start;
+			for (int size : missingSizes) {
+				statistics.addAccess(images.containsKey(size), nanos / missingSizes.size());
+			}
+
+			for (Map.Entry<Integer, Serializable> entry : images.entrySet()) {
+				promote(photoIdAsString, entry.getKey(), entry.getValue(), i);
+				result.put(entry.getKey(), entry.getValue());
+			}
+			missingSizes.removeAll(images.keySet());
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	protected byte[] readFromMemory(String photoIdAsString, int size) {
+		long start = System.nanoTime();
+		byte[] result = memoryTier.get(photoIdAsString, size);
+		getMemoryTierStatistics().addAccess(result != null, System.nanoTime() - start);
+		return result;
+	}
+
+
+	// stream methods --------------------------------------------------------------------------------------------------
+
+	@Override
+	protected long doGetImageLength(String photoIdAsString, int size) throws IOException {
+		for (ImageStorage storageTier : storageTiers) {
+			long result = storageTier.doGetImageLength(photoIdAsString, size);
+			if (result >= 0) {
+				return result;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Streams the image from memory or the fastest storage tier that holds it and supports streaming. Otherwise, the
+	 * image is read through the tiers and promoted.
+	 */
+	@Override
+	protected void doStreamImage(String photoIdAsString, int size, long offset, long length, OutputStream out)
+			throws IOException {
+
+		byte[] imageData = readFromMemory(photoIdAsString, size);
+		if (imageData != null) {
+			if (offset + length > imageData.length) {
+				throw new EOFException("Range exceeds image of " + imageData.length + " bytes");
+			}
+			out.write(imageData, (int) offset, (int) length);
+			return;
+		}
+
+		for (int i = 0; i < storageTiers.size(); i++) {
+			ImageStorage storageTier = storageTiers.get(i);
+			if (storageTier.isStreamingSupported() && storageTier.doDoesImageExist(photoIdAsString, size)) {
+				long start = System.nanoTime();
+				storageTier.doStreamImage(photoIdAsString, size, offset, length, out);
+				getStorageTierStatistics(i).addAccess(true, System.nanoTime() - start);
+				return;
+			}
+		}
+		super.doStreamImage(photoIdAsString, size, offset, length, out);
+	}
+
+	/**
+	 * Returns true if any storage tier supports streaming.
+	 */
+	@Override
+	public boolean isStreamingSupported() {
+		for (ImageStorage storageTier : storageTiers) {
+			if (storageTier.isStreamingSupported()) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+
+	// exist methods ---------------------------------------------------------------------------------------------------
+
+	@Override
+	protected boolean doDoesImageExist(String photoIdAsString, int size) {
+		if (memoryTier.contains(photoIdAsString, size)) {
+			return true;
+		}
+		for (ImageStorage storageTier : storageTiers) {
+			if (storageTier.doDoesImageExist(photoIdAsString, size)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * As images are written through, the authoritative tier knows all sizes.
+	 */
+	@Override
+	protected Set<Integer> doExistingSizes(String photoIdAsString) {
+		return getAuthoritativeTier().doExistingSizes(photoIdAsString);
+	}
+
+
+	// promotion and demotion ------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype command
+	 *
+	 * Copies the image that has been found in the given storage tier to all faster tiers.
+	 */
+	protected void promote(String photoIdAsString, int size, Serializable image, int foundInTier) {
+		if (!(image instanceof Image)) {
+			return;
+		}
+
+		for (int i = foundInTier - 1; i >= 0; i--) {
+			try {
+				storageTiers.get(i).doWriteImage(image, photoIdAsString, size);
+			} catch (IOException e) {
+				log.warning(LogBuilder.createSystemMessage().
+						addException("Problem when promoting image", e).toString());
+			}
+		}
+		memoryTier.put(photoIdAsString, size, ((Image) image).getImageData());
+		noPromotions.incrementAndGet();
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Keeps the image that has been evicted from memory in the first storage tier. Nothing needs to be done if it
+	 * already holds the image.
+	 */
+	protected void demote(String photoIdAsString, int size, byte[] data) {
+		ImageStorage firstTier = storageTiers.get(0);
+		if (data == null || firstTier.doDoesImageExist(photoIdAsString, size)) {
+			return;
+		}
+
+		try {
+			firstTier.doWriteImage(ImagesServiceFactory.makeImage(data), photoIdAsString, size);
+			noDemotions.incrementAndGet();
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().
+					addException("Problem when demoting image", e).toString());
+		}
+	}
+
+
+	// statistics ------------------------------------------------------------------------------------------------------
+
+	/**
+	 * @methodtype get
+	 */
+	public ImageCache getMemoryTier() {
+		return memoryTier;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public List<ImageStorage> getStorageTiers() {
+		return storageTiers;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public ImageStorage getAuthoritativeTier() {
+		return storageTiers.get(storageTiers.size() - 1);
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the statistics of all tiers, starting with the memory tier.
+	 */
+	public List<TierStatistics> getTierStatistics() {
+		return Collections.unmodifiableList(tierStatistics);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public TierStatistics getMemoryTierStatistics() {
+		return tierStatistics.get(0);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public TierStatistics getStorageTierStatistics(int index) {
+		return tierStatistics.get(index + 1);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoPromotions() {
+		return noPromotions.get();
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public long getNoDemotions() {
+		return noDemotions.get();
+	}
+
+	/**
+	 * @methodtype conversion
+	 */
+	public String asString() {
+		StringBuilder result = new StringBuilder("TieredImageStorage: promotions=" + noPromotions.get() +
+				", demotions=" + noDemotions.get());
+		for (TierStatistics statistics : tierStatistics) {
+			result.append("; ").append(statistics.asString());
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Hits, misses and accumulated latency of the reads of one tier
+	 */
+	public static class TierStatistics {
+
+		protected final String name;
+		protected final AtomicLong noHits = new AtomicLong();
+		protected final AtomicLong noMisses = new AtomicLong();
+		protected final AtomicLong totalNanos = new AtomicLong();
+
+		/**
+		 * @methodtype constructor
+		 */
+		public TierStatistics(String name) {
+			this.name = name;
+		}
+
+		/**
+		 * @methodtype command
+		 */
+		public void addAccess(boolean isHit, long nanos) {
+			(isHit ? noHits : noMisses).incrementAndGet();
+			totalNanos.addAndGet(nanos);
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public long getNoHits() {
+			return noHits.get();
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public long getNoMisses() {
+			return noMisses.get();
+		}
+
+		/**
+		 * @methodtype get
+		 *
+		 * Returns the share of reads that found the image in this tier, 0 if there were no reads.
+		 */
+		public double getHitRate() {
+			long noAccesses = noHits.get() + noMisses.get();
+			return noAccesses == 0 ? 0 : (double) noHits.get() / noAccesses;
+		}
+
+		/**
+		 * @methodtype get
+		 */
+		public double getAverageLatencyMillis() {
+			long noAccesses = noHits.get() + noMisses.get();
+			return noAccesses == 0 ? 0 : totalNanos.get() / 1000000.0 / noAccesses;
+		}
+
+		/**
+		 * @methodtype conversion
+		 */
+		public String asString() {
+			return name + ": hits=" + noHits.get() + ", misses=" + noMisses.get() + ", hitRate=" +
+					String.format("%.3f", getHitRate()) + ", avgLatencyMs=" +
+					String.format("%.3f", getAverageLatencyMillis());
+		}
+	}
+}
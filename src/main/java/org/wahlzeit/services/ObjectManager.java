@@ -20,9 +20,14 @@
 
 package org.wahlzeit.services;
 
+import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.Key;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.googlecode.objectify.Result;
+import com.googlecode.objectify.cmd.Query;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.logging.Logger;
@@ -40,6 +45,17 @@ public abstract class ObjectManager {
 
 	private static final Logger log = Logger.getLogger(ObjectManager.class.getName());
 
+	/**
+	 * The datastore accepts at most this many entities in one batch write
+	 */
+	public static final int MAX_WRITE_BATCH_SIZE = 500;
+	public static final int DEFAULT_WRITE_BATCH_SIZE = 100;
+
+	/**
+	 * Number of entities that are saved together by updateObjects
+	 */
+	protected int writeBatchSize = DEFAULT_WRITE_BATCH_SIZE;
+
 
 	/**
 	 * Reads the first Entity with the given key in the Datastore
@@ -106,11 +122,39 @@ public abstract class ObjectManager {
 		result.addAll(objects);
 	}
 
+	/**
+	 * Reads at most limit Entities of the specified type, starting at the position of the given cursor (null to start
+	 * at the beginning). Returns the web safe cursor to continue with, or null if there are no more entities to read.
+	 */
+	protected <E> String readObjects(Collection<? super E> result, Class<E> type, int limit, String cursor) {
+		assertIsNonNullArgument(result, "result");
+		assertIsNonNullArgument(type, "type");
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: load page of entities of type", type.getName()).
+				addParameter("page size", limit).toString());
+		Query<E> query = OfyService.ofy().load().type(type).ancestor(applicationRootKey).limit(limit).chunk(limit);
+		if (cursor != null) {
+			query = query.startAt(Cursor.fromWebSafeString(cursor));
+		}
+
+		int noLoadedObjects = 0;
+		QueryResultIterator<E> iterator = query.iterator();
+		while (iterator.hasNext()) {
+			result.add(iterator.next());
+			noLoadedObjects++;
+		}
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: number of loaded objects", noLoadedObjects).toString());
+
+		return noLoadedObjects < limit ? null : iterator.getCursor().toWebSafeString();
+	}
+
 	/**
 	 * Reads all Entities of the specified type, where the given property matches the wanted value e.g.
 	 * readObject(User.class) to get a list of all clients
 	 */
-	protected <E> void readObjects(Collection<E> result, Class<E> type, String propertyName, Object value) {
+	protected <E> void readObjects(Collection<? super E> result, Class<E> type, String propertyName, Object value) {
 		assertIsNonNullArgument(result, "result");
 		assertIsNonNullArgument(type, "type");
 		assertIsNonNullArgument(propertyName, "propertyName");
@@ -127,11 +171,35 @@ public abstract class ObjectManager {
 	}
 
 	/**
-	 * Updates all entities of the given collection in the datastore.
+	 * Updates all entities of the given collection in the datastore. Dirty entities are saved in batches of
+	 * writeBatchSize; all batches are issued asynchronously and awaited together.
 	 */
 	protected void updateObjects(Collection<? extends Persistent> collection) {
+		assertIsNonNullArgument(collection, "collection");
+
+		List<Persistent> dirtyObjects = new ArrayList<Persistent>();
 		for (Persistent object : collection) {
-			updateObject(object);
+			if (object.isDirty()) {
+				dirtyObjects.add(object);
+			}
+		}
+		writeObjects(dirtyObjects);
+	}
+
+	/**
+	 * Writes the given entities to the datastore in batches, then updates their dependents together.
+	 */
+	protected void writeObjects(List<? extends Persistent> objects) {
+		assertIsNonNullArgument(objects, "objects");
+		if (objects.isEmpty()) {
+			return;
+		}
+
+		saveObjects(objects);
+		updateDependents(objects);
+
+		for (Persistent object : objects) {
+			object.resetWriteCount();
 		}
 	}
 
@@ -151,6 +219,7 @@ public abstract class ObjectManager {
 		if (object.isDirty()) {
 			log.info(LogBuilder.createSystemMessage().
 					addParameter("Datastore: Write object of type", object).toString());
+			prepareForWrite(object);
 			OfyService.ofy().save().entity(object).now();
 			updateDependents(object);
 			object.resetWriteCount();
@@ -160,6 +229,38 @@ public abstract class ObjectManager {
 		}
 	}
 
+	/**
+	 * Saves the given entities in batches of writeBatchSize without updating their dependents. All batches are issued
+	 * asynchronously and awaited together.
+	 */
+	protected void saveObjects(List<? extends Persistent> objects) {
+		assertIsNonNullArgument(objects, "objects");
+
+		log.info(LogBuilder.createSystemMessage().
+				addParameter("Datastore: Write objects", objects.size()).
+				addParameter("batch size", writeBatchSize).toString());
+
+		List<Result<?>> pendingWrites = new ArrayList<Result<?>>();
+		for (int from = 0; from < objects.size(); from += writeBatchSize) {
+			List<Persistent> batch = new ArrayList<Persistent>(
+					objects.subList(from, Math.min(from + writeBatchSize, objects.size())));
+			for (Persistent object : batch) {
+				prepareForWrite(object);
+			}
+			pendingWrites.add(OfyService.ofy().save().entities(batch));
+		}
+		for (Result<?> pendingWrite : pendingWrites) {
+			pendingWrite.now();
+		}
+	}
+
+	/**
+	 * Updates derived, persisted properties of the object right before it is written.
+	 */
+	protected void prepareForWrite(Persistent object) {
+		// overwrite if your object has derived properties
+	}
+
 	/**
 	 * Updates all dependencies of the object.
 	 */
@@ -167,6 +268,16 @@ public abstract class ObjectManager {
 		// overwrite if your object has additional dependencies
 	}
 
+	/**
+	 * Updates all dependencies of the objects that have been written together. By default, the dependents of each
+	 * object are updated separately; overwrite to write dependents that are shared by the objects in batches.
+	 */
+	protected void updateDependents(List<? extends Persistent> objects) {
+		for (Persistent object : objects) {
+			updateDependents(object);
+		}
+	}
+
 	/**
 	 * Deletes the given entity from the datastore.
 	 */
@@ -177,6 +288,17 @@ public abstract class ObjectManager {
 		OfyService.ofy().delete().entity(object).now();
 	}
 
+	/**
+	 * Deletes the given entities from the datastore with one batch delete.
+	 */
+	protected <E> void deleteObjects(Collection<E> objects) {
+		assertIsNonNullArgument(objects, "objects");
+
+		log.config(LogBuilder.createSystemMessage().
+				addParameter("Datastore: delete entities", objects.size()).toString());
+		OfyService.ofy().delete().entities(objects).now();
+	}
+
 	/**
 	 * Deletes all entities of the type that have a property with the specified value, e.g.
 	 * deleteObjects(PhotoCase.class, "wasDecided", true) to delete all cases that have been decided.
@@ -194,6 +316,23 @@ public abstract class ObjectManager {
 		OfyService.ofy().delete().keys(keys);
 	}
 
+	/**
+	 * @methodtype get
+	 */
+	public int getWriteBatchSize() {
+		return writeBatchSize;
+	}
+
+	/**
+	 * @methodtype set
+	 */
+	public void setWriteBatchSize(int writeBatchSize) {
+		if (writeBatchSize <= 0 || writeBatchSize > MAX_WRITE_BATCH_SIZE) {
+			throw new IllegalArgumentException("write batch size must be between 1 and " + MAX_WRITE_BATCH_SIZE);
+		}
+		this.writeBatchSize = writeBatchSize;
+	}
+
 	/**
 	 *
 	 */
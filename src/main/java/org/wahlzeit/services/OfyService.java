@@ -16,8 +16,13 @@ import org.wahlzeit.model.Photo;
 import org.wahlzeit.model.PhotoCase;
 import org.wahlzeit.model.SphericCoordinate;
 import org.wahlzeit.model.Tag;
+import org.wahlzeit.model.UploadChunk;
+import org.wahlzeit.model.UploadStatus;
 import org.wahlzeit.model.User;
+import org.wahlzeit.model.persistence.DatastoreAdapter.ImageChunk;
+import org.wahlzeit.model.persistence.DatastoreAdapter.ImageManifest;
 import org.wahlzeit.model.persistence.DatastoreAdapter.ImageWrapper;
+import org.wahlzeit.model.persistence.ImageContent;
 
 
 /**
@@ -42,6 +47,11 @@ public class OfyService {
 		factory().register(Guest.class);
 		factory().register(PhotoCase.class);
 		factory().register(ImageWrapper.class);
+		factory().register(ImageManifest.class);
+		factory().register(ImageChunk.class);
+		factory().register(ImageContent.class);
+		factory().register(UploadStatus.class);
+		factory().register(UploadChunk.class);
 		factory().register(Location.class);
 	}
 
@@ -21,17 +21,15 @@
 package org.wahlzeit.servlets;
 
 import com.google.api.client.util.Charsets;
-import com.google.appengine.api.images.Image;
-import com.google.appengine.api.images.ImagesServiceFactory;
 import com.google.common.io.CharStreams;
 import org.apache.commons.fileupload.FileItemIterator;
+import org.apache.commons.fileupload.FileUploadBase;
 import org.apache.commons.fileupload.FileItemStream;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
 import org.wahlzeit.handlers.PartUtil;
 import org.wahlzeit.handlers.WebFormHandler;
 import org.wahlzeit.handlers.WebPageHandler;
 import org.wahlzeit.handlers.WebPartHandlerManager;
-import org.wahlzeit.model.User;
 import org.wahlzeit.model.UserSession;
 import org.wahlzeit.services.LogBuilder;
 import org.wahlzeit.services.SessionManager;
@@ -40,10 +38,11 @@ import org.wahlzeit.webparts.WebPart;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.logging.Logger;
@@ -60,6 +59,17 @@ public class MainServlet extends AbstractServlet {
 	 */
 	private static final long serialVersionUID = 42L; // any one does; class never serialized
 
+	/**
+	 * Limits of uploads, the request may additionally contain the form fields
+	 */
+	public static final int MAX_UPLOAD_BYTES = 10 * 1024 * 1024;
+	public static final int MAX_REQUEST_BYTES = MAX_UPLOAD_BYTES + 64 * 1024;
+
+	/**
+	 * Initial size of the upload array if the request does not announce its length
+	 */
+	public static final int MIN_UPLOAD_BUFFER_SIZE = 64 * 1024;
+
 	/**
 	 *
 	 */
@@ -77,7 +87,18 @@ public class MainServlet extends AbstractServlet {
 		}
 		log.info(LogBuilder.createUserMessage().addParameter("posted to", link).toString());
 
-		Map args = getRequestArgs(request, us);
+		Map args;
+		try {
+			args = getRequestArgs(request, us);
+		} catch (UploadTooLargeException ex) {
+			log.warning(LogBuilder.createSystemMessage().addException("rejected upload", ex).toString());
+			us.setMessage(us.getClient().getLanguageConfiguration().getPhotoUploadTooLarge());
+			// the rest of the body is not read
+			response.setHeader("Connection", "close");
+			redirectRequest(response, PartUtil.UPLOAD_PHOTO_PAGE_NAME);
+			SessionManager.dropThreadLocalSession();
+			return;
+		}
 		log.info(LogBuilder.createSystemMessage().
 				addParameter("POST arguments", getRequestArgsAsString(us, args)).toString());
 
@@ -146,14 +167,23 @@ public class MainServlet extends AbstractServlet {
 
 	/**
 	 * Searches for files in the request and puts them in the resulting map with the key "fileName". When a file is
-	 * found, you can access its path by searching for elements with the key "fileName".
+	 * found, you can access its path by searching for elements with the key "fileName" and its data, a
+	 * {@link ByteBuffer}, by searching for the key "fileData". The data only lives as long as the request. Requests
+	 * that announce more than {@link #MAX_REQUEST_BYTES} are rejected before the body is read, files that turn out to
+	 * be larger than {@link #MAX_UPLOAD_BYTES} while they are read are rejected as well.
 	 */
 	protected Map getMultiPartRequestArgs(HttpServletRequest request, UserSession us) throws IOException,
 			ServletException {
-		Map<String, String> result = new HashMap<String, String>();
+		if (request.getContentLength() > MAX_REQUEST_BYTES) {
+			throw new UploadTooLargeException("Request of " + request.getContentLength() + " bytes");
+		}
+
+		Map<String, Object> result = new HashMap<String, Object>();
 		result.putAll(request.getParameterMap());
 		try {
 			ServletFileUpload upload = new ServletFileUpload();
+			upload.setSizeMax(MAX_REQUEST_BYTES);
+			upload.setFileSizeMax(MAX_UPLOAD_BYTES);
 			FileItemIterator iterator = upload.getItemIterator(request);
 
 			while (iterator.hasNext()) {
@@ -162,9 +192,7 @@ public class MainServlet extends AbstractServlet {
 
 				if (!fileItemStream.isFormField()) {
 					InputStream inputStream = fileItemStream.openStream();
-					Image image = getImage(inputStream);
-					User user = (User) us.getClient();
-					user.setUploadedImage(image);
+					result.put("fileData", readUpload(inputStream, request.getContentLength()));
 					result.put("fileName", filename);
 					log.config(LogBuilder.createSystemMessage().addParameter("Uploaded image", filename).toString());
 				} else {
@@ -177,6 +205,16 @@ public class MainServlet extends AbstractServlet {
 							addParameter("value", value).toString());
 				}
 			}
+		} catch (FileUploadBase.SizeLimitExceededException ex) {
+			throw new UploadTooLargeException(ex.getMessage());
+		} catch (FileUploadBase.FileUploadIOException ex) {
+			// the limits are enforced while the streams of the items are read
+			if (isSizeLimitExceeded(ex.getCause())) {
+				throw new UploadTooLargeException(ex.getCause().getMessage());
+			}
+			throw new ServletException(ex);
+		} catch (UploadTooLargeException ex) {
+			throw ex;
 		} catch (Exception ex) {
 			throw new ServletException(ex);
 		}
@@ -185,22 +223,57 @@ public class MainServlet extends AbstractServlet {
 	}
 
 	/**
-	 * Create an Image object from the Input stream.
+	 * @methodtype boolean-query
 	 */
-	private Image getImage(InputStream input) throws IOException {
-		Image image;
+	protected boolean isSizeLimitExceeded(Throwable cause) {
+		return cause instanceof FileUploadBase.SizeLimitExceededException ||
+				cause instanceof FileUploadBase.FileSizeLimitExceededException;
+	}
+
+	/**
+	 * Reads the upload from the input stream into a single array. The array is sized by the expected length, e.g. the
+	 * length of the request, which the upload cannot exceed, and only grows if the length was not known. As the
+	 * request also holds the form fields, the array is usually larger than the upload; it is not copied to its exact
+	 * size, the returned buffer covers the bytes of the upload instead.
+	 */
+	protected ByteBuffer readUpload(InputStream input, long expectedLength) throws IOException {
 		try {
-			ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-			byte[] buffer = new byte[1024 * 1024];
-			int bytesRead = input.read(buffer);
-			while (bytesRead != -1) {
-				outputStream.write(buffer, 0, bytesRead);
-				bytesRead = input.read(buffer);
+			int initialSize = MIN_UPLOAD_BUFFER_SIZE;
+			if (expectedLength > 0) {
+				initialSize = (int) Math.min(expectedLength, MAX_UPLOAD_BYTES);
+			}
+			byte[] buffer = new byte[initialSize];
+			int noBytes = 0;
+			int bytesRead;
+			while ((bytesRead = input.read(buffer, noBytes, buffer.length - noBytes)) != -1) {
+				noBytes += bytesRead;
+				if (noBytes == buffer.length) {
+					if (noBytes >= MAX_UPLOAD_BYTES) {
+						// one more byte tells whether the upload is too large
+						if (input.read() != -1) {
+							throw new UploadTooLargeException("Upload of more than " + MAX_UPLOAD_BYTES + " bytes");
+						}
+						break;
+					}
+					buffer = Arrays.copyOf(buffer, (int) Math.min(2L * buffer.length, MAX_UPLOAD_BYTES));
+				}
 			}
-			image = ImagesServiceFactory.makeImage(outputStream.toByteArray());
+			return ByteBuffer.wrap(buffer, 0, noBytes);
 		} finally {
 			input.close();
 		}
-		return image;
+	}
+
+	/**
+	 * Signals an upload beyond the limits, the user is sent back to the upload page
+	 */
+	protected static class UploadTooLargeException extends IOException {
+
+		/**
+		 * @methodtype constructor
+		 */
+		public UploadTooLargeException(String message) {
+			super(message);
+		}
 	}
 }
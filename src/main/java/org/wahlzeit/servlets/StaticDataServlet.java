@@ -3,6 +3,7 @@ package org.wahlzeit.servlets;
 import com.google.appengine.api.images.Image;
 import org.apache.http.HttpStatus;
 import org.wahlzeit.model.Photo;
+import org.wahlzeit.model.PhotoId;
 import org.wahlzeit.model.PhotoManager;
 import org.wahlzeit.model.PhotoSize;
 import org.wahlzeit.model.persistence.ImageStorage;
@@ -10,8 +11,15 @@ import org.wahlzeit.services.LogBuilder;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -26,6 +34,54 @@ public class StaticDataServlet extends AbstractServlet {
 
 	Logger log = Logger.getLogger(StaticDataServlet.class.getName());
 
+	/**
+	 * The image of a photo id and size never changes once it is written, so it may be cached for a year
+	 */
+	public static final String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+	/**
+	 * Maximum number of ETags that are kept to answer conditional requests without loading the image
+	 */
+	public static final int MAX_ETAGS = 16 * 1024;
+
+	/**
+	 * ETags of recently served images by photo id and size, in access order
+	 */
+	protected static final Map<String, String> etags = createRecentlyServedMap();
+
+	/**
+	 * Content types of recently streamed images by photo id and size, in access order
+	 */
+	protected static final Map<String, String> contentTypes = createRecentlyServedMap();
+
+	/**
+	 * Number of bytes at the start of an image that determine its format
+	 */
+	public static final int SIGNATURE_LENGTH = 12;
+
+	/**
+	 * Images of this size and larger are streamed if the image storage supports it
+	 */
+	public static final PhotoSize MIN_STREAMED_SIZE = PhotoSize.LARGE;
+
+	/**
+	 *
+	 */
+	public static final String DEFAULT_CONTENT_TYPE = "image/jpeg";
+	public static final int CHUNK_SIZE = ImageStorage.STREAM_CHUNK_SIZE;
+
+	/**
+	 * @methodtype factory
+	 */
+	protected static Map<String, String> createRecentlyServedMap() {
+		return Collections.synchronizedMap(new LinkedHashMap<String, String>(1024, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > MAX_ETAGS;
+			}
+		});
+	}
+
 	@Override
 	public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
 		try {
@@ -39,12 +95,68 @@ public class StaticDataServlet extends AbstractServlet {
 					addParameter("photoId", photoId).
 					addParameter("size", size).toString());
 
-			if ("image".equals(type)) {
-				Image image = getImage(photoId, size);
-				if (image != null) {
-					response.getOutputStream().write(image.getImageData());
-					response.getOutputStream().flush();
-					response.setStatus(HttpStatus.SC_OK);
+			if ("image".equals(type) && !PhotoId.isValidString(photoId)) {
+				log.warning(LogBuilder.createSystemMessage().addParameter("invalid photo id", photoId).toString());
+				response.setStatus(HttpStatus.SC_NOT_FOUND);
+			} else if ("image".equals(type)) {
+				String etagKey = photoId + "-" + size;
+				Photo photo = PhotoManager.getInstance().getPhoto(photoId);
+				long lastModified = photo != null ? photo.getCreationTime() : -1;
+				// photos uploaded with the same content share the stored images
+				String imageId = photo != null ? photo.getImageIdAsString() : photoId;
+
+				// answer revalidations of known images without loading the image
+				String etag = getStoredEtag(photo, size);
+				if (etag == null) {
+					etag = etags.get(etagKey);
+				}
+				if (etag != null && isNotModified(request, etag, lastModified)) {
+					writeNotModified(response, etag, lastModified);
+					return;
+				}
+
+				// large images that are not in memory are streamed from the storage in chunks, if their validator is
+				// known without reading them completely
+				ImageStorage imageStorage = ImageStorage.getInstance();
+				byte[] imageData = getImageDataFromMemory(photo, size);
+				if (imageData == null && etag != null && size >= MIN_STREAMED_SIZE.asInt() &&
+						imageStorage.isStreamingSupported()) {
+					long length = imageStorage.getImageLength(imageId, size);
+					if (length >= 0) {
+						long[] range = writeImageHeaders(request, response, etag, lastModified, length,
+								getContentType(imageStorage, etagKey, imageId, size));
+						if (range != null) {
+							imageStorage.streamImage(imageId, size, range[0], range[1], response.getOutputStream());
+							response.getOutputStream().flush();
+						}
+						return;
+					}
+				}
+
+				if (imageData == null) {
+					Image image = getImage(photo, imageId, size);
+					imageData = image != null ? image.getImageData() : null;
+				}
+				if (imageData != null) {
+					if (etag == null) {
+						etag = createEtag(etagKey, imageData);
+						etags.put(etagKey, etag);
+						if (isNotModified(request, etag, lastModified)) {
+							writeNotModified(response, etag, lastModified);
+							return;
+						}
+					}
+
+					long[] range = writeImageHeaders(request, response, etag, lastModified, imageData.length,
+							getContentType(imageData));
+					if (range != null) {
+						OutputStream out = response.getOutputStream();
+						for (long position = range[0]; position < range[0] + range[1]; position += CHUNK_SIZE) {
+							out.write(imageData, (int) position,
+									(int) Math.min(CHUNK_SIZE, range[0] + range[1] - position));
+						}
+						out.flush();
+					}
 				} else {
 					log.warning(LogBuilder.createSystemMessage().addMessage("image not found").toString());
 					response.setStatus(HttpStatus.SC_NOT_FOUND);
@@ -63,29 +175,265 @@ public class StaticDataServlet extends AbstractServlet {
 	/**
 	 * @methodtype command
 	 *
-	 * Loads image either from the <@link>PhotoManager</@link> or from the <@link>ImageStorage</@link>. If image does
-	 * not exist, null is returned.
+	 * Sets status and headers of an image response. A single byte range is served with 206 Partial Content, unless
+	 * If-Range does not match; multiple ranges are ignored and the whole image is sent. Returns offset and length of
+	 * the bytes to send, or null if the range is not satisfiable and a 416 response has been written.
 	 */
-	private Image getImage(String photoId, int size) {
-		Image image = null;
-		Photo photo = PhotoManager.getInstance().getPhoto(photoId);
+	protected long[] writeImageHeaders(HttpServletRequest request, HttpServletResponse response, String etag,
+									   long lastModified, long length, String contentType) {
+		response.setHeader("Accept-Ranges", "bytes");
+		setCacheHeaders(response, etag, lastModified);
+
+		String rangeHeader = request.getHeader("Range");
+		String ifRange = request.getHeader("If-Range");
+		long[] range = null;
+		if (rangeHeader != null && (ifRange == null || etag.equals(ifRange.trim()))) {
+			range = parseRange(rangeHeader, length);
+			if (range == NOT_SATISFIABLE) {
+				response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				response.setHeader("Content-Range", "bytes */" + length);
+				return null;
+			}
+		}
+
+		response.setContentType(contentType);
+		if (range == null) {
+			response.setStatus(HttpStatus.SC_OK);
+			response.setHeader("Content-Length", String.valueOf(length));
+			return new long[]{0, length};
+		}
+
+		response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+		response.setHeader("Content-Range", "bytes " + range[0] + "-" + (range[0] + range[1] - 1) + "/" + length);
+		response.setHeader("Content-Length", String.valueOf(range[1]));
+		return range;
+	}
+
+	/**
+	 *
+	 */
+	protected static final long[] NOT_SATISFIABLE = new long[0];
+
+	/**
+	 * @methodtype conversion
+	 *
+	 * Parses a Range header with a single byte range ("bytes=first-last", "bytes=first-" or "bytes=-suffixLength")
+	 * into offset and length. Returns null if the header is malformed or has several ranges, and NOT_SATISFIABLE if
+	 * the range lies outside of the image.
+	 */
+	protected long[] parseRange(String rangeHeader, long length) {
+		String value = rangeHeader.trim();
+		if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+			return null;
+		}
+
+		int dash = value.indexOf('-');
+		if (dash < 0) {
+			return null;
+		}
+		try {
+			String first = value.substring("bytes=".length(), dash).trim();
+			String last = value.substring(dash + 1).trim();
+			long offset;
+			long end;
+			if (first.isEmpty()) {
+				long suffixLength = Long.parseLong(last);
+				if (suffixLength <= 0) {
+					return NOT_SATISFIABLE;
+				}
+				offset = Math.max(0, length - suffixLength);
+				end = length - 1;
+			} else {
+				offset = Long.parseLong(first);
+				end = last.isEmpty() ? length - 1 : Math.min(Long.parseLong(last), length - 1);
+				if (end < offset && !last.isEmpty() && Long.parseLong(last) < offset) {
+					return null;
+				}
+			}
+			if (offset >= length || end < offset) {
+				return NOT_SATISFIABLE;
+			}
+			return new long[]{offset, end - offset + 1};
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the image data if it is held by the photo, null otherwise. Images the image storage keeps in memory are
+	 * served by the storage itself.
+	 */
+	protected byte[] getImageDataFromMemory(Photo photo, int size) {
 		if (photo != null) {
-			PhotoSize photoSize = PhotoSize.getFromInt(size);
-			image = photo.getImage(photoSize);
+			Image image = photo.getImage(PhotoSize.getFromInt(size));
+			if (image != null) {
+				return image.getImageData();
+			}
 		}
-		// if not in cache load from Google Cloud Storage
-		if (image == null) {
-			Serializable rawImage = null;
+		return null;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 *
+	 * Checks the validators of a conditional request. If-None-Match takes precedence over If-Modified-Since.
+	 */
+	protected boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			if ("*".equals(ifNoneMatch.trim())) {
+				return true;
+			}
+			for (String candidate : ifNoneMatch.split(",")) {
+				if (etag.equals(candidate.trim())) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		if (lastModified >= 0) {
+			long ifModifiedSince;
 			try {
-				rawImage = ImageStorage.getInstance().readImage(photoId, size);
-			} catch (IOException e) {
-				log.warning(LogBuilder.createSystemMessage().addException("Problem when reading image.", e).toString());
+				ifModifiedSince = request.getDateHeader("If-Modified-Since");
+			} catch (IllegalArgumentException e) {
+				return false;
+			}
+			// HTTP dates have a resolution of seconds
+			return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+		}
+		return false;
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void writeNotModified(HttpServletResponse response, String etag, long lastModified) {
+		response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+		setCacheHeaders(response, etag, lastModified);
+	}
+
+	/**
+	 * @methodtype command
+	 */
+	protected void setCacheHeaders(HttpServletResponse response, String etag, long lastModified) {
+		response.setHeader("ETag", etag);
+		response.setHeader("Cache-Control", CACHE_CONTROL);
+		if (lastModified >= 0) {
+			response.setDateHeader("Last-Modified", lastModified);
+		}
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Returns the validator of the image if the photo records the hash of the content its images were scaled from,
+	 * null otherwise. The images of a size are scaled from that content in the same way, so the hash and the size
+	 * identify the bytes of the image without reading it.
+	 */
+	protected String getStoredEtag(Photo photo, int size) {
+		if (photo == null || photo.getContentHash() == null) {
+			return null;
+		}
+		return "\"" + photo.getContentHash().substring(0, 32) + "-" + size + "\"";
+	}
+
+	/**
+	 * @methodtype factory
+	 *
+	 * Creates a strong validator from photo id, size and a hash of the image data, for images of photos that do not
+	 * record the hash of their content.
+	 */
+	protected String createEtag(String etagKey, byte[] imageData) {
+		StringBuilder result = new StringBuilder("\"").append(etagKey).append('-');
+		try {
+			byte[] digest = MessageDigest.getInstance("MD5").digest(imageData);
+			for (int i = 0; i < 8; i++) {
+				result.append(Character.forDigit((digest[i] >> 4) & 0xF, 16));
+				result.append(Character.forDigit(digest[i] & 0xF, 16));
 			}
-			if (rawImage != null && rawImage instanceof Image) {
-				image = (Image) rawImage;
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 is not available", e);
+		}
+		return result.append('"').toString();
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Determines the content type of a stored image from the signature at its start, which is read from the storage
+	 * once per image and size.
+	 */
+	protected String getContentType(ImageStorage imageStorage, String etagKey, String imageId, int size)
+			throws IOException {
+		String result = contentTypes.get(etagKey);
+		if (result == null) {
+			ByteArrayOutputStream signature = new ByteArrayOutputStream(SIGNATURE_LENGTH);
+			imageStorage.streamImage(imageId, size, 0, SIGNATURE_LENGTH, signature);
+			result = getContentType(signature.toByteArray());
+			contentTypes.put(etagKey, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @methodtype get
+	 *
+	 * Determines the content type from the signature of the image data, JPEG is the default.
+	 */
+	protected String getContentType(byte[] imageData) {
+		if (startsWith(imageData, 0x89, 'P', 'N', 'G')) {
+			return "image/png";
+		} else if (startsWith(imageData, 'G', 'I', 'F', '8')) {
+			return "image/gif";
+		} else if (startsWith(imageData, 'R', 'I', 'F', 'F') && imageData.length > 12 && imageData[8] == 'W' &&
+				imageData[9] == 'E' && imageData[10] == 'B' && imageData[11] == 'P') {
+			return "image/webp";
+		} else if (startsWith(imageData, 'B', 'M')) {
+			return "image/bmp";
+		}
+		return DEFAULT_CONTENT_TYPE;
+	}
+
+	/**
+	 * @methodtype boolean-query
+	 */
+	protected boolean startsWith(byte[] data, int... signature) {
+		if (data.length < signature.length) {
+			return false;
+		}
+		for (int i = 0; i < signature.length; i++) {
+			if ((data[i] & 0xFF) != signature[i]) {
+				return false;
 			}
 		}
+		return true;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Loads image either from the <@link>PhotoManager</@link> or from the <@link>ImageStorage</@link>. If image does
+	 * not exist, null is returned.
+	 */
+	private Image getImage(Photo photo, String photoId, int size) {
+		if (photo != null) {
+			PhotoSize photoSize = PhotoSize.getFromInt(size);
+			return PhotoManager.getInstance().getImage(photo, photoSize);
+		}
+
+		Image image = null;
+		Serializable rawImage = null;
+		try {
+			rawImage = ImageStorage.getInstance().readImage(photoId, size);
+		} catch (IOException e) {
+			log.warning(LogBuilder.createSystemMessage().addException("Problem when reading image.", e).toString());
+		}
+		if (rawImage != null && rawImage instanceof Image) {
+			image = (Image) rawImage;
+		}
 		return image;
 	}
 }
-
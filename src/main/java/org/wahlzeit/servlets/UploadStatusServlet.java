@@ -0,0 +1,32 @@
+package org.wahlzeit.servlets;
+
+import org.wahlzeit.agents.AsyncTaskExecutor;
+import org.wahlzeit.model.UploadManager;
+import org.wahlzeit.model.UploadStatus;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Lightweight servlet the upload page polls for the status of an upload. It answers with the status as JSON object and
+ * does not touch the user session; the random token of the upload is all a caller needs.
+ */
+public class UploadStatusServlet extends HttpServlet {
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String token = request.getParameter(AsyncTaskExecutor.UPLOAD_TOKEN);
+		UploadStatus uploadStatus = UploadManager.getInstance().getUploadStatus(token);
+		if (uploadStatus == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.setHeader("Cache-Control", "no-cache");
+		response.getWriter().write(uploadStatus.asJson());
+	}
+}
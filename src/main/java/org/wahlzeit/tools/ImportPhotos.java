@@ -0,0 +1,70 @@
+package org.wahlzeit.tools;
+
+import org.wahlzeit.model.PhotoImporter;
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.model.User;
+import org.wahlzeit.model.UserManager;
+
+import java.io.File;
+
+/**
+ * Imports the photos of a directory tree in bulk, see {@link PhotoImporter}. Photos in the photo directory itself
+ * belong to the user given by --userid, who is created if unknown; photos in a subdirectory belong to the user named
+ * like the subdirectory. With --checkpoint, an interrupted import is resumed by running it again.
+ */
+public class ImportPhotos extends CreateUser {
+
+	/**
+	 *
+	 */
+	protected int noThreads = PhotoImporter.DEFAULT_NO_THREADS;
+	protected int batchSize = PhotoImporter.DEFAULT_BATCH_SIZE;
+	protected String checkpointFile = null;
+
+	/**
+	 *
+	 */
+	public static void main(String[] argv) {
+		new ImportPhotos().run(argv);
+	}
+
+	/**
+	 * All sizes are scaled on the import workers instead of on first access.
+	 */
+	protected void startUp(String rootDir) throws Exception {
+		super.startUp(rootDir);
+		PhotoManager.getInstance().setCreateSizesOnDemand(false);
+	}
+
+	/**
+	 *
+	 */
+	protected int handleArg(String arg, int i, String[] argv) {
+		if (arg.equals("--threads")) {
+			noThreads = Integer.parseInt(argv[++i]);
+		} else if (arg.equals("--batchsize")) {
+			batchSize = Integer.parseInt(argv[++i]);
+		} else if (arg.equals("--checkpoint")) {
+			checkpointFile = argv[++i];
+		} else {
+			i = super.handleArg(arg, i, argv);
+		}
+
+		return i;
+	}
+
+	/**
+	 *
+	 */
+	protected void execute() throws Exception {
+		User user = UserManager.getInstance().getUserById(userId);
+		if (user == null) {
+			user = new User(userId, nickName, emailAddress);
+		}
+
+		PhotoImporter photoImporter = new PhotoImporter(noThreads, batchSize,
+				checkpointFile != null ? new File(checkpointFile) : null);
+		photoImporter.importPhotos(new File(photoDir), user);
+	}
+
+}
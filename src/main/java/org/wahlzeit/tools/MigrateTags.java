@@ -0,0 +1,71 @@
+package org.wahlzeit.tools;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.wahlzeit.main.ScriptMain;
+import org.wahlzeit.model.PhotoManager;
+import org.wahlzeit.services.LogBuilder;
+
+import java.util.logging.Logger;
+
+/**
+ * Converts the legacy Tag entities into filter conditions stored with the photos. Tags are processed in batches and
+ * deleted once their photos are saved, so the tool can be run again after an interruption.
+ */
+public class MigrateTags extends ScriptMain {
+
+	private static final Logger log = Logger.getLogger(MigrateTags.class.getName());
+
+	/**
+	 *
+	 */
+	public static final int DEFAULT_BATCH_SIZE = 500;
+
+	/**
+	 *
+	 */
+	protected int batchSize = DEFAULT_BATCH_SIZE;
+
+	/**
+	 *
+	 */
+	public static void main(String[] argv) {
+		new MigrateTags().run(argv);
+	}
+
+	/**
+	 *
+	 */
+	protected int handleArg(String arg, int i, String[] argv) {
+		if (arg.equals("--batchsize")) {
+			batchSize = Integer.parseInt(argv[++i]);
+		}
+
+		return i;
+	}
+
+	/**
+	 *
+	 */
+	protected void execute() throws Exception {
+		long startTime = System.currentTimeMillis();
+		int noMigratedTags = 0;
+		int noTagsInBatch;
+		do {
+			noTagsInBatch = ObjectifyService.run(new Work<Integer>() {
+				@Override
+				public Integer run() {
+					return PhotoManager.getInstance().migrateTags(batchSize);
+				}
+			});
+			noMigratedTags += noTagsInBatch;
+			log.info(LogBuilder.createSystemMessage().addAction("migrated batch of tags").
+					addParameter("number of migrated tags", noMigratedTags).toString());
+		} while (noTagsInBatch > 0);
+
+		log.info(LogBuilder.createSystemMessage().addMessage("Tag migration completed.").
+				addParameter("number of migrated tags", noMigratedTags).
+				addParameter("time in ms", System.currentTimeMillis() - startTime).toString());
+	}
+
+}
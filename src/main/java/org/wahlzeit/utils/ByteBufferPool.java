@@ -0,0 +1,90 @@
+package org.wahlzeit.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A thread-safe pool of direct byte buffers of the same capacity. Direct buffers are expensive to allocate and are
+ * only released by the garbage collector, so I/O code should borrow them with {@link #acquire()} and hand them back
+ * with {@link #release(ByteBuffer)} instead of allocating a new buffer per operation. At most maxPooledBuffers idle
+ * buffers are kept; more buffers are allocated on demand and dropped when released.
+ */
+public class ByteBufferPool {
+
+	/**
+	 *
+	 */
+	protected final int bufferCapacity;
+	protected final int maxPooledBuffers;
+
+	/**
+	 * Idle buffers
+	 */
+	protected final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	protected final AtomicInteger noPooledBuffers = new AtomicInteger();
+
+	/**
+	 * @methodtype constructor
+	 */
+	public ByteBufferPool(int bufferCapacity, int maxPooledBuffers) {
+		if (bufferCapacity <= 0 || maxPooledBuffers < 0) {
+			throw new IllegalArgumentException("Invalid pool: capacity " + bufferCapacity + ", max buffers " +
+					maxPooledBuffers);
+		}
+		this.bufferCapacity = bufferCapacity;
+		this.maxPooledBuffers = maxPooledBuffers;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Returns a cleared buffer of the pool's capacity.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer result = buffers.poll();
+		if (result == null) {
+			return ByteBuffer.allocateDirect(bufferCapacity);
+		}
+		noPooledBuffers.decrementAndGet();
+		result.clear();
+		return result;
+	}
+
+	/**
+	 * @methodtype command
+	 *
+	 * Returns the buffer to the pool. The caller must not use the buffer afterwards.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null || !buffer.isDirect() || buffer.capacity() != bufferCapacity) {
+			return;
+		}
+		if (noPooledBuffers.incrementAndGet() > maxPooledBuffers) {
+			noPooledBuffers.decrementAndGet();
+			return;
+		}
+		buffers.offer(buffer);
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getBufferCapacity() {
+		return bufferCapacity;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getMaxPooledBuffers() {
+		return maxPooledBuffers;
+	}
+
+	/**
+	 * @methodtype get
+	 */
+	public int getNoPooledBuffers() {
+		return noPooledBuffers.get();
+	}
+}
@@ -0,0 +1,70 @@
+package org.wahlzeit.model;
+
+import org.junit.Test;
+
+import java.util.BitSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PhotoCursorTest {
+
+	/**
+	 *
+	 */
+	@Test
+	public void testCursorReturnsEveryIdOnce() {
+		for (int maxId : new int[]{1, 2, 5, 64, 1000, 4097}) {
+			PhotoCursor cursor = new PhotoCursor(maxId * 31L);
+			BitSet seen = new BitSet();
+			int photoId;
+			while ((photoId = cursor.next(maxId)) > 0) {
+				assertTrue(photoId <= maxId);
+				assertFalse(seen.get(photoId));
+				seen.set(photoId);
+			}
+			assertEquals(maxId, seen.cardinality());
+			assertEquals(-1, cursor.next(maxId));
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testOrderDependsOnSeed() {
+		PhotoCursor first = new PhotoCursor(1);
+		PhotoCursor second = new PhotoCursor(2);
+		StringBuilder firstOrder = new StringBuilder();
+		StringBuilder secondOrder = new StringBuilder();
+		for (int i = 0; i < 20; i++) {
+			firstOrder.append(first.next(1000)).append(',');
+			secondOrder.append(second.next(1000)).append(',');
+		}
+		assertNotEquals(firstOrder.toString(), secondOrder.toString());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPhotosAddedDuringPassAreReturned() {
+		PhotoCursor cursor = new PhotoCursor(7);
+		BitSet seen = new BitSet();
+		for (int i = 0; i < 5; i++) {
+			seen.set(cursor.next(10));
+		}
+
+		int photoId;
+		while ((photoId = cursor.next(100)) > 0) {
+			assertFalse(seen.get(photoId));
+			seen.set(photoId);
+		}
+		assertEquals(100, seen.cardinality());
+
+		assertEquals(101, cursor.next(101));
+		assertEquals(-1, cursor.next(101));
+	}
+}
@@ -0,0 +1,80 @@
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PhotoIdArrayTest {
+
+	private PhotoIdArray photoIds;
+
+	@Before
+	public void initPhotoIdArray() {
+		photoIds = new PhotoIdArray();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAddAndRemove() {
+		assertTrue(photoIds.add(3));
+		assertTrue(photoIds.add(500));
+		assertTrue(photoIds.add(7));
+		assertFalse(photoIds.add(7));
+
+		assertTrue(photoIds.remove(3));
+		assertFalse(photoIds.remove(3));
+		assertFalse(photoIds.remove(1000));
+
+		assertEquals(2, photoIds.size());
+		assertFalse(photoIds.contains(3));
+		assertTrue(photoIds.contains(7));
+		assertTrue(photoIds.contains(500));
+
+		int[] members = photoIds.toArray();
+		Arrays.sort(members);
+		assertArrayEquals(new int[]{7, 500}, members);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testManyAddsAndRemoves() {
+		for (int i = 1; i <= 1000; i++) {
+			photoIds.add(i);
+		}
+		for (int i = 2; i <= 1000; i += 2) {
+			photoIds.remove(i);
+		}
+
+		assertEquals(500, photoIds.size());
+		for (int position = 0; position < photoIds.size(); position++) {
+			assertEquals(1, photoIds.get(position) % 2);
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetRandom() {
+		Random random = new Random(42);
+		assertEquals(-1, photoIds.getRandom(random));
+
+		photoIds.add(11);
+		photoIds.add(12);
+		for (int i = 0; i < 20; i++) {
+			int photoId = photoIds.getRandom(random);
+			assertTrue(photoId == 11 || photoId == 12);
+		}
+	}
+}
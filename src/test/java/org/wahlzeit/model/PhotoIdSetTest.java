@@ -0,0 +1,91 @@
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Iterator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PhotoIdSetTest {
+
+	private PhotoIdSet photoIds;
+
+	@Before
+	public void initPhotoIdSet() {
+		photoIds = new PhotoIdSet();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAddAndContains() {
+		assertTrue(photoIds.add(new PhotoId(5)));
+		assertFalse(photoIds.add(new PhotoId(5)));
+		assertTrue(photoIds.add(new PhotoId(70)));
+
+		assertEquals(2, photoIds.size());
+		assertTrue(photoIds.contains(new PhotoId(5)));
+		assertTrue(photoIds.contains(70));
+		assertFalse(photoIds.contains(new PhotoId(6)));
+		assertFalse(photoIds.contains("x1abz"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemove() {
+		photoIds.add(new PhotoId(5));
+
+		assertFalse(photoIds.remove(new PhotoId(6)));
+		assertTrue(photoIds.remove(new PhotoId(5)));
+		assertTrue(photoIds.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIterationIsInAscendingOrder() {
+		photoIds.add(new PhotoId(9));
+		photoIds.add(new PhotoId(2));
+		photoIds.add(new PhotoId(130));
+
+		Iterator<PhotoId> iterator = photoIds.iterator();
+		assertEquals(2, iterator.next().asInt());
+		iterator.remove();
+		assertEquals(9, iterator.next().asInt());
+		assertEquals(130, iterator.next().asInt());
+		assertFalse(iterator.hasNext());
+		assertEquals(2, photoIds.size());
+		assertFalse(photoIds.contains(2));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSerialization() throws Exception {
+		photoIds.add(new PhotoId(3));
+		photoIds.add(new PhotoId(1000));
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(photoIds);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		PhotoIdSet copy = (PhotoIdSet) in.readObject();
+
+		assertEquals(2, copy.size());
+		assertTrue(copy.contains(3));
+		assertTrue(copy.contains(1000));
+	}
+}
@@ -0,0 +1,311 @@
+package org.wahlzeit.model;
+
+import com.google.apphosting.api.ApiProxy;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TemporaryFolder;
+import org.wahlzeit.model.persistence.FileSystemAdapter;
+import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.services.OfyService;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link PhotoImporter}. Most tests replace the creation and writing of the photos, so they can use
+ * files that are no images; {@link #testImportWritesPhotosAndImages()} imports real images.
+ */
+public class PhotoImporterTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private File photoDir;
+	private File checkpointFile;
+	private User defaultUser;
+	private boolean createSizesOnDemand;
+
+	@Before
+	public void setUp() throws IOException {
+		ImageStorage.setInstance(new FileSystemAdapter(tempFolder.newFolder("images")));
+		createSizesOnDemand = PhotoManager.getInstance().isCreateSizesOnDemand();
+		photoDir = tempFolder.newFolder("photos");
+		checkpointFile = new File(tempFolder.getRoot(), "import.checkpoint");
+		defaultUser = ObjectifyService.run(new Work<User>() {
+			@Override
+			public User run() {
+				User result = UserManager.getInstance().getUserById("importer");
+				return result != null ? result : new User("importer", "importer", "importer@wahlzeit.org");
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		PhotoManager.getInstance().setCreateSizesOnDemand(createSizesOnDemand);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testImportDirectoryTree() throws Exception {
+		writeFile("a.jpg", 1);
+		writeFile("notes.txt", 1);
+		writeFile("importer-sub/b.jpg", 1);
+		writeFile("importer-sub/holidays/c.JPG", 1);
+
+		TestPhotoImporter photoImporter = new TestPhotoImporter(2, 2, checkpointFile);
+		assertEquals(3, importPhotos(photoImporter));
+
+		Map<String, String> expectedOwners = new TreeMap<String, String>();
+		expectedOwners.put("a.jpg", "importer");
+		expectedOwners.put("b.jpg", "importer-sub");
+		expectedOwners.put("c.JPG", "importer-sub");
+		assertEquals(expectedOwners, photoImporter.owners);
+		assertNotNull(UserManager.getInstance().getUserById("importer-sub"));
+		assertEquals("importer-sub@wahlzeit.org",
+				UserManager.getInstance().getUserById("importer-sub").getEmailAddress().asString());
+
+		int noWrittenPhotos = 0;
+		for (int batchSize : photoImporter.batchSizes) {
+			assertTrue(batchSize <= 2);
+			noWrittenPhotos += batchSize;
+		}
+		assertEquals(3, noWrittenPhotos);
+		assertEquals(3, photoImporter.getNoImportedBytes());
+
+		List<String> checkpoint = Files.readAllLines(checkpointFile.toPath(), StandardCharsets.UTF_8);
+		Collections.sort(checkpoint);
+		List<String> expectedCheckpoint = new ArrayList<String>();
+		expectedCheckpoint.add("a.jpg");
+		expectedCheckpoint.add("importer-sub/b.jpg");
+		expectedCheckpoint.add("importer-sub/holidays/c.JPG");
+		assertEquals(expectedCheckpoint, checkpoint);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testResumeFromCheckpoint() throws Exception {
+		writeFile("a.jpg", 1);
+		writeFile("b.jpg", 1);
+		writeFile("broken.jpg", 0);
+
+		TestPhotoImporter firstRun = new TestPhotoImporter(2, 10, checkpointFile);
+		assertEquals(2, importPhotos(firstRun));
+		assertEquals(1, firstRun.getNoFailedFiles());
+
+		writeFile("broken.jpg", 1);
+		TestPhotoImporter secondRun = new TestPhotoImporter(2, 10, checkpointFile);
+		assertEquals(1, importPhotos(secondRun));
+		assertEquals(2, secondRun.getNoSkippedFiles());
+		assertEquals(0, secondRun.getNoFailedFiles());
+		assertEquals(Collections.singletonMap("broken.jpg", "importer"), secondRun.owners);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testImportWithoutRequestThreadFactoryUsesPlainWorkers() throws Exception {
+		writeFile("a.jpg", 1);
+		writeFile("b.jpg", 1);
+		writeFile("c.jpg", 1);
+
+		// like the ImportPhotos tool, the import runs on a thread without App Engine environment
+		final TestPhotoImporter photoImporter = new TestPhotoImporter(2, 10, null, null);
+		final AtomicInteger noImportedPhotos = new AtomicInteger();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				ApiProxy.clearEnvironmentForCurrentThread();
+				noImportedPhotos.set(importPhotos(photoImporter));
+			}
+		});
+		thread.start();
+		thread.join();
+
+		assertEquals(3, noImportedPhotos.get());
+		assertTrue(photoImporter.threadNames.contains("photo-import-1"));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testImportWritesPhotosAndImages() throws Exception {
+		PhotoManager.getInstance().setCreateSizesOnDemand(false);
+		writeImage("real-owner/one.png", 640, 480);
+		writeImage("real-owner/two.png", 300, 500);
+
+		DetachingPhotoImporter photoImporter = new DetachingPhotoImporter();
+		assertEquals(2, importPhotos(photoImporter));
+
+		final User owner = UserManager.getInstance().getUserById("real-owner");
+		assertNotNull(owner);
+		assertEquals(2, photoImporter.photos.size());
+		for (final Photo photo : photoImporter.photos) {
+			Photo storedPhoto = ObjectifyService.run(new Work<Photo>() {
+				@Override
+				public Photo run() {
+					return OfyService.ofy().load().entity(photo).now();
+				}
+			});
+			assertNotNull(storedPhoto);
+			assertEquals("real-owner", storedPhoto.getOwnerId());
+			assertTrue(storedPhoto.getFilterConditions().contains("un:" + Tags.asTag("real-owner")));
+			assertTrue(ImageStorage.getInstance().existingSizes(photo.getImageIdAsString()).
+					contains(photo.getMaxPhotoSize().asInt()));
+		}
+
+		User storedOwner = ObjectifyService.run(new Work<User>() {
+			@Override
+			public User run() {
+				return OfyService.ofy().load().entity(owner).now();
+			}
+		});
+		assertNotNull(storedOwner);
+	}
+
+	/**
+	 *
+	 */
+	private void writeFile(String name, int firstByte) throws IOException {
+		File file = new File(photoDir, name);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), new byte[]{(byte) firstByte});
+	}
+
+	/**
+	 *
+	 */
+	private void writeImage(String name, int width, int height) throws IOException {
+		File file = new File(photoDir, name);
+		file.getParentFile().mkdirs();
+		ImageIO.write(new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB), "png", file);
+	}
+
+	/**
+	 * Workers of the importer need the App Engine environment of the test, as threads of a request would have
+	 */
+	private static ThreadFactory createThreadFactory() {
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						runnable.run();
+					}
+				});
+			}
+		};
+	}
+
+	/**
+	 *
+	 */
+	private int importPhotos(final PhotoImporter photoImporter) {
+		return ObjectifyService.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				try {
+					return photoImporter.importPhotos(photoDir, defaultUser);
+				} catch (Exception ex) {
+					throw new RuntimeException(ex);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Imports the photos the real way, but does not keep them in the embedded photos of their owner, because the
+	 * photos created by the {@link PhotoFactory} are no registered subclass of {@link Photo} a user can embed.
+	 */
+	private static class DetachingPhotoImporter extends PhotoImporter {
+
+		private final List<Photo> photos = Collections.synchronizedList(new ArrayList<Photo>());
+
+		private DetachingPhotoImporter() {
+			super(2, 1, null, createThreadFactory());
+		}
+
+		@Override
+		protected Photo createPhoto(User user, String fileName, byte[] imageData) throws Exception {
+			Photo result = super.createPhoto(user, fileName, imageData);
+			synchronized (user) {
+				user.removePhoto(result);
+			}
+			photos.add(result);
+			return result;
+		}
+	}
+
+	/**
+	 * Creates plain photos and records the batches instead of writing them; files starting with 0 fail.
+	 */
+	private static class TestPhotoImporter extends PhotoImporter {
+
+		private final Map<String, String> owners = Collections.synchronizedMap(new TreeMap<String, String>());
+		private final List<Integer> batchSizes = Collections.synchronizedList(new ArrayList<Integer>());
+
+		private final Set<String> threadNames = Collections.synchronizedSet(new HashSet<String>());
+
+		private TestPhotoImporter(int noThreads, int batchSize, File checkpointFile) {
+			this(noThreads, batchSize, checkpointFile, createThreadFactory());
+		}
+
+		private TestPhotoImporter(int noThreads, int batchSize, File checkpointFile, ThreadFactory threadFactory) {
+			super(noThreads, batchSize, checkpointFile, threadFactory);
+		}
+
+		@Override
+		protected Photo createPhoto(User user, String fileName, byte[] imageData) throws Exception {
+			if (imageData[0] == 0) {
+				throw new IOException("broken image " + fileName);
+			}
+			owners.put(fileName, user.getId());
+			threadNames.add(Thread.currentThread().getName());
+			return new Photo();
+		}
+
+		@Override
+		protected void writeBatch(List<Photo> photos) {
+			batchSizes.add(photos.size());
+		}
+	}
+}
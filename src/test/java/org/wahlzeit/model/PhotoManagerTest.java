@@ -0,0 +1,547 @@
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TemporaryFolder;
+import org.wahlzeit.model.persistence.FileSystemAdapter;
+import org.wahlzeit.model.persistence.ImageContentIndex;
+import org.wahlzeit.model.persistence.ImageStorage;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.services.OfyService;
+import org.wahlzeit.services.Persistent;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PhotoManagerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	@Rule
+	public TemporaryFolder tempFolder = new TemporaryFolder();
+
+	private static final int NO_THREADS = 16;
+	private static final int NO_PHOTOS = 50;
+	private static final int NO_ROUNDS = 20;
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentGetPhotoLoadsEachPhotoOnce() throws Exception {
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		final ConcurrentMap<PhotoId, Photo> seenPhotos = new ConcurrentHashMap<PhotoId, Photo>();
+		final List<Throwable> failures = new ArrayList<Throwable>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(NO_THREADS);
+
+		for (int t = 0; t < NO_THREADS; t++) {
+			final int offset = t;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int round = 0; round < NO_ROUNDS; round++) {
+							for (int i = 0; i < NO_PHOTOS; i++) {
+								PhotoId id = new PhotoId(1 + (i + offset) % NO_PHOTOS);
+								Photo photo = photoManager.getPhoto(id);
+								Photo previous = seenPhotos.putIfAbsent(id, photo);
+								if (previous != null && previous != photo) {
+									throw new AssertionError("different photo objects for " + id.asString());
+								}
+							}
+						}
+					} catch (Throwable ex) {
+						synchronized (failures) {
+							failures.add(ex);
+						}
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		start.countDown();
+		done.await();
+
+		assertTrue(failures.toString(), failures.isEmpty());
+		assertEquals(NO_PHOTOS, photoManager.noLoads.get());
+		assertEquals(NO_PHOTOS, photoManager.getPhotoCache().size());
+		assertTrue(photoManager.pendingPhotoLoads.isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMissingPhotoIsNotCached() {
+		CountingPhotoManager photoManager = new CountingPhotoManager();
+		photoManager.returnNull = true;
+
+		assertNull(photoManager.getPhoto(new PhotoId(1)));
+		assertNull(photoManager.getPhoto(new PhotoId(1)));
+		assertEquals(2, photoManager.noLoads.get());
+		assertTrue(photoManager.getPhotoCache().isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testGetPhotoReturnsCachedPhoto() {
+		CountingPhotoManager photoManager = new CountingPhotoManager();
+		Photo photo = new Photo(new PhotoId(1));
+		photoManager.doAddPhoto(photo);
+
+		assertSame(photo, photoManager.getPhoto(new PhotoId(1)));
+		assertEquals(0, photoManager.noLoads.get());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRecencyWeightsFollowNewestPhoto() {
+		CountingPhotoManager photoManager = new CountingPhotoManager();
+		Photo oldPhoto = new Photo(new PhotoId(1101));
+		oldPhoto.creationTime = 1451606400000L;
+		Photo newPhoto = new Photo(new PhotoId(1102));
+		newPhoto.creationTime = oldPhoto.creationTime + 3 * PhotoWeighting.RECENCY_HALF_LIFE;
+		Photo todaysPhoto = new Photo(new PhotoId(1103));
+		photoManager.doAddPhoto(oldPhoto);
+		photoManager.doAddPhoto(newPhoto);
+		photoManager.doAddPhoto(todaysPhoto);
+
+		assertEquals(1.0, photoManager.getPhotoWeight(1103, PhotoWeighting.RECENCY), 1e-9);
+		double newWeight = photoManager.getPhotoWeight(1102, PhotoWeighting.RECENCY);
+		assertTrue(newWeight > 0.0 && newWeight < 1.0);
+		assertEquals(8.0, newWeight / photoManager.getPhotoWeight(1101, PhotoWeighting.RECENCY), 1e-6);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSavePhotosWritesDirtyPhotosInBatches() {
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		photoManager.setWriteBatchSize(7);
+		List<Photo> photos = new ArrayList<Photo>();
+		for (int i = 1; i <= NO_PHOTOS; i++) {
+			Photo photo = new Photo(new PhotoId(1000 + i));
+			photo.touch();
+			photos.add(photo);
+			photoManager.doAddPhoto(photo);
+		}
+		photos.get(0).resetWriteCount();
+
+		int noStoredPhotos = ObjectifyService.run(new Work<Integer>() {
+			@Override
+			public Integer run() {
+				int noPhotosBefore = OfyService.ofy().load().type(Photo.class).count();
+				try {
+					photoManager.savePhotos();
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+				return OfyService.ofy().load().type(Photo.class).count() - noPhotosBefore;
+			}
+		});
+
+		assertEquals(NO_PHOTOS - 1, photoManager.noUpdatedDependents.get());
+		assertEquals(1, photoManager.noDependentUpdates.get());
+		assertEquals(NO_PHOTOS - 1, noStoredPhotos);
+		for (Photo photo : photos) {
+			assertFalse(photo.isDirty());
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testWriteBatchSizeIsLimited() {
+		new CountingPhotoManager().setWriteBatchSize(PhotoManager.MAX_WRITE_BATCH_SIZE + 1);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMarkPhotoDirtyCoalescesUntilFlush() {
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		photoManager.setMaxDirtyPhotos(3);
+		final Photo first = new Photo(new PhotoId(2001));
+		final Photo second = new Photo(new PhotoId(2002));
+		final Photo third = new Photo(new PhotoId(2003));
+		photoManager.doAddPhoto(first);
+		photoManager.doAddPhoto(second);
+		photoManager.doAddPhoto(third);
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				for (int i = 0; i < 10; i++) {
+					first.addToPraise(5);
+					photoManager.markPhotoDirty(first);
+				}
+				second.addToPraise(5);
+				photoManager.markPhotoDirty(second);
+				assertEquals(2, photoManager.getNoDirtyPhotos());
+				assertEquals(0, photoManager.noFlushRequests.get());
+
+				// the third photo reaches the size trigger, the flush is requested only once
+				third.addToPraise(5);
+				photoManager.markPhotoDirty(third);
+				photoManager.markPhotoDirty(first);
+				assertEquals(1, photoManager.noFlushRequests.get());
+				assertEquals(3, photoManager.getNoDirtyPhotos());
+
+				assertEquals(3, photoManager.flushDirtyPhotos());
+				return null;
+			}
+		});
+
+		// praise only changes the photo entities
+		assertEquals(0, photoManager.noUpdatedDependents.get());
+		assertEquals(0, photoManager.getNoDirtyPhotos());
+		assertFalse(first.isDirty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMarkPhotoDirtyFlushesOnRequestThreadAsBackstop() {
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		photoManager.setMaxDirtyPhotos(1);
+		final List<Photo> photos = new ArrayList<Photo>();
+		for (int i = 1; i <= PhotoManager.FLUSH_BACKSTOP_FACTOR; i++) {
+			Photo photo = new Photo(new PhotoId(2200 + i));
+			photoManager.doAddPhoto(photo);
+			photos.add(photo);
+		}
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				for (Photo photo : photos) {
+					photoManager.markPhotoDirty(photo);
+				}
+				return null;
+			}
+		});
+
+		assertEquals(1, photoManager.noFlushRequests.get());
+		assertEquals(0, photoManager.getNoDirtyPhotos());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMarkPhotoDirtyFlushesStaleChanges() {
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		photoManager.setMaxWriteDelay(0);
+		final Photo photo = new Photo(new PhotoId(2101));
+		photoManager.doAddPhoto(photo);
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				photoManager.markPhotoDirty(photo);
+				return null;
+			}
+		});
+
+		assertEquals(1, photoManager.noFlushRequests.get());
+		assertEquals(1, photoManager.getNoDirtyPhotos());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMarkPhotoDirtyFlushesWhenRequestedFlushIsOverdue() {
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		photoManager.setMaxDirtyPhotos(1);
+		photoManager.setMaxWriteDelay(0);
+		final Photo first = new Photo(new PhotoId(2301));
+		final Photo second = new Photo(new PhotoId(2302));
+		photoManager.doAddPhoto(first);
+		photoManager.doAddPhoto(second);
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				// the requested flush is served by another instance, so it never arrives here
+				photoManager.markPhotoDirty(first);
+				assertEquals(1, photoManager.getNoDirtyPhotos());
+				photoManager.markPhotoDirty(second);
+				return null;
+			}
+		});
+
+		assertEquals(1, photoManager.noFlushRequests.get());
+		assertEquals(0, photoManager.getNoDirtyPhotos());
+		assertFalse(first.isDirty());
+		assertFalse(second.isDirty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFlushDirtyPhotosKeepsPhotosOfFailedWrite() {
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		final Photo photo = new Photo(new PhotoId(2401));
+		photoManager.doAddPhoto(photo);
+		photoManager.failSaves = true;
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				photoManager.markPhotoDirty(photo);
+				try {
+					photoManager.flushDirtyPhotos();
+					fail("write should have failed");
+				} catch (IllegalStateException ex) {
+					// expected
+				}
+				assertEquals(1, photoManager.getNoDirtyPhotos());
+
+				photoManager.failSaves = false;
+				assertEquals(1, photoManager.flushDirtyPhotos());
+				return null;
+			}
+		});
+
+		assertEquals(0, photoManager.getNoDirtyPhotos());
+		assertFalse(photo.isDirty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testIdenticalUploadsShareRegisteredImages() throws Exception {
+		ImageStorage.setInstance(new FileSystemAdapter(tempFolder.newFolder("images")));
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		final String contentHash = ImageContentIndex.computeContentHash(new byte[]{25, 1});
+		final Photo first = new Photo(new PhotoId(2501));
+		final Photo second = new Photo(new PhotoId(2502));
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				// both uploads are scaled before either is registered
+				for (Photo photo : Arrays.asList(first, second)) {
+					photo.setImage(PhotoSize.THUMB, ImagesServiceFactory.makeImage(new byte[]{25, 1}));
+					photo.setContentHash(contentHash);
+					photoManager.doAddPhoto(photo);
+					photoManager.registerImageContent(photo, contentHash);
+				}
+				return null;
+			}
+		});
+		ImageStorage.getInstance().writeImage(first.getImage(PhotoSize.THUMB), first.getIdAsString(),
+				PhotoSize.THUMB.asInt());
+
+		assertEquals(first.getIdAsString(), second.getImageIdAsString());
+		assertFalse(second.hasImages());
+		assertEquals(2, ImageContentIndex.getInstance().getImageContent(contentHash).getRefCount());
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				photoManager.deletePhoto(second);
+				return null;
+			}
+		});
+		assertTrue(first.hasImages());
+		assertEquals(Collections.singleton(PhotoSize.THUMB.asInt()),
+				ImageStorage.getInstance().existingSizes(first.getIdAsString()));
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				photoManager.deletePhoto(first);
+				return null;
+			}
+		});
+		assertTrue(ImageStorage.getInstance().existingSizes(first.getIdAsString()).isEmpty());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testMigrateTagsStoresFilterConditionsWithPhotos() {
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		photoManager.returnNull = true;
+		final Photo skyPhoto = new Photo(PhotoId.getNextId());
+		skyPhoto.setTags(new Tags("sky, sea"));
+		final Photo treePhoto = new Photo(PhotoId.getNextId());
+		treePhoto.setTags(new Tags("tree"));
+		photoManager.doAddPhoto(skyPhoto);
+		photoManager.doAddPhoto(treePhoto);
+
+		ObjectifyService.run(new Work<Void>() {
+			@Override
+			public Void run() {
+				OfyService.ofy().save().entities(new Tag("tg:sky", skyPhoto.getIdAsString()),
+						new Tag("tg:sea", skyPhoto.getIdAsString()), new Tag("tg:tree", treePhoto.getIdAsString()),
+						new Tag("tg:gone", "x1abz")).now();
+
+				int noMigratedTags = 0;
+				int noTagsInBatch;
+				do {
+					noTagsInBatch = photoManager.migrateTags(3);
+					noMigratedTags += noTagsInBatch;
+				} while (noTagsInBatch > 0);
+
+				assertEquals(4, noMigratedTags);
+				assertEquals(0, OfyService.ofy().load().type(Tag.class).count());
+				assertEquals(Collections.singleton(skyPhoto),
+						photoManager.findPhotosByConditions(Collections.singletonList("tg:sea")));
+				assertEquals(2, photoManager.findPhotosByConditions(Arrays.asList("tg:sky", "tg:tree")).size());
+
+				// more conditions than the datastore accepts in one IN filter
+				List<String> conditions = new ArrayList<String>();
+				for (int i = 0; i < PhotoManager.MAX_CONDITIONS_PER_QUERY; i++) {
+					conditions.add("tg:unknown" + i);
+				}
+				conditions.add("tg:sea");
+				assertEquals(Collections.singleton(skyPhoto.getId()), photoManager.findPhotoIdsByConditions(conditions));
+				return null;
+			}
+		});
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testConcurrentImageRequestsCreateMissingSizeOnce() throws Exception {
+		final CountingPhotoManager photoManager = new CountingPhotoManager();
+		final Photo photo = new Photo(new PhotoId(2201));
+		photo.setWidthAndHeight(2000, 2000);
+		final List<Image> images = Collections.synchronizedList(new ArrayList<Image>());
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(NO_THREADS);
+
+		for (int t = 0; t < NO_THREADS; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						images.add(photoManager.getImage(photo, PhotoSize.SMALL));
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}).start();
+		}
+
+		start.countDown();
+		done.await();
+
+		assertEquals(1, photoManager.noCreatedImages.get());
+		assertEquals(NO_THREADS, images.size());
+		for (Image image : images) {
+			assertSame(photo.getImage(PhotoSize.SMALL), image);
+		}
+	}
+
+	/**
+	 * PhotoManager that creates photos instead of loading them from the datastore and counts the loads.
+	 */
+	private static class CountingPhotoManager extends PhotoManager {
+
+		private final AtomicInteger noLoads = new AtomicInteger();
+		private final AtomicInteger noUpdatedDependents = new AtomicInteger();
+		private final AtomicInteger noDependentUpdates = new AtomicInteger();
+		private final AtomicInteger noFlushRequests = new AtomicInteger();
+		private final AtomicInteger noCreatedImages = new AtomicInteger();
+		private boolean returnNull = false;
+		private boolean failSaves = false;
+
+		@Override
+		protected Photo doLoadPhoto(PhotoId id) {
+			noLoads.incrementAndGet();
+			try {
+				// widen the window for concurrent loads of the same photo
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return returnNull ? null : new Photo(id);
+		}
+
+		@Override
+		protected Image getStoredImage(Photo photo, PhotoSize photoSize) {
+			return photo.getImage(photoSize);
+		}
+
+		@Override
+		protected Image doCreateImage(Photo photo, PhotoSize photoSize) {
+			noCreatedImages.incrementAndGet();
+			try {
+				// widen the window for concurrent requests of the same image
+				Thread.sleep(10);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			Image result = ImagesServiceFactory.makeImage(new byte[]{(byte) photoSize.asInt()});
+			photo.setImage(photoSize, result);
+			return result;
+		}
+
+		@Override
+		protected void saveObjects(List<? extends Persistent> objects) {
+			if (failSaves) {
+				throw new IllegalStateException("datastore is not available");
+			}
+			super.saveObjects(objects);
+		}
+
+		@Override
+		protected void requestFlush() {
+			noFlushRequests.incrementAndGet();
+		}
+
+		@Override
+		protected void updateDependents(List<? extends Persistent> objects) {
+			noUpdatedDependents.addAndGet(objects.size());
+			noDependentUpdates.incrementAndGet();
+		}
+	}
+}
@@ -0,0 +1,92 @@
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class PhotoTagIndexTest {
+
+	private PhotoTagIndex index;
+
+	@Before
+	public void initIndex() {
+		index = new PhotoTagIndex();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLookupOfSingleCondition() {
+		index.setConditions(new PhotoId(7), Arrays.asList("tg:sky", "un:anna"));
+		index.setConditions(new PhotoId(3), Arrays.asList("tg:sky"));
+		index.setConditions(new PhotoId(5), Arrays.asList("tg:sea"));
+
+		assertArrayEquals(new int[]{3, 7}, index.getPhotoIds(Collections.singletonList("tg:sky")));
+		assertArrayEquals(new int[]{7}, index.getPhotoIds(Collections.singletonList("un:anna")));
+		assertArrayEquals(new int[0], index.getPhotoIds(Collections.singletonList("tg:unknown")));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLookupOfSeveralConditionsIsDeduplicatedUnion() {
+		index.setConditions(new PhotoId(1), Arrays.asList("tg:sky", "tg:sea"));
+		index.setConditions(new PhotoId(2), Arrays.asList("tg:sea"));
+		index.setConditions(new PhotoId(9), Arrays.asList("tg:sky"));
+		index.setConditions(new PhotoId(4), Arrays.asList("tg:tree"));
+
+		assertArrayEquals(new int[]{1, 2, 9}, index.getPhotoIds(Arrays.asList("tg:sky", "tg:sea")));
+		assertArrayEquals(new int[]{1, 4, 9}, index.getPhotoIds(Arrays.asList("tg:tree", "tg:sky", "tg:none")));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSetConditionsReplacesPreviousConditions() {
+		index.setConditions(new PhotoId(1), Arrays.asList("tg:sky", "tg:sea"));
+		index.setConditions(new PhotoId(1), Arrays.asList("tg:tree"));
+
+		assertArrayEquals(new int[0], index.getPhotoIds(Collections.singletonList("tg:sky")));
+		assertArrayEquals(new int[]{1}, index.getPhotoIds(Collections.singletonList("tg:tree")));
+		assertEquals(1, index.getNoConditions());
+		assertEquals(1, index.getNoPhotos());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemove() {
+		index.setConditions(new PhotoId(1), Arrays.asList("tg:sky"));
+		index.setConditions(new PhotoId(2), Arrays.asList("tg:sky"));
+
+		index.remove(new PhotoId(1));
+
+		assertArrayEquals(new int[]{2}, index.getPhotoIds(Collections.singletonList("tg:sky")));
+		assertEquals(0, index.getConditions(new PhotoId(1)).length);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPostingListsStaySorted() {
+		for (int id = 100; id > 0; id -= 3) {
+			index.setConditions(new PhotoId(id), Collections.singletonList("tg:sky"));
+		}
+
+		int[] ids = index.getPhotoIds(Collections.singletonList("tg:sky"));
+		assertEquals(34, ids.length);
+		for (int i = 1; i < ids.length; i++) {
+			assertEquals(ids[i - 1] + 3, ids[i]);
+		}
+	}
+}
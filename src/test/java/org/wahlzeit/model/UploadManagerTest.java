@@ -0,0 +1,239 @@
+package org.wahlzeit.model;
+
+import com.google.appengine.api.images.Image;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.Work;
+import org.junit.Before;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for {@link UploadManager}. The creation of the photo is replaced, as images cannot be scaled in tests.
+ */
+public class UploadManagerTest {
+
+	@ClassRule
+	public static RuleChain ruleChain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	private TestUploadManager uploadManager;
+	private User user;
+	private ByteBuffer image;
+
+	@Before
+	public void setUp() {
+		uploadManager = new TestUploadManager();
+		user = ObjectifyService.run(new Work<User>() {
+			@Override
+			public User run() {
+				User result = UserManager.getInstance().getUserById("uploader");
+				return result != null ? result : new User("uploader", "uploader", "uploader@wahlzeit.org");
+			}
+		});
+		// only the first bytes of the buffer belong to the upload
+		image = ByteBuffer.wrap(new byte[]{1, 2, 3, 4, 5}, 0, 3);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testAcceptAndProcessUpload() throws Exception {
+		UploadStatus accepted = uploadManager.acceptUpload(user, "photo.jpg", image, "tag1, tag2");
+		String token = accepted.getToken();
+
+		assertEquals(UploadStatus.State.PENDING, uploadManager.getUploadStatus(token).getState());
+		assertEquals(token, uploadManager.enqueuedTokens.get(0));
+		assertArrayEquals(new byte[]{1, 2, 3}, uploadManager.loadSpool(accepted));
+
+		UploadStatus processed = uploadManager.processUpload(token);
+		assertEquals(UploadStatus.State.DONE, processed.getState());
+		assertEquals(uploadManager.processedPhotos.get(0).getIdAsString(), processed.getPhotoId());
+		assertEquals("tag1, tag2", uploadManager.processedTags.get(0));
+		assertNull(uploadManager.loadSpool(processed));
+
+		// a task that is delivered twice does not create a second photo
+		assertEquals(UploadStatus.State.DONE, uploadManager.processUpload(token).getState());
+		assertEquals(1, uploadManager.processedTags.size());
+		assertTrue(uploadManager.getUploadStatus(token).asJson().contains("\"state\":\"DONE\""));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testFailedUploadKeepsSpoolUntilGivenUp() throws Exception {
+		UploadStatus accepted = uploadManager.acceptUpload(user, "photo.jpg", image, "");
+		String token = accepted.getToken();
+		uploadManager.failProcessing = true;
+
+		try {
+			uploadManager.processUpload(token);
+			fail("processing should have failed");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+		assertEquals(UploadStatus.State.PENDING, uploadManager.getUploadStatus(token).getState());
+		assertArrayEquals(new byte[]{1, 2, 3}, uploadManager.loadSpool(accepted));
+
+		// the failed attempt returned the upload to pending, so the retry processes it again
+		try {
+			uploadManager.processUpload(token);
+			fail("processing should have failed");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+		assertEquals("x1", uploadManager.getUploadStatus(token).getPhotoId());
+
+		uploadManager.failUpload(token);
+		assertEquals(UploadStatus.State.FAILED, uploadManager.getUploadStatus(token).getState());
+		assertNull(uploadManager.loadSpool(accepted));
+		assertEquals(Collections.singletonList("x1"), uploadManager.deletedPhotoIds);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUploadBeingProcessedIsSkipped() throws Exception {
+		UploadStatus accepted = uploadManager.acceptUpload(user, "photo.jpg", image, "");
+		accepted.setState(UploadStatus.State.PROCESSING);
+		uploadManager.saveUploadStatus(accepted);
+
+		assertEquals(UploadStatus.State.PROCESSING, uploadManager.processUpload(accepted.getToken()).getState());
+		assertTrue(uploadManager.processedTags.isEmpty());
+		assertArrayEquals(new byte[]{1, 2, 3}, uploadManager.loadSpool(accepted));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testLargeUploadIsSpooledInChunks() throws Exception {
+		byte[] imageData = new byte[2 * UploadChunk.CHUNK_SIZE + 1];
+		imageData[imageData.length - 1] = 7;
+		UploadStatus accepted = uploadManager.acceptUpload(user, "large.jpg", ByteBuffer.wrap(imageData), "");
+
+		assertEquals(3, uploadManager.getUploadStatus(accepted.getToken()).getNoChunks());
+		assertArrayEquals(imageData, uploadManager.loadSpool(accepted));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testNoStatusIsSavedIfEnqueueFails() throws Exception {
+		uploadManager.failEnqueue = true;
+		try {
+			uploadManager.acceptUpload(user, "photo.jpg", image, "");
+			fail("enqueue should have failed");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+
+		String token = uploadManager.enqueuedTokens.get(0);
+		assertNull(uploadManager.getUploadStatus(token));
+		UploadStatus uploadStatus = new UploadStatus(token, user.getId(), "photo.jpg", "");
+		uploadStatus.setNoChunks(1);
+		assertNull(uploadManager.loadSpool(uploadStatus));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUploadIsRejectedIfSpoolIsFull() throws Exception {
+		// other tests of the class may have left unfinished uploads
+		uploadManager.setMaxSpooledBytes(uploadManager.getNoSpooledBytes(Long.MAX_VALUE) + 4);
+		UploadStatus accepted = uploadManager.acceptUpload(user, "photo.jpg", image, "");
+		assertEquals(3, uploadManager.getUploadStatus(accepted.getToken()).getNoBytes());
+
+		try {
+			uploadManager.acceptUpload(user, "photo.jpg", image, "");
+			fail("upload should have been rejected");
+		} catch (UploadManager.UploadSpoolFullException ex) {
+			// expected
+		}
+
+		// finished uploads have dropped their spool
+		uploadManager.processUpload(accepted.getToken());
+		uploadManager.acceptUpload(user, "photo.jpg", image, "");
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testExpireUploads() throws Exception {
+		UploadStatus accepted = uploadManager.acceptUpload(user, "photo.jpg", image, "");
+		assertEquals(0, uploadManager.expireUploads(accepted.getCreationTime() - 1000));
+		assertTrue(uploadManager.expireUploads(accepted.getCreationTime() + 1) >= 1);
+
+		assertNull(uploadManager.getUploadStatus(accepted.getToken()));
+		assertNull(uploadManager.loadSpool(accepted));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testUnknownToken() throws Exception {
+		assertNull(uploadManager.getUploadStatus("unknown"));
+		assertNull(uploadManager.getUploadStatus(null));
+		assertNull(uploadManager.processUpload("unknown"));
+	}
+
+	/**
+	 * Records enqueued uploads instead of using the task queue and creates no real photos
+	 */
+	private static class TestUploadManager extends UploadManager {
+
+		private final List<String> enqueuedTokens = new ArrayList<String>();
+		private final List<String> processedTags = new ArrayList<String>();
+		private final List<Photo> processedPhotos = new ArrayList<Photo>();
+		private final List<String> deletedPhotoIds = new ArrayList<String>();
+		private boolean failProcessing = false;
+		private boolean failEnqueue = false;
+
+		@Override
+		protected void deletePhoto(String photoIdAsString) {
+			deletedPhotoIds.add(photoIdAsString);
+		}
+
+		@Override
+		protected void enqueue(UploadStatus uploadStatus) {
+			enqueuedTokens.add(uploadStatus.getToken());
+			if (failEnqueue) {
+				throw new IllegalStateException("queue is not available");
+			}
+		}
+
+		@Override
+		protected Photo doProcessUpload(UploadStatus uploadStatus, Image image) {
+			if (failProcessing) {
+				// the photo has been created, applying the tags fails
+				uploadStatus.setPhotoId("x1");
+				saveUploadStatus(uploadStatus);
+				throw new IllegalStateException("tagging failed");
+			}
+			processedTags.add(uploadStatus.getTags());
+			processedPhotos.add(new Photo(new PhotoId(1)));
+			return processedPhotos.get(0);
+		}
+	}
+}
@@ -0,0 +1,94 @@
+package org.wahlzeit.model;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class WeightedPhotoSamplerTest {
+
+	private WeightedPhotoSampler sampler;
+
+	@Before
+	public void initSampler() {
+		sampler = new WeightedPhotoSampler();
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWeights() {
+		sampler.setWeight(3, 2.0);
+		sampler.setWeight(200, 5.0);
+		sampler.setWeight(3, 1.0);
+
+		assertEquals(1.0, sampler.getWeight(3), 1e-9);
+		assertEquals(5.0, sampler.getWeight(200), 1e-9);
+		assertEquals(0.0, sampler.getWeight(4), 1e-9);
+		assertEquals(0.0, sampler.getWeight(100000), 1e-9);
+		assertEquals(6.0, sampler.getTotalWeight(), 1e-9);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEmptySampler() {
+		assertEquals(-1, sampler.sample(new Random(1)));
+
+		sampler.setWeight(5, 1.0);
+		sampler.setWeight(5, 0.0);
+		assertEquals(-1, sampler.sample(new Random(1)));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testSamplesAreProportionalToWeights() {
+		sampler.setWeight(1, 1.0);
+		sampler.setWeight(70, 3.0);
+		sampler.setWeight(130, 0.0);
+		sampler.setWeight(1000, 6.0);
+
+		Random random = new Random(42);
+		int[] counts = new int[1001];
+		int noSamples = 100000;
+		for (int i = 0; i < noSamples; i++) {
+			counts[sampler.sample(random)]++;
+		}
+
+		assertEquals(0, counts[130]);
+		assertEquals(0.1, (double) counts[1] / noSamples, 0.01);
+		assertEquals(0.3, (double) counts[70] / noSamples, 0.01);
+		assertEquals(0.6, (double) counts[1000] / noSamples, 0.01);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testWeightsOfDifferentMagnitude() {
+		sampler.setWeight(1, 1e40);
+		sampler.setWeight(2, 1.0);
+		sampler.setWeight(2, 3.0);
+		assertEquals(3.0, sampler.getWeight(2), 0.0);
+
+		sampler.setWeight(1, 0.0);
+		sampler.scaleWeights(0.5);
+		assertEquals(1.5, sampler.getWeight(2), 0.0);
+		assertEquals(1.5, sampler.getTotalWeight(), 0.0);
+		assertEquals(2, sampler.sample(new Random(1)));
+	}
+
+	/**
+	 *
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeWeight() {
+		sampler.setWeight(1, -1.0);
+	}
+}
@@ -6,10 +6,17 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.Serializable;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.fail;
 
 /**
@@ -128,4 +135,74 @@ public abstract class AbstractAdapterTest {
 		exists = imageStorage.doesImageExist("wrong file name", 1);
 		assert !exists;
 	}
+
+	@Test
+	public void testStreamImageRange() throws IOException {
+		byte[] imageData = new byte[3 * ImageStorage.STREAM_CHUNK_SIZE + 17];
+		for (int i = 0; i < imageData.length; i++) {
+			imageData[i] = (byte) (i * 31);
+		}
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(imageData), "stream", 4);
+
+		assertEquals(imageData.length, imageStorage.getImageLength("stream", 4));
+		assertEquals(-1, imageStorage.getImageLength("stream", 5));
+
+		int offset = ImageStorage.STREAM_CHUNK_SIZE - 5;
+		int length = 2 * ImageStorage.STREAM_CHUNK_SIZE + 10;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		imageStorage.streamImage("stream", 4, offset, length, out);
+		assertArrayEquals(Arrays.copyOfRange(imageData, offset, offset + length), out.toByteArray());
+
+		out = new ByteArrayOutputStream();
+		imageStorage.streamImage("stream", 4, 0, imageData.length, out);
+		assertArrayEquals(imageData, out.toByteArray());
+	}
+
+	@Test
+	public void testWriteImages() throws IOException {
+		Map<Integer, Image> images = new LinkedHashMap<Integer, Image>();
+		for (int size = 0; size < 4; size++) {
+			byte[] imageData = new byte[1024 * (size + 1)];
+			Arrays.fill(imageData, (byte) size);
+			images.put(size, ImagesServiceFactory.makeImage(imageData));
+		}
+		imageStorage.writeImages(images, "multi");
+
+		for (Map.Entry<Integer, Image> entry : images.entrySet()) {
+			Serializable image = imageStorage.readImage("multi", entry.getKey());
+			assert image instanceof Image;
+			assertArrayEquals(entry.getValue().getImageData(), ((Image) image).getImageData());
+		}
+		assert !imageStorage.doesImageExist("multi", 4);
+	}
+
+	@Test
+	public void testDeleteImage() throws IOException {
+		imageStorage.writeImage(smallTestImage, "delete", 1);
+		imageStorage.writeImage(maxSizeTestImage, "delete", 2);
+
+		imageStorage.deleteImage("delete", 1);
+		imageStorage.deleteImage("delete", 2);
+		imageStorage.deleteImage("delete", 3);
+
+		assertEquals(null, imageStorage.readImage("delete", 1));
+		assertEquals(null, imageStorage.readImage("delete", 2));
+		assertEquals(0, imageStorage.existingSizes("delete").size());
+	}
+
+	@Test
+	public void testReadImagesAndExistingSizes() throws IOException {
+		assertEquals(0, imageStorage.existingSizes("batch").size());
+
+		imageStorage.writeImage(smallTestImage, "batch", 0);
+		imageStorage.writeImage(maxSizeTestImage, "batch", 3);
+		imageStorage.writeImage(smallTestImage, "batch1", 2);
+
+		assertEquals(new TreeSet<Integer>(Arrays.asList(0, 3)), imageStorage.existingSizes("batch"));
+
+		Map<Integer, Serializable> images = imageStorage.readImages("batch", Arrays.asList(0, 1, 2, 3));
+		assertEquals(new TreeSet<Integer>(Arrays.asList(0, 3)), images.keySet());
+		assertArrayEquals(smallTestImage.getImageData(), ((Image) images.get(0)).getImageData());
+		assertArrayEquals(maxSizeTestImage.getImageData(), ((Image) images.get(3)).getImageData());
+	}
 }
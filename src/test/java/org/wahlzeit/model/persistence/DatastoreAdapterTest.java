@@ -2,17 +2,26 @@ package org.wahlzeit.model.persistence;
 
 import com.google.appengine.api.images.Image;
 import com.google.appengine.api.images.ImagesServiceFactory;
+import com.googlecode.objectify.ObjectifyService;
+import com.googlecode.objectify.VoidWork;
+import com.googlecode.objectify.Work;
 import org.junit.ClassRule;
 import org.junit.Test;
 import org.junit.rules.RuleChain;
 import org.junit.rules.TestRule;
+import org.wahlzeit.services.OfyService;
 import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
 import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
 
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.TreeSet;
 
-import static org.junit.Assert.fail;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test class for {@link DatastoreAdapter}
@@ -33,17 +42,104 @@ public class DatastoreAdapterTest extends AbstractAdapterTest {
 	protected void storageDependentSetUp() {
 		imageStorage = new DatastoreAdapter();
 
-		ByteBuffer bb = ByteBuffer.allocate(1024 * 1025);
-		tooLargeTestImage = ImagesServiceFactory.makeImage(bb.array());
+		tooLargeTestImage = ImagesServiceFactory.makeImage(createImageData(1024 * 1025));
 	}
 
+	/**
+	 * Images above the entity size limit are stored in chunks
+	 */
+	@Test
+	public void testUpperSizeLimit() throws IOException {
+		imageStorage.writeImage(tooLargeTestImage, "blub", 1);
 
-	@Test(expected = ArrayIndexOutOfBoundsException.class)
-	public void testUpperSizeLimit() {
-		try {
-			imageStorage.writeImage(tooLargeTestImage, "blub", 1);
-		} catch (IOException e) {
-			fail("IOException should not be thrown!");
+		Image image = (Image) imageStorage.readImage("blub", 1);
+		assertArrayEquals(tooLargeTestImage.getImageData(), image.getImageData());
+	}
+
+	@Test
+	public void testOverwriteChunkedImage() throws IOException {
+		byte[] largeImageData = createImageData(3 * DatastoreAdapter.CHUNK_SIZE + 5);
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(largeImageData), "chunked", 2);
+		assertArrayEquals(largeImageData, ((Image) imageStorage.readImage("chunked", 2)).getImageData());
+		DatastoreAdapter.ImageManifest firstManifest = loadManifest("chunked2");
+
+		imageStorage.writeImage(tooLargeTestImage, "chunked", 2);
+		assertArrayEquals(tooLargeTestImage.getImageData(),
+				((Image) imageStorage.readImage("chunked", 2)).getImageData());
+		DatastoreAdapter.ImageManifest secondManifest = loadManifest("chunked2");
+		assertTrue(secondManifest.getGeneration() > firstManifest.getGeneration());
+		for (int i = 0; i < firstManifest.getNoChunks(); i++) {
+			assertNull(loadChunk("chunked2", firstManifest.getGeneration(), i));
+		}
+
+		imageStorage.writeImage(smallTestImage, "chunked", 2);
+		assertArrayEquals(smallTestImage.getImageData(), ((Image) imageStorage.readImage("chunked", 2)).getImageData());
+		assertEquals(0, loadManifest("chunked2").getNoChunks());
+		assertNull(loadChunk("chunked2", secondManifest.getGeneration(), 0));
+	}
+
+	@Test
+	public void testReadLegacyChunks() throws IOException {
+		final byte[] imageData = createImageData(DatastoreAdapter.CHUNK_SIZE + 7);
+		ObjectifyService.run(new VoidWork() {
+			@Override
+			public void vrun() {
+				OfyService.ofy().save().entities(
+						new DatastoreAdapter.ImageManifest("legacyChunks4", imageData.length, 2, 0),
+						new DatastoreAdapter.ImageChunk("legacyChunks4", 0, 0,
+								Arrays.copyOfRange(imageData, 0, DatastoreAdapter.CHUNK_SIZE)),
+						new DatastoreAdapter.ImageChunk("legacyChunks4", 0, 1,
+								Arrays.copyOfRange(imageData, DatastoreAdapter.CHUNK_SIZE, imageData.length))).now();
+			}
+		});
+
+		assertNotNull(loadChunk("legacyChunks4", 0, 1));
+		assertArrayEquals(imageData, ((Image) imageStorage.readImage("legacyChunks", 4)).getImageData());
+	}
+
+	@Test
+	public void testReadLegacyImageWrapper() throws IOException {
+		final DatastoreAdapter.ImageWrapper imageWrapper = new DatastoreAdapter.ImageWrapper("legacy3");
+		imageWrapper.setImage(smallTestImage);
+		ObjectifyService.run(new VoidWork() {
+			@Override
+			public void vrun() {
+				OfyService.ofy().save().entity(imageWrapper).now();
+			}
+		});
+
+		Image image = (Image) imageStorage.readImage("legacy", 3);
+		assertArrayEquals(smallTestImage.getImageData(), image.getImageData());
+		assert imageStorage.doesImageExist("legacy", 3);
+
+		imageStorage.writeImage(smallTestImage, "legacy", 1);
+		assertEquals(new TreeSet<Integer>(Arrays.asList(1, 3)), imageStorage.existingSizes("legacy"));
+	}
+
+	private DatastoreAdapter.ImageManifest loadManifest(final String imageId) {
+		return ObjectifyService.run(new Work<DatastoreAdapter.ImageManifest>() {
+			@Override
+			public DatastoreAdapter.ImageManifest run() {
+				return OfyService.ofy().load().type(DatastoreAdapter.ImageManifest.class).id(imageId).now();
+			}
+		});
+	}
+
+	private DatastoreAdapter.ImageChunk loadChunk(final String imageId, final long generation, final int index) {
+		return ObjectifyService.run(new Work<DatastoreAdapter.ImageChunk>() {
+			@Override
+			public DatastoreAdapter.ImageChunk run() {
+				return OfyService.ofy().load().type(DatastoreAdapter.ImageChunk.class).
+						id(DatastoreAdapter.ImageChunk.getId(imageId, generation, index)).now();
+			}
+		});
+	}
+
+	private byte[] createImageData(int length) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) (i * 13 + i / 1024);
 		}
+		return result;
 	}
 }
@@ -0,0 +1,59 @@
+package org.wahlzeit.model.persistence;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for {@link FileSystemAdapter}
+ */
+public class FileSystemAdapterTest extends AbstractAdapterTest {
+
+	@Rule
+	public TemporaryFolder photosDir = new TemporaryFolder();
+
+	@Override
+	protected void storageDependentSetUp() {
+		imageStorage = new FileSystemAdapter(photosDir.getRoot());
+	}
+
+	@Test
+	public void testWriteLeavesNoTempFiles() throws IOException {
+		imageStorage.writeImage(smallTestImage, "blub", 1);
+		imageStorage.writeImage(maxSizeTestImage, "blub", 1);
+
+		Path imageFile = ((FileSystemAdapter) imageStorage).getImageFile("blub", 1);
+		assertTrue(imageFile.startsWith(photosDir.getRoot().toPath()));
+		assertEquals(maxSizeTestImage.getImageData().length, Files.size(imageFile));
+		assertEquals(1, imageFile.getParent().toFile().list().length);
+	}
+
+	@Test
+	public void testReadMissingImage() throws IOException {
+		assertEquals(null, imageStorage.readImage("blub", 2));
+		assertFalse(imageStorage.doesImageExist("blub", 2));
+		assertEquals(-1, imageStorage.getImageLength("blub", 2));
+	}
+
+	@Test
+	public void testIdsOutsideOfPhotosDirAreRejected() throws IOException {
+		String[] invalidIds = {"../../../etc/passwd", "..", "a/b", "a\\b", ""};
+		for (String invalidId : invalidIds) {
+			try {
+				imageStorage.readImage(invalidId, 2);
+				fail("accepted photo id " + invalidId);
+			} catch (IllegalArgumentException ex) {
+				// expected
+			}
+		}
+	}
+}
@@ -1,7 +1,32 @@
 package org.wahlzeit.model.persistence;
 
+import com.google.appengine.api.images.Image;
+import com.google.appengine.api.images.ImagesServiceFactory;
+import com.google.appengine.tools.cloudstorage.GcsFileOptions;
+import com.google.appengine.tools.cloudstorage.GcsService;
+import com.google.appengine.tools.cloudstorage.GcsServiceFactory;
+import com.google.appengine.tools.cloudstorage.RetryParams;
 import com.google.appengine.tools.development.testing.LocalBlobstoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.apphosting.api.ApiProxy;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Test cases for the Google Cloud Storage adapter.
@@ -9,16 +34,121 @@ import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
  */
 public class GcsAdapterTest extends AbstractAdapterTest {
 
-	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalBlobstoreServiceTestConfig());
+	/**
+	 * The local GCS service keeps file metadata in the datastore, so both are kept in memory to isolate the tests
+	 */
+	private final LocalServiceTestHelper helper = new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+			new LocalBlobstoreServiceTestConfig().setNoStorage(true));
+
+	private final AtomicInteger noCreatedThreads = new AtomicInteger();
 
 	@Override
 	protected void storageDependentSetUp() {
 		helper.setUp();
-		imageStorage = new GcsAdapter.Builder().build();
+		imageStorage = createBuilder().build();
+	}
+
+	/**
+	 * The request thread factory of App Engine is not available in unit tests, so the writer threads are created by
+	 * a plain factory that hands the test environment over to them.
+	 */
+	protected GcsAdapter.Builder createBuilder() {
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		GcsAdapter.Builder builder = new GcsAdapter.Builder();
+		builder.setThreadFactory(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable runnable) {
+				noCreatedThreads.incrementAndGet();
+				return new Thread(new Runnable() {
+					@Override
+					public void run() {
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						runnable.run();
+					}
+				});
+			}
+		});
+		return builder;
 	}
 
 	@Override
 	protected void storageDependentTearDown() {
 		helper.tearDown();
 	}
+
+	@Test
+	public void testReadImageLargerThanBuffer() throws IOException {
+		GcsAdapter.Builder builder = createBuilder();
+		builder.setBufferLength(4096);
+		imageStorage = builder.build();
+
+		byte[] imageData = new byte[3 * 4096 + 123];
+		for (int i = 0; i < imageData.length; i++) {
+			imageData[i] = (byte) (i * 7);
+		}
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(imageData), "large", 3);
+
+		Image image = (Image) imageStorage.readImage("large", 3);
+		assertArrayEquals(imageData, image.getImageData());
+	}
+
+	@Test
+	public void testReadLegacyObjectName() throws IOException {
+		GcsAdapter gcsAdapter = (GcsAdapter) imageStorage;
+		GcsService gcsService = GcsServiceFactory.createGcsService(RetryParams.getDefaultInstance());
+		byte[] imageData = new byte[] {1, 2, 3, 4, 5};
+		gcsService.createOrReplace(gcsAdapter.getLegacyGcsFileName("legacy", 2), GcsFileOptions.getDefaultInstance(),
+				ByteBuffer.wrap(imageData));
+
+		assertNotEquals(gcsAdapter.getLegacyGcsFileName("legacy", 2), gcsAdapter.getGcsFileName("legacy", 2));
+		assertTrue(imageStorage.doesImageExist("legacy", 2));
+		assertEquals(imageData.length, imageStorage.getImageLength("legacy", 2));
+		assertArrayEquals(imageData, ((Image) imageStorage.readImage("legacy", 2)).getImageData());
+		assertEquals(Collections.singleton(2), imageStorage.existingSizes("legacy"));
+
+		imageStorage.writeImage(ImagesServiceFactory.makeImage(imageData), "legacy", 1);
+		assertEquals(new TreeSet<Integer>(Arrays.asList(1, 2)), imageStorage.existingSizes("legacy"));
+	}
+
+	@Test
+	public void testNamePrefixIsHashed() {
+		GcsAdapter gcsAdapter = (GcsAdapter) imageStorage;
+		String first = gcsAdapter.getGcsFileName("x1", 0).getObjectName();
+		String second = gcsAdapter.getGcsFileName("x2", 0).getObjectName();
+		assertEquals("photos/" + gcsAdapter.getNamePrefix("x1") + "/x1-0", first);
+		assertNotEquals(first.substring(0, 11), second.substring(0, 11));
+	}
+
+	@Test
+	public void testThreadsAreSharedByWrites() throws IOException {
+		GcsAdapter.Builder builder = createBuilder();
+		builder.setMaxThreads(2);
+		imageStorage = builder.build();
+
+		for (int i = 0; i < 3; i++) {
+			Map<Integer, Image> images = new LinkedHashMap<Integer, Image>();
+			for (int size = 0; size < 4; size++) {
+				images.put(size, ImagesServiceFactory.makeImage(new byte[] {(byte) i, (byte) size}));
+			}
+			imageStorage.writeImages(images, "shared" + i);
+		}
+
+		assertTrue(noCreatedThreads.get() <= 2);
+		for (int i = 0; i < 3; i++) {
+			assertEquals(4, imageStorage.existingSizes("shared" + i).size());
+		}
+	}
+
+	@Test
+	public void testLegacyNameLookupCanBeTurnedOff() throws IOException {
+		GcsAdapter.Builder builder = createBuilder();
+		builder.setLegacyNameLookup(false);
+		GcsAdapter gcsAdapter = builder.build();
+		GcsService gcsService = GcsServiceFactory.createGcsService(RetryParams.getDefaultInstance());
+		gcsService.createOrReplace(gcsAdapter.getLegacyGcsFileName("legacy", 2), GcsFileOptions.getDefaultInstance(),
+				ByteBuffer.wrap(new byte[] {1, 2, 3}));
+
+		assertFalse(gcsAdapter.doesImageExist("legacy", 2));
+		assertTrue(gcsAdapter.existingSizes("legacy").isEmpty());
+	}
 }
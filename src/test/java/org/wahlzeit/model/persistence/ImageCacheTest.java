@@ -0,0 +1,156 @@
+package org.wahlzeit.model.persistence;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ImageCacheTest {
+
+	private static final int BLOCK_SIZE = 1024;
+	private static final int SLAB_SIZE = 4 * BLOCK_SIZE;
+
+	private ImageCache imageCache;
+
+	@Before
+	public void setUp() {
+		// two slabs with four blocks each
+		imageCache = new ImageCache(2 * SLAB_SIZE, SLAB_SIZE, BLOCK_SIZE);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testPutAndGet() {
+		byte[] data = createData(BLOCK_SIZE + 10, 7);
+		imageCache.put("x1", 1, data);
+
+		assertTrue(imageCache.contains("x1", 1));
+		assertArrayEquals(data, imageCache.get("x1", 1));
+		assertNull(imageCache.get("x1", 2));
+		assertEquals(1, imageCache.getNoHits());
+		assertEquals(1, imageCache.getNoMisses());
+		assertEquals(2 * BLOCK_SIZE, imageCache.getUsedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReplace() {
+		imageCache.put("x1", 1, createData(2 * BLOCK_SIZE, 1));
+		byte[] data = createData(10, 2);
+		imageCache.put("x1", 1, data);
+
+		assertArrayEquals(data, imageCache.get("x1", 1));
+		assertEquals(1, imageCache.getSize());
+		assertEquals(BLOCK_SIZE, imageCache.getUsedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEvictsLeastRecentlyUsed() {
+		for (int i = 0; i < 4; i++) {
+			imageCache.put("x" + i, 0, createData(2 * BLOCK_SIZE, i));
+		}
+		assertEquals(2 * SLAB_SIZE, imageCache.getUsedBytes());
+
+		// touch x0, so x1 is the least recently used one
+		imageCache.get("x0", 0);
+		imageCache.put("x4", 0, createData(BLOCK_SIZE, 4));
+
+		assertFalse(imageCache.contains("x1", 0));
+		assertTrue(imageCache.contains("x0", 0));
+		assertTrue(imageCache.contains("x4", 0));
+		assertEquals(1, imageCache.getNoEvictions());
+		assertArrayEquals(createData(2 * BLOCK_SIZE, 2), imageCache.get("x2", 0));
+		assertTrue(imageCache.getUsedBytes() <= imageCache.getMaxBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testEvictionListenerGetsEvictedData() {
+		final List<String> evictedKeys = new ArrayList<String>();
+		final List<byte[]> evictedData = new ArrayList<byte[]>();
+		imageCache.setEvictionListener(new ImageCache.EvictionListener() {
+			@Override
+			public void onEviction(String photoIdAsString, int size, byte[] data) {
+				evictedKeys.add(photoIdAsString + "-" + size);
+				evictedData.add(data);
+			}
+		});
+
+		for (int i = 0; i < 4; i++) {
+			imageCache.put("x" + i, 0, createData(2 * BLOCK_SIZE, i));
+		}
+		assertTrue(evictedKeys.isEmpty());
+
+		imageCache.put("x4", 0, createData(2 * BLOCK_SIZE, 4));
+
+		assertEquals(Arrays.asList("x0-0"), evictedKeys);
+		assertArrayEquals(createData(2 * BLOCK_SIZE, 0), evictedData.get(0));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTooLargeImageIsNotCached() {
+		imageCache.put("x1", 1, createData(3 * BLOCK_SIZE, 1));
+
+		assertFalse(imageCache.contains("x1", 1));
+		assertEquals(0, imageCache.getUsedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemove() {
+		imageCache.put("x1", 1, createData(10, 1));
+		imageCache.remove("x1", 1);
+
+		assertFalse(imageCache.contains("x1", 1));
+		assertEquals(0, imageCache.getUsedBytes());
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testRemoveFromAllSlabs() {
+		imageCache.put("x1", 1, createData(2 * BLOCK_SIZE, 1));
+		imageCache.put("x2", 1, createData(2 * BLOCK_SIZE, 2));
+		imageCache.put("x3", 1, createData(2 * BLOCK_SIZE, 3));
+		imageCache.remove("x1", 1);
+		imageCache.remove("x2", 1);
+		imageCache.remove("x3", 1);
+
+		assertEquals(0, imageCache.getUsedBytes());
+		imageCache.put("x4", 1, createData(2 * BLOCK_SIZE, 4));
+		assertArrayEquals(createData(2 * BLOCK_SIZE, 4), imageCache.get("x4", 1));
+	}
+
+	/**
+	 *
+	 */
+	private byte[] createData(int length, int value) {
+		byte[] result = new byte[length];
+		Arrays.fill(result, (byte) value);
+		result[length - 1] = (byte) (value + 1);
+		return result;
+	}
+}
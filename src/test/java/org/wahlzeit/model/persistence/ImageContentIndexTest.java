@@ -0,0 +1,77 @@
+package org.wahlzeit.model.persistence;
+
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.RuleChain;
+import org.junit.rules.TestRule;
+import org.wahlzeit.testEnvironmentProvider.LocalDatastoreServiceTestConfigProvider;
+import org.wahlzeit.testEnvironmentProvider.RegisteredOfyEnvironmentProvider;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Test cases for the ImageContentIndex class.
+ */
+public class ImageContentIndexTest {
+
+	@ClassRule
+	public static TestRule chain = RuleChain.
+			outerRule(new LocalDatastoreServiceTestConfigProvider()).
+			around(new RegisteredOfyEnvironmentProvider());
+
+	@Test
+	public void testComputeContentHash() {
+		assertEquals("ba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad",
+				ImageContentIndex.computeContentHash("abc".getBytes(StandardCharsets.US_ASCII)));
+	}
+
+	@Test
+	public void testAcquireCountsReferencesAndSavedBytes() {
+		ImageContentIndex index = new ImageContentIndex();
+		String contentHash = ImageContentIndex.computeContentHash(new byte[]{1, 2, 3});
+		assertNull(index.acquire(contentHash));
+
+		index.register(contentHash, "x1", 1000);
+		index.acquire(contentHash);
+		ImageContent imageContent = index.acquire(contentHash);
+
+		assertEquals("x1", imageContent.getPhotoIdAsString());
+		assertEquals(3, imageContent.getRefCount());
+		assertEquals(2000, imageContent.getNoSavedBytes());
+		assertEquals(3, index.getImageContent(contentHash).getRefCount());
+		assertEquals(2, index.getNoReusedContents());
+		assertEquals(2000, index.getNoSavedBytes());
+	}
+
+	@Test
+	public void testRegisterKeepsFirstPhoto() {
+		ImageContentIndex index = new ImageContentIndex();
+		String contentHash = ImageContentIndex.computeContentHash(new byte[]{4, 5, 6});
+
+		index.register(contentHash, "x2", 10);
+		ImageContent imageContent = index.register(contentHash, "x3", 20);
+
+		assertEquals("x2", imageContent.getPhotoIdAsString());
+		assertEquals(1, imageContent.getRefCount());
+		assertEquals(10, imageContent.getNoBytes());
+	}
+
+	@Test
+	public void testReleaseRemovesEntryWithoutReferences() {
+		ImageContentIndex index = new ImageContentIndex();
+		String contentHash = ImageContentIndex.computeContentHash(new byte[]{7, 8, 9});
+		assertNull(index.release(contentHash));
+
+		index.register(contentHash, "x4", 10);
+		index.acquire(contentHash);
+		assertEquals(1, index.release(contentHash).getRefCount());
+		assertEquals(1, index.getImageContent(contentHash).getRefCount());
+
+		assertEquals(0, index.release(contentHash).getRefCount());
+		assertNull(index.getImageContent(contentHash));
+		assertNull(index.acquire(contentHash));
+	}
+}
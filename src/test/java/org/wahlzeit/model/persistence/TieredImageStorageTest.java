@@ -0,0 +1,90 @@
+package org.wahlzeit.model.persistence;
+
+import com.google.appengine.api.images.Image;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test class for {@link TieredImageStorage}, with a second file system standing in for the remote storage.
+ */
+public class TieredImageStorageTest extends AbstractAdapterTest {
+
+	@Rule
+	public TemporaryFolder diskDir = new TemporaryFolder();
+
+	@Rule
+	public TemporaryFolder remoteDir = new TemporaryFolder();
+
+	protected ImageCache memoryTier;
+	protected FileSystemAdapter diskTier;
+	protected FileSystemAdapter remoteTier;
+
+	@Override
+	protected void storageDependentSetUp() {
+		memoryTier = new ImageCache(8 * 1024 * 1024, 1024 * 1024, 16 * 1024);
+		diskTier = new FileSystemAdapter(diskDir.getRoot());
+		remoteTier = new FileSystemAdapter(remoteDir.getRoot());
+		imageStorage = new TieredImageStorage(memoryTier, Arrays.asList(diskTier, remoteTier));
+	}
+
+	@Test
+	public void testWriteGoesThroughToAllStorageTiers() throws IOException {
+		memoryTier.put("blub", 1, new byte[]{1});
+		imageStorage.writeImage(smallTestImage, "blub", 1);
+
+		assertTrue(diskTier.doesImageExist("blub", 1));
+		assertTrue(remoteTier.doesImageExist("blub", 1));
+		assertArrayEquals(smallTestImage.getImageData(), memoryTier.get("blub", 1));
+	}
+
+	@Test
+	public void testReadPromotesToFasterTiers() throws IOException {
+		remoteTier.writeImage(smallTestImage, "blub", 2);
+		TieredImageStorage tieredStorage = (TieredImageStorage) imageStorage;
+
+		Image image = (Image) imageStorage.readImage("blub", 2);
+		assertArrayEquals(smallTestImage.getImageData(), image.getImageData());
+		assertTrue(diskTier.doesImageExist("blub", 2));
+		assertTrue(memoryTier.contains("blub", 2));
+		assertEquals(1, tieredStorage.getNoPromotions());
+		assertEquals(1, tieredStorage.getStorageTierStatistics(0).getNoMisses());
+		assertEquals(1, tieredStorage.getStorageTierStatistics(1).getNoHits());
+
+		imageStorage.readImage("blub", 2);
+		assertEquals(1, tieredStorage.getMemoryTierStatistics().getNoHits());
+		assertEquals(0.5, tieredStorage.getMemoryTierStatistics().getHitRate(), 0.0);
+		assertEquals(1, tieredStorage.getNoPromotions());
+	}
+
+	@Test
+	public void testEvictionDemotesToDisk() {
+		// room for four images of 2 KB
+		memoryTier = new ImageCache(2 * 4096, 4096, 1024);
+		TieredImageStorage tieredStorage = new TieredImageStorage(memoryTier, Arrays.asList(diskTier, remoteTier));
+		for (int i = 0; i < 5; i++) {
+			memoryTier.put("x" + i, 0, new byte[2048]);
+		}
+
+		assertTrue(diskTier.doesImageExist("x0", 0));
+		assertFalse(diskTier.doesImageExist("x1", 0));
+		assertFalse(remoteTier.doesImageExist("x0", 0));
+		assertEquals(1, tieredStorage.getNoDemotions());
+	}
+
+	@Test
+	public void testNoDemotionToAuthoritativeTier() {
+		memoryTier = new ImageCache(2 * 4096, 4096, 1024);
+		new TieredImageStorage(memoryTier, Arrays.asList(remoteTier));
+		assertNull(memoryTier.getEvictionListener());
+	}
+}
@@ -0,0 +1,121 @@
+package org.wahlzeit.servlets;
+
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Test class for the upload handling of {@link MainServlet}.
+ */
+public class MainServletTest {
+
+	private final MainServlet mainServlet = new MainServlet();
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReadUploadOfAnnouncedLength() throws IOException {
+		byte[] data = createData(1000);
+		assertArrayEquals(data, toArray(mainServlet.readUpload(new ByteArrayInputStream(data), data.length)));
+
+		// the form fields of the request are not part of the upload, the array is not copied to exclude them
+		ByteBuffer upload = mainServlet.readUpload(new ByteArrayInputStream(data), data.length + 200);
+		assertArrayEquals(data, toArray(upload));
+		assertEquals(data.length + 200, upload.array().length);
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReadUploadOfUnknownLength() throws IOException {
+		byte[] data = createData(2 * MainServlet.MIN_UPLOAD_BUFFER_SIZE + 17);
+		assertArrayEquals(data, toArray(mainServlet.readUpload(new ByteArrayInputStream(data), -1)));
+		assertArrayEquals(data, toArray(mainServlet.readUpload(new ByteArrayInputStream(data), 10)));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReadUploadOfMaximumSize() throws IOException {
+		byte[] data = createData(MainServlet.MAX_UPLOAD_BYTES);
+		assertArrayEquals(data, toArray(mainServlet.readUpload(new ByteArrayInputStream(data), -1)));
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testReadUploadRejectsTooLargeUpload() throws IOException {
+		try {
+			mainServlet.readUpload(new ByteArrayInputStream(new byte[MainServlet.MAX_UPLOAD_BYTES + 1]), -1);
+			fail("upload should have been rejected");
+		} catch (MainServlet.UploadTooLargeException ex) {
+			// expected
+		}
+	}
+
+	/**
+	 *
+	 */
+	@Test
+	public void testTooLargeRequestIsRejectedBeforeReadingTheBody() throws Exception {
+		final List<String> calledMethods = new ArrayList<String>();
+		HttpServletRequest request = (HttpServletRequest) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class[]{HttpServletRequest.class}, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						calledMethods.add(method.getName());
+						if ("getContentType".equals(method.getName())) {
+							return "multipart/form-data; boundary=xyz";
+						} else if ("getContentLength".equals(method.getName())) {
+							return MainServlet.MAX_REQUEST_BYTES + 1;
+						}
+						return null;
+					}
+				});
+
+		try {
+			mainServlet.getRequestArgs(request, null);
+			fail("request should have been rejected");
+		} catch (MainServlet.UploadTooLargeException ex) {
+			// expected
+		}
+		assertFalse(calledMethods.contains("getInputStream"));
+	}
+
+	/**
+	 *
+	 */
+	private byte[] toArray(ByteBuffer buffer) {
+		byte[] result = new byte[buffer.remaining()];
+		buffer.duplicate().get(result);
+		return result;
+	}
+
+	/**
+	 *
+	 */
+	private byte[] createData(int length) {
+		byte[] result = new byte[length];
+		for (int i = 0; i < length; i++) {
+			result[i] = (byte) (i * 31);
+		}
+		return result;
+	}
+}
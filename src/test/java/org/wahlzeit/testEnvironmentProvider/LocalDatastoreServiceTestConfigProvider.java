@@ -12,8 +12,13 @@ import org.junit.rules.ExternalResource;
  */
 public class LocalDatastoreServiceTestConfigProvider extends ExternalResource {
 
+	/**
+	 * High replication datastore as in production, so cross-group transactions work; all jobs are applied at once,
+	 * so queries see all writes
+	 */
 	private final LocalServiceTestHelper helper =
-			new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+			new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig().
+					setApplyAllHighRepJobPolicy());
 
 	@Override
 	protected void before() throws Throwable {
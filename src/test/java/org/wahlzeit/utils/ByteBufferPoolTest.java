@@ -0,0 +1,53 @@
+package org.wahlzeit.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test cases for the ByteBufferPool class.
+ */
+public class ByteBufferPoolTest {
+
+	@Test
+	public void testReleasedBuffersAreReused() {
+		ByteBufferPool pool = new ByteBufferPool(128, 2);
+		ByteBuffer buffer = pool.acquire();
+		assertTrue(buffer.isDirect());
+		assertEquals(128, buffer.capacity());
+
+		buffer.put((byte) 1).flip();
+		pool.release(buffer);
+		assertEquals(1, pool.getNoPooledBuffers());
+
+		ByteBuffer reused = pool.acquire();
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(128, reused.limit());
+		assertEquals(0, pool.getNoPooledBuffers());
+	}
+
+	@Test
+	public void testPoolIsBounded() {
+		ByteBufferPool pool = new ByteBufferPool(64, 1);
+		ByteBuffer first = pool.acquire();
+		ByteBuffer second = pool.acquire();
+		assertNotSame(first, second);
+
+		pool.release(first);
+		pool.release(second);
+		pool.release(ByteBuffer.allocateDirect(32));
+		pool.release(ByteBuffer.allocate(64));
+		assertEquals(1, pool.getNoPooledBuffers());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidCapacity() {
+		new ByteBufferPool(0, 1);
+	}
+}